@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package eu.unicore.security.xfireutil;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.RequestLog;
+import org.mortbay.jetty.Response;
+
+/**
+ * Request log in NCSA format that doesn't write in the request thread. Each
+ * request is formatted into a line right away (the request and response
+ * objects are recycled afterwards) and put on a bounded queue; a single
+ * writer thread appends the lines to the file in batches, flushing once per
+ * batch. If the writer can't keep up, lines are dropped and counted instead
+ * of slowing requests down.
+ */
+public class AsyncRequestLog extends AbstractLifeCycle implements RequestLog
+{
+	private static final Logger LOG = Logger.getLogger(LogPfx.LOG_PFX +
+		AsyncRequestLog.class.getSimpleName());
+
+	private final String filename;
+	private final boolean extended;
+	private final int batchSize;
+	private final BlockingQueue<String> queue;
+	private final AtomicLong dropped = new AtomicLong();
+	private final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>()
+	{
+		protected SimpleDateFormat initialValue()
+		{
+			return new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+		}
+	};
+	private Thread writer;
+
+	public AsyncRequestLog(String filename, boolean extended, int queueSize, int batchSize)
+	{
+		this.filename = filename;
+		this.extended = extended;
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<String>(queueSize);
+	}
+
+	public void log(Request request, Response response)
+	{
+		if (!isStarted())
+			return;
+		if (!queue.offer(format(request, response)))
+			dropped.incrementAndGet();
+	}
+
+	private String format(Request request, Response response)
+	{
+		StringBuilder sb = new StringBuilder(160);
+		String user = request.getRemoteUser();
+		sb.append(request.getRemoteAddr());
+		sb.append(" - ");
+		sb.append(user == null ? "-" : user);
+		sb.append(" [");
+		sb.append(dateFormat.get().format(new Date(request.getTimeStamp())));
+		sb.append("] \"");
+		sb.append(request.getMethod()).append(' ');
+		sb.append(request.getUri()).append(' ');
+		sb.append(request.getProtocol()).append("\" ");
+		sb.append(response.getStatus()).append(' ');
+		long bytes = response.getContentCount();
+		sb.append(bytes >= 0 ? Long.toString(bytes) : "-");
+		if (extended)
+		{
+			appendQuoted(sb, request.getHeader("Referer"));
+			appendQuoted(sb, request.getHeader("User-Agent"));
+		}
+		sb.append(' ').append(System.currentTimeMillis() - request.getTimeStamp());
+		return sb.toString();
+	}
+
+	private static void appendQuoted(StringBuilder sb, String value)
+	{
+		sb.append(' ');
+		if (value == null)
+			sb.append('-');
+		else
+			sb.append('"').append(value).append('"');
+	}
+
+	protected void doStart() throws Exception
+	{
+		final Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(filename, true), "ISO-8859-1"));
+		writer = new Thread("request-log-writer")
+		{
+			public void run()
+			{
+				List<String> batch = new ArrayList<String>(batchSize);
+				try
+				{
+					while (isRunning() || !queue.isEmpty())
+					{
+						String first = queue.poll(1, TimeUnit.SECONDS);
+						if (first == null)
+							continue;
+						batch.add(first);
+						queue.drainTo(batch, batchSize - 1);
+						write(out, batch);
+						batch.clear();
+					}
+				} catch (InterruptedException e)
+				{
+					queue.drainTo(batch);
+					write(out, batch);
+				} finally
+				{
+					try
+					{
+						out.close();
+					} catch (IOException e)
+					{
+						LOG.warn("Can't close request log " + filename, e);
+					}
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void write(Writer out, List<String> lines)
+	{
+		try
+		{
+			for (String line : lines)
+			{
+				out.write(line);
+				out.write('\n');
+			}
+			out.flush();
+		} catch (IOException e)
+		{
+			LOG.warn("Can't write request log " + filename, e);
+		}
+	}
+
+	protected void doStop() throws Exception
+	{
+		// isRunning() is false now, the writer drains the queue and exits
+		writer.join(5000);
+		if (writer.isAlive())
+			writer.interrupt();
+		writer = null;
+	}
+
+	/**
+	 * @return lines waiting to be written
+	 */
+	public int getQueueSize()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * @return lines dropped because the queue was full
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+}
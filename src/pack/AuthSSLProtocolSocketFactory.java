@@ -19,11 +19,14 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -69,10 +72,34 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 	private static final Logger LOG = Logger.getLogger(LogPfx.LOG_PFX +
 		 AuthSSLProtocolSocketFactory.class.getSimpleName());
 
-	private SSLContext sslcontext = null;
+	/**
+	 * Default number of client sessions kept for resumption.
+	 */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+
+	/**
+	 * Default lifetime of cached client sessions, in seconds.
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+
+	private volatile SSLContext sslcontext = null;
 
 	private IAuthenticationConfiguration sec;
 
+	private String protocol = "SSL";
+
+	private int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+
+	private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+	private final AtomicLong handshakes = new AtomicLong();
+
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+
+	private final AtomicLong handshakeMillis = new AtomicLong();
+
+	private final AtomicLong maxHandshakeMillis = new AtomicLong();
+
 	public AuthSSLProtocolSocketFactory(IAuthenticationConfiguration sec)
 	{
 		this.sec = sec;
@@ -215,8 +242,16 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 				trustmanagers = createTrustManagers(truststore);
 			} else
 				trustmanagers = createTrustManagers(null);
-			SSLContext sslcontext = SSLContext.getInstance("SSL");
+			SSLContext sslcontext = SSLContext.getInstance(protocol);
 			sslcontext.init(keymanagers, trustmanagers, null);
+			SSLSessionContext sessions = sslcontext.getClientSessionContext();
+			if (sessions != null)
+			{
+				sessions.setSessionCacheSize(sessionCacheSize);
+				sessions.setSessionTimeout(sessionTimeout);
+			}
+			LOG.debug("Created " + protocol + " context, caching up to " + sessionCacheSize + 
+					" sessions for " + sessionTimeout + "s");
 			return sslcontext;
 		} catch (Exception e)
 		{
@@ -273,13 +308,143 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 		}
 	}	
 	
+	/**
+	 * Returns the context, creating it on first use. The context is built
+	 * once and published through a volatile field, so all threads share it
+	 * and with it the session cache.
+	 */
 	private SSLContext getSSLContext()
 	{
-		if (this.sslcontext == null)
+		SSLContext context = this.sslcontext;
+		if (context == null)
+		{
+			synchronized (this)
+			{
+				context = this.sslcontext;
+				if (context == null)
+				{
+					context = createSSLContext();
+					this.sslcontext = context;
+				}
+			}
+		}
+		return context;
+	}
+
+	/**
+	 * Sets the protocol requested from {@link SSLContext#getInstance(String)},
+	 * e.g. "TLS" or "TLSv1". Defaults to "SSL". Has no effect once the first
+	 * socket was created.
+	 */
+	public void setProtocol(String protocol)
+	{
+		if (protocol == null)
+			throw new IllegalArgumentException("Protocol may not be null");
+		this.protocol = protocol;
+	}
+
+	public String getProtocol()
+	{
+		return protocol;
+	}
+
+	/**
+	 * Sets how many client sessions are kept for resumption; 0 means no
+	 * limit. Defaults to {@link #DEFAULT_SESSION_CACHE_SIZE}. Has no effect
+	 * once the first socket was created.
+	 */
+	public void setSessionCacheSize(int sessionCacheSize)
+	{
+		this.sessionCacheSize = sessionCacheSize;
+	}
+
+	public int getSessionCacheSize()
+	{
+		return sessionCacheSize;
+	}
+
+	/**
+	 * Sets for how many seconds a cached session may be resumed; 0 means no
+	 * limit. Defaults to {@link #DEFAULT_SESSION_TIMEOUT}. Has no effect once
+	 * the first socket was created.
+	 */
+	public void setSessionTimeout(int sessionTimeout)
+	{
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	public int getSessionTimeout()
+	{
+		return sessionTimeout;
+	}
+
+	/**
+	 * @return the number of handshakes completed on sockets of this factory
+	 */
+	public long getHandshakeCount()
+	{
+		return handshakes.get();
+	}
+
+	/**
+	 * @return the number of those handshakes that resumed a cached session
+	 */
+	public long getResumedHandshakeCount()
+	{
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * @return the total time spent in handshakes, in milliseconds
+	 */
+	public long getTotalHandshakeTime()
+	{
+		return handshakeMillis.get();
+	}
+
+	/**
+	 * @return the longest of those times, in milliseconds
+	 */
+	public long getMaxHandshakeTime()
+	{
+		return maxHandshakeMillis.get();
+	}
+
+	/**
+	 * Runs the handshake of the (connected) socket right away and records
+	 * how long it took and whether a cached session was resumed, which is
+	 * the case if the session is older than the handshake.
+	 * 
+	 * @param timeout
+	 *            read timeout during the handshake in milliseconds, 0 for none
+	 */
+	private Socket handshake(Socket socket, int timeout) throws IOException
+	{
+		if (!(socket instanceof SSLSocket))
+			return socket;
+		SSLSocket sslSocket = (SSLSocket) socket;
+		int soTimeout = sslSocket.getSoTimeout();
+		long start = System.currentTimeMillis();
+		try
+		{
+			if (timeout > 0)
+				sslSocket.setSoTimeout(timeout);
+			sslSocket.startHandshake();
+			sslSocket.setSoTimeout(soTimeout);
+		} catch (IOException e)
 		{
-			this.sslcontext = createSSLContext();
+			sslSocket.close();
+			throw e;
 		}
-		return this.sslcontext;
+		long millis = System.currentTimeMillis() - start;
+		handshakes.incrementAndGet();
+		if (sslSocket.getSession().getCreationTime() < start)
+			resumedHandshakes.incrementAndGet();
+		handshakeMillis.addAndGet(millis);
+		long max = maxHandshakeMillis.get();
+		while (millis > max && !maxHandshakeMillis.compareAndSet(max, millis))
+			max = maxHandshakeMillis.get();
+		return socket;
 	}
 
 	/**
@@ -327,8 +492,8 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 				.getSocketFactory();
 		if (timeout == 0)
 		{
-			return socketfactory.createSocket(host, port,
-					localAddress, localPort);
+			return handshake(socketfactory.createSocket(host, port,
+					localAddress, localPort), 0);
 		} else
 		{
 			Socket socket = socketfactory.createSocket();
@@ -338,7 +503,7 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 					port);
 			socket.bind(localaddr);
 			socket.connect(remoteaddr, timeout);
-			return socket;
+			return handshake(socket, timeout);
 		}
 	}
 
@@ -349,8 +514,8 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 			InetAddress clientHost, int clientPort)
 			throws IOException, UnknownHostException
 	{
-		return getSSLContext().getSocketFactory().createSocket(host,
-				port, clientHost, clientPort);
+		return handshake(getSSLContext().getSocketFactory().createSocket(host,
+				port, clientHost, clientPort), 0);
 	}
 
 	/**
@@ -359,8 +524,8 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 	public Socket createSocket(String host, int port) throws IOException,
 			UnknownHostException
 	{
-		return getSSLContext().getSocketFactory().createSocket(host,
-				port);
+		return handshake(getSSLContext().getSocketFactory().createSocket(host,
+				port), 0);
 	}
 
 	/**
@@ -370,8 +535,8 @@ public class AuthSSLProtocolSocketFactory implements SecureProtocolSocketFactory
 			boolean autoClose) throws IOException,
 			UnknownHostException
 	{
-		return getSSLContext().getSocketFactory().createSocket(socket,
-				host, port, autoClose);
+		return handshake(getSSLContext().getSocketFactory().createSocket(socket,
+				host, port, autoClose), 0);
 	}
 	
 	public static class DummyTrustManager implements X509TrustManager
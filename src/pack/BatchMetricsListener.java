@@ -0,0 +1,479 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.listener;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.batch.core.ChunkListener;
+import org.springframework.batch.core.ItemReadListener;
+import org.springframework.batch.core.ItemWriteListener;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobExecutionListener;
+import org.springframework.batch.core.SkipListener;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
+import org.springframework.batch.repeat.ExitStatus;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Listener collecting throughput and latency figures for jobs and steps in
+ * {@link LatencyHistogram}s. Register it with the job (as a
+ * {@link JobExecutionListener}) and with every step that should be measured
+ * (as step, chunk, read, write and skip listener); per step it records
+ * <ul>
+ * <li>step and chunk durations,</li>
+ * <li>post-write latency, measured from the end of the last write of a
+ * chunk to the end of the chunk; this covers what happens between writing
+ * and committing (e.g. stream updates), not the commit itself, which only
+ * follows the chunk callbacks,</li>
+ * <li>queue wait, i.e. the time between the start time the step execution
+ * was given and the step actually starting (non-zero for partitions and
+ * asynchronously launched jobs),</li>
+ * <li>read, write and skip counts, reported as rates per second of step
+ * execution time.</li>
+ * </ul>
+ * The listener is annotated for the Spring JMX exporter, so exporting it with
+ * an <code>MBeanExporter</code> using an
+ * <code>AnnotationMBeanExporter</code>/<code>MetadataMBeanInfoAssembler</code>
+ * makes all figures queryable through JMX. All recording is lock-free.
+ * <p>
+ * Chunk and item callbacks carry no step execution, so they are attributed to
+ * the innermost step running on the current thread; steps running nested on
+ * the same thread (e.g. partitions run synchronously) are tracked separately
+ * per step execution. One instance can be shared by any number of jobs and
+ * steps.
+ */
+@ManagedResource(description = "Spring Batch job and step metrics")
+public class BatchMetricsListener implements JobExecutionListener, StepExecutionListener, ChunkListener,
+		ItemReadListener, ItemWriteListener, SkipListener {
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	private final ConcurrentMap<String, StepMetrics> steps = new ConcurrentHashMap<String, StepMetrics>();
+
+	private final ConcurrentMap<Long, Long> jobStartTimes = new ConcurrentHashMap<Long, Long>();
+
+	private final LatencyHistogram jobDurations = new LatencyHistogram();
+
+	private final AtomicLong failedJobs = new AtomicLong();
+
+	/**
+	 * The steps running on each thread, innermost first.
+	 */
+	private final ThreadLocal<LinkedList<StepContext>> running = new ThreadLocal<LinkedList<StepContext>>() {
+		protected LinkedList<StepContext> initialValue() {
+			return new LinkedList<StepContext>();
+		}
+	};
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.JobExecutionListener#beforeJob(org.springframework.batch.core.JobExecution)
+	 */
+	public void beforeJob(JobExecution jobExecution) {
+		if (jobExecution.getId() != null) {
+			jobStartTimes.put(jobExecution.getId(), new Long(System.nanoTime()));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.JobExecutionListener#afterJob(org.springframework.batch.core.JobExecution)
+	 */
+	public void afterJob(JobExecution jobExecution) {
+		recordJobEnd(jobExecution);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.JobExecutionListener#onError(org.springframework.batch.core.JobExecution,
+	 * java.lang.Throwable)
+	 */
+	public void onError(JobExecution jobExecution, Throwable e) {
+		failedJobs.incrementAndGet();
+		recordJobEnd(jobExecution);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.JobExecutionListener#onInterrupt(org.springframework.batch.core.JobExecution)
+	 */
+	public void onInterrupt(JobExecution jobExecution) {
+		recordJobEnd(jobExecution);
+	}
+
+	private void recordJobEnd(JobExecution jobExecution) {
+		Long start = jobExecution.getId() == null ? null : jobStartTimes.remove(jobExecution.getId());
+		if (start != null) {
+			jobDurations.record(System.nanoTime() - start.longValue());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.StepExecutionListener#beforeStep(org.springframework.batch.core.StepExecution)
+	 */
+	public void beforeStep(StepExecution stepExecution) {
+		StepMetrics metrics = getOrCreate(stepExecution.getStepName());
+		if (stepExecution.getStartTime() != null) {
+			long waitMillis = System.currentTimeMillis() - stepExecution.getStartTime().getTime();
+			metrics.queueWait.record(Math.max(0, waitMillis) * NANOS_PER_MILLI);
+		}
+		running.get().addFirst(new StepContext(stepExecution, metrics, System.nanoTime()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.StepExecutionListener#afterStep(org.springframework.batch.core.StepExecution)
+	 */
+	public ExitStatus afterStep(StepExecution stepExecution) {
+		endStep(stepExecution, false);
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.StepExecutionListener#onErrorInStep(org.springframework.batch.core.StepExecution,
+	 * java.lang.Throwable)
+	 */
+	public ExitStatus onErrorInStep(StepExecution stepExecution, Throwable e) {
+		endStep(stepExecution, true);
+		return null;
+	}
+
+	private void endStep(StepExecution stepExecution, boolean failed) {
+		StepContext context = null;
+		LinkedList<StepContext> contexts = running.get();
+		for (Iterator<StepContext> iterator = contexts.iterator(); iterator.hasNext();) {
+			StepContext candidate = iterator.next();
+			if (candidate.stepExecution == stepExecution) {
+				iterator.remove();
+				context = candidate;
+				break;
+			}
+		}
+		if (contexts.isEmpty()) {
+			running.remove();
+		}
+		if (context == null) {
+			return;
+		}
+		long duration = System.nanoTime() - context.stepStart;
+		context.metrics.stepDurations.record(duration);
+		context.metrics.activeNanos.addAndGet(duration);
+		if (failed) {
+			context.metrics.failures.incrementAndGet();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ChunkListener#beforeChunk()
+	 */
+	public void beforeChunk() {
+		StepContext context = current();
+		if (context != null) {
+			context.chunkStart = System.nanoTime();
+			context.lastWriteEnd = 0;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ChunkListener#afterChunk()
+	 */
+	public void afterChunk() {
+		StepContext context = current();
+		if (context == null || context.chunkStart == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		context.metrics.chunkDurations.record(now - context.chunkStart);
+		if (context.lastWriteEnd != 0) {
+			context.metrics.postWriteLatencies.record(now - context.lastWriteEnd);
+		}
+		context.chunkStart = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ItemReadListener#beforeRead()
+	 */
+	public void beforeRead() {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ItemReadListener#afterRead(java.lang.Object)
+	 */
+	public void afterRead(Object item) {
+		StepContext context = current();
+		if (context != null && item != null) {
+			context.metrics.reads.incrementAndGet();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ItemReadListener#onReadError(java.lang.Exception)
+	 */
+	public void onReadError(Exception ex) {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ItemWriteListener#beforeWrite(java.lang.Object)
+	 */
+	public void beforeWrite(Object item) {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ItemWriteListener#afterWrite(java.lang.Object)
+	 */
+	public void afterWrite(Object item) {
+		StepContext context = current();
+		if (context != null) {
+			context.metrics.writes.incrementAndGet();
+			context.lastWriteEnd = System.nanoTime();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.ItemWriteListener#onWriteError(java.lang.Exception,
+	 * java.lang.Object)
+	 */
+	public void onWriteError(Exception ex, Object item) {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.SkipListener#onSkipInRead(java.lang.Throwable)
+	 */
+	public void onSkipInRead(Throwable t) {
+		countSkip();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.SkipListener#onSkipInWrite(java.lang.Object,
+	 * java.lang.Throwable)
+	 */
+	public void onSkipInWrite(Object item, Throwable t) {
+		countSkip();
+	}
+
+	private void countSkip() {
+		StepContext context = current();
+		if (context != null) {
+			context.metrics.skips.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record time spent waiting for execution outside of a step, e.g. by a
+	 * job launcher that queues executions before running them.
+	 *
+	 * @param name the name under which to record the wait (a step or job name)
+	 * @param waitNanos the wait time in nanoseconds
+	 */
+	public void recordQueueWait(String name, long waitNanos) {
+		getOrCreate(name).queueWait.record(waitNanos);
+	}
+
+	/**
+	 * @return the names of all steps that have been measured, sorted
+	 */
+	@ManagedAttribute(description = "Names of the measured steps")
+	public String[] getStepNames() {
+		Set<String> names = new TreeSet<String>(steps.keySet());
+		return names.toArray(new String[names.size()]);
+	}
+
+	@ManagedAttribute(description = "Number of jobs measured")
+	public long getJobCount() {
+		return jobDurations.getCount();
+	}
+
+	@ManagedAttribute(description = "Number of jobs that ended with an error")
+	public long getFailedJobCount() {
+		return failedJobs.get();
+	}
+
+	@ManagedOperation(description = "Job duration percentile in milliseconds")
+	public double getJobDurationMillis(double percentile) {
+		return toMillis(jobDurations.getPercentile(percentile));
+	}
+
+	@ManagedOperation(description = "Number of executions of the given step")
+	public long getStepCount(String stepName) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : metrics.stepDurations.getCount();
+	}
+
+	@ManagedOperation(description = "Number of failed executions of the given step")
+	public long getStepFailureCount(String stepName) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : metrics.failures.get();
+	}
+
+	@ManagedOperation(description = "Step duration percentile in milliseconds")
+	public double getStepDurationMillis(String stepName, double percentile) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : toMillis(metrics.stepDurations.getPercentile(percentile));
+	}
+
+	@ManagedOperation(description = "Chunk duration percentile in milliseconds")
+	public double getChunkDurationMillis(String stepName, double percentile) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : toMillis(metrics.chunkDurations.getPercentile(percentile));
+	}
+
+	@ManagedOperation(description = "Percentile of the time from the last write to the end of a chunk in milliseconds")
+	public double getPostWriteLatencyMillis(String stepName, double percentile) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : toMillis(metrics.postWriteLatencies.getPercentile(percentile));
+	}
+
+	@ManagedOperation(description = "Queue wait percentile in milliseconds")
+	public double getQueueWaitMillis(String stepName, double percentile) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : toMillis(metrics.queueWait.getPercentile(percentile));
+	}
+
+	@ManagedOperation(description = "Items read per second of step execution time")
+	public double getReadRate(String stepName) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : metrics.rate(metrics.reads);
+	}
+
+	@ManagedOperation(description = "Items written per second of step execution time")
+	public double getWriteRate(String stepName) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : metrics.rate(metrics.writes);
+	}
+
+	@ManagedOperation(description = "Items skipped per second of step execution time")
+	public double getSkipRate(String stepName) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? 0 : metrics.rate(metrics.skips);
+	}
+
+	/**
+	 * Direct access to the duration histogram of a step, for callers that do
+	 * not go through JMX.
+	 *
+	 * @param stepName the name of the step
+	 * @return the histogram or null if the step was never measured
+	 */
+	public LatencyHistogram getStepDurations(String stepName) {
+		StepMetrics metrics = steps.get(stepName);
+		return metrics == null ? null : metrics.stepDurations;
+	}
+
+	@ManagedOperation(description = "Forget all recorded figures")
+	public void reset() {
+		steps.clear();
+		jobStartTimes.clear();
+		jobDurations.reset();
+		failedJobs.set(0);
+	}
+
+	/**
+	 * @return the innermost step running on the current thread, or null
+	 */
+	private StepContext current() {
+		LinkedList<StepContext> contexts = running.get();
+		return contexts.isEmpty() ? null : contexts.getFirst();
+	}
+
+	private StepMetrics getOrCreate(String stepName) {
+		StepMetrics metrics = steps.get(stepName);
+		if (metrics == null) {
+			StepMetrics created = new StepMetrics();
+			metrics = steps.putIfAbsent(stepName, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	private static double toMillis(long nanos) {
+		return (double) nanos / NANOS_PER_MILLI;
+	}
+
+	private static class StepMetrics {
+
+		private final LatencyHistogram stepDurations = new LatencyHistogram();
+
+		private final LatencyHistogram chunkDurations = new LatencyHistogram();
+
+		private final LatencyHistogram postWriteLatencies = new LatencyHistogram();
+
+		private final LatencyHistogram queueWait = new LatencyHistogram();
+
+		private final AtomicLong reads = new AtomicLong();
+
+		private final AtomicLong writes = new AtomicLong();
+
+		private final AtomicLong skips = new AtomicLong();
+
+		private final AtomicLong failures = new AtomicLong();
+
+		private final AtomicLong activeNanos = new AtomicLong();
+
+		private double rate(AtomicLong counter) {
+			long nanos = activeNanos.get();
+			return nanos == 0 ? 0 : counter.get() * 1e9 / nanos;
+		}
+
+	}
+
+	/**
+	 * State of a step execution running on the current thread.
+	 */
+	private static class StepContext {
+
+		private final StepExecution stepExecution;
+
+		private final StepMetrics metrics;
+
+		private final long stepStart;
+
+		private long chunkStart;
+
+		private long lastWriteEnd;
+
+		private StepContext(StepExecution stepExecution, StepMetrics metrics, long stepStart) {
+			this.stepExecution = stepExecution;
+			this.metrics = metrics;
+			this.stepStart = stepStart;
+		}
+
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.listener;
+
+import junit.framework.TestCase;
+
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+
+/**
+ * Tests for {@link BatchMetricsListener} driven directly through its
+ * callbacks.
+ */
+public class BatchMetricsListenerTests extends TestCase {
+
+	private BatchMetricsListener listener = new BatchMetricsListener();
+
+	private JobExecution jobExecution = new JobExecution(new JobInstance(new Long(1), new JobParameters(), "job"),
+			new Long(1));
+
+	public void testNestedStepsOnSameThread() throws Exception {
+		StepExecution outer = new StepExecution("outer", jobExecution, null);
+		StepExecution inner = new StepExecution("outer:partition0", jobExecution, null);
+
+		listener.beforeStep(outer);
+		listener.beforeStep(inner);
+		listener.afterRead("item");
+		listener.afterStep(inner);
+		listener.afterRead("item");
+		listener.onErrorInStep(outer, new RuntimeException("Foo!"));
+
+		assertEquals(1, listener.getStepCount("outer"));
+		assertEquals(1, listener.getStepFailureCount("outer"));
+		assertEquals(1, listener.getStepCount("outer:partition0"));
+		assertEquals(0, listener.getStepFailureCount("outer:partition0"));
+		assertTrue(listener.getReadRate("outer") > 0);
+		assertTrue(listener.getReadRate("outer:partition0") > 0);
+	}
+
+	public void testResetForgetsRunningJobs() throws Exception {
+		listener.beforeJob(jobExecution);
+		listener.reset();
+		listener.afterJob(jobExecution);
+		assertEquals(0, listener.getJobCount());
+	}
+
+}
@@ -0,0 +1,231 @@
+package de.fzj.unicore.uas.security;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.codehaus.xfire.MessageContext;
+import org.codehaus.xfire.fault.XFireFault;
+
+import de.fzj.unicore.uas.UAS;
+import eu.unicore.security.SecurityTokens;
+
+/**
+ * {@link PlainWSAuthZHandler} that remembers its decisions for a while.
+ * <p>
+ * Decisions are cached per service, operation, effective user and consignor;
+ * plain web services have no WS-Resource, so there is no resource to key on
+ * as well. An entry is used
+ * until its time to live expires or the access control properties of the
+ * service (<code>UAS_CHECKACCESS</code> and
+ * <code>UAS_CHECKACCESS.&lt;service&gt;</code>) change, whichever happens
+ * first; {@link #invalidate()} drops all entries at once, e.g. after an ACL
+ * was edited. Both granted and denied access are cached; for a denial a new
+ * fault with the code and reason of the full evaluation is thrown.
+ */
+public class CachingPlainWSAuthZHandler extends PlainWSAuthZHandler {
+
+	public static final long DEFAULT_TTL = 60000;
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private final ConcurrentMap<DecisionKey, Decision> decisions = new ConcurrentHashMap<DecisionKey, Decision>();
+
+	private final long ttl;
+
+	private final int maxEntries;
+
+	private final AtomicLong granted = new AtomicLong();
+
+	private final AtomicLong denied = new AtomicLong();
+
+	private final AtomicLong cachedGranted = new AtomicLong();
+
+	private final AtomicLong cachedDenied = new AtomicLong();
+
+	public CachingPlainWSAuthZHandler() {
+		this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param ttl milliseconds a decision is reused
+	 * @param maxEntries number of decisions kept before the cache is emptied
+	 */
+	public CachingPlainWSAuthZHandler(long ttl, int maxEntries) {
+		super();
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	public void invoke(MessageContext ctx) throws Exception {
+		String service = ctx.getService().getSimpleName();
+		SecurityTokens tokens = getTokens(ctx);
+		DecisionKey key = new DecisionKey(service,
+				ctx.getExchange().getOperation().getName(),
+				tokens == null ? null : tokens.getEffectiveUserName(),
+				tokens == null ? null : tokens.getConsignorName());
+		String settings = getSettings(service);
+		long now = System.currentTimeMillis();
+
+		Decision cached = decisions.get(key);
+		if (cached != null && cached.isValid(now, settings)) {
+			if (!cached.denied) {
+				cachedGranted.incrementAndGet();
+				return;
+			}
+			cachedDenied.incrementAndGet();
+			throw new XFireFault(cached.reason, cached.faultCode);
+		}
+
+		try {
+			super.invoke(ctx);
+			granted.incrementAndGet();
+			put(key, new Decision(now + ttl, settings));
+		} catch (XFireFault f) {
+			denied.incrementAndGet();
+			put(key, new Decision(now + ttl, settings, f));
+			throw f;
+		}
+	}
+
+	private void put(DecisionKey key, Decision decision) {
+		if (decisions.size() >= maxEntries) {
+			decisions.clear();
+		}
+		decisions.put(key, decision);
+	}
+
+	private static SecurityTokens getTokens(MessageContext ctx) {
+		Object tokens = ctx.getProperty(SecurityTokens.KEY);
+		return tokens instanceof SecurityTokens ? (SecurityTokens) tokens : null;
+	}
+
+	/**
+	 * The properties the decision depends on, so that changing them makes
+	 * cached decisions invalid.
+	 */
+	private static String getSettings(String service) {
+		return UAS.getProperty(UASSecurityProperties.UAS_CHECKACCESS) + "|"
+				+ UAS.getProperty(UASSecurityProperties.UAS_CHECKACCESS + "." + service);
+	}
+
+	/**
+	 * Drops all cached decisions.
+	 */
+	public void invalidate() {
+		decisions.clear();
+	}
+
+	/**
+	 * @return calls granted after a full evaluation
+	 */
+	public long getGrantedCount() {
+		return granted.get();
+	}
+
+	/**
+	 * @return calls denied after a full evaluation
+	 */
+	public long getDeniedCount() {
+		return denied.get();
+	}
+
+	/**
+	 * @return calls granted from the cache
+	 */
+	public long getCachedGrantedCount() {
+		return cachedGranted.get();
+	}
+
+	/**
+	 * @return calls denied from the cache
+	 */
+	public long getCachedDeniedCount() {
+		return cachedDenied.get();
+	}
+
+	private static class Decision {
+
+		final long expires;
+
+		final String settings;
+
+		final boolean denied;
+
+		final String reason;
+
+		final QName faultCode;
+
+		/**
+		 * Access granted.
+		 */
+		Decision(long expires, String settings) {
+			this.expires = expires;
+			this.settings = settings;
+			this.denied = false;
+			this.reason = null;
+			this.faultCode = null;
+		}
+
+		/**
+		 * Access denied; only the reason and code of the fault are kept, as
+		 * a fault instance must not be thrown to more than one caller.
+		 */
+		Decision(long expires, String settings, XFireFault fault) {
+			this.expires = expires;
+			this.settings = settings;
+			this.denied = true;
+			this.reason = fault.getMessage();
+			this.faultCode = fault.getFaultCode();
+		}
+
+		boolean isValid(long now, String currentSettings) {
+			return now < expires && settings.equals(currentSettings);
+		}
+	}
+
+	private static class DecisionKey {
+
+		private final String service;
+
+		private final String operation;
+
+		private final String caller;
+
+		private final String consignor;
+
+		DecisionKey(String service, String operation, String caller,
+				String consignor) {
+			this.service = service;
+			this.operation = operation;
+			this.caller = caller;
+			this.consignor = consignor;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof DecisionKey)) {
+				return false;
+			}
+			DecisionKey other = (DecisionKey) o;
+			return eq(service, other.service) && eq(operation, other.operation)
+					&& eq(caller, other.caller)
+					&& eq(consignor, other.consignor);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = service == null ? 0 : service.hashCode();
+			h = 31 * h + (operation == null ? 0 : operation.hashCode());
+			h = 31 * h + (caller == null ? 0 : caller.hashCode());
+			return 31 * h + (consignor == null ? 0 : consignor.hashCode());
+		}
+
+		private static boolean eq(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
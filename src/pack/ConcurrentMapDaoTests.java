@@ -0,0 +1,187 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.job.JobSupport;
+import org.springframework.batch.core.step.StepSupport;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+/**
+ * Tests for the concurrent map DAOs: index lookups, copy semantics and the
+ * optimistic version check.
+ */
+public class ConcurrentMapDaoTests extends TestCase {
+
+	private ConcurrentMapJobInstanceDao jobInstanceDao = new ConcurrentMapJobInstanceDao();
+
+	private ConcurrentMapJobExecutionDao jobExecutionDao = new ConcurrentMapJobExecutionDao();
+
+	private ConcurrentMapStepExecutionDao stepExecutionDao = new ConcurrentMapStepExecutionDao();
+
+	private JobSupport job = new JobSupport("testJob");
+
+	private JobParameters jobParameters = new JobParametersBuilder().addString("key", "value").toJobParameters();
+
+	private JobInstance jobInstance;
+
+	protected void setUp() throws Exception {
+		jobInstance = jobInstanceDao.createJobInstance(job, jobParameters);
+	}
+
+	public void testJobInstanceLookup() throws Exception {
+		assertEquals(jobInstance, jobInstanceDao.getJobInstance(job, jobParameters));
+		assertNull(jobInstanceDao.getJobInstance(job, new JobParameters()));
+		assertNull(jobInstanceDao.getJobInstance(new JobSupport("otherJob"), jobParameters));
+	}
+
+	public void testCreateDuplicateJobInstance() throws Exception {
+		try {
+			jobInstanceDao.createJobInstance(job, jobParameters);
+			fail();
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testFindJobExecutionsInOrder() throws Exception {
+		JobExecution first = new JobExecution(jobInstance);
+		JobExecution second = new JobExecution(jobInstance);
+		jobExecutionDao.saveJobExecution(first);
+		jobExecutionDao.saveJobExecution(second);
+
+		List executions = jobExecutionDao.findJobExecutions(jobInstance);
+		assertEquals(2, executions.size());
+		assertEquals(first.getId(), ((JobExecution) executions.get(0)).getId());
+		assertEquals(second.getId(), jobExecutionDao.getLastJobExecution(jobInstance).getId());
+		assertEquals(2, jobExecutionDao.getJobExecutionCount(jobInstance));
+	}
+
+	public void testReadReturnsCopy() throws Exception {
+		JobExecution jobExecution = new JobExecution(jobInstance);
+		jobExecutionDao.saveJobExecution(jobExecution);
+
+		JobExecution read = jobExecutionDao.getLastJobExecution(jobInstance);
+		assertNotSame(jobExecution, read);
+		read.setStatus(BatchStatus.FAILED);
+		assertFalse(BatchStatus.FAILED.equals(jobExecutionDao.getLastJobExecution(jobInstance).getStatus()));
+	}
+
+	public void testUpdateWithStaleVersion() throws Exception {
+		JobExecution jobExecution = new JobExecution(jobInstance);
+		jobExecutionDao.saveJobExecution(jobExecution);
+		JobExecution stale = jobExecutionDao.getLastJobExecution(jobInstance);
+
+		jobExecutionDao.updateJobExecution(jobExecution);
+		try {
+			jobExecutionDao.updateJobExecution(stale);
+			fail();
+		}
+		catch (OptimisticLockingFailureException e) {
+			// expected
+		}
+	}
+
+	public void testStepExecutionLookupAndContext() throws Exception {
+		JobExecution jobExecution = new JobExecution(jobInstance);
+		jobExecutionDao.saveJobExecution(jobExecution);
+		StepSupport step = new StepSupport("step");
+		StepExecution stepExecution = new StepExecution(step.getName(), jobExecution, null);
+		stepExecution.getExecutionContext().putString("key", "value");
+		stepExecutionDao.saveStepExecution(stepExecution);
+		stepExecutionDao.saveOrUpdateExecutionContext(stepExecution);
+
+		StepExecution read = stepExecutionDao.getStepExecution(jobExecution, step);
+		assertEquals(stepExecution.getId(), read.getId());
+		assertEquals("value", stepExecutionDao.findExecutionContext(read).getString("key"));
+		assertNull(stepExecutionDao.getStepExecution(jobExecution, new StepSupport("other")));
+	}
+
+	public void testFailedCallbackStoresNothing() throws Exception {
+		final boolean[] failing = new boolean[1];
+		ConcurrentMapJobExecutionDao dao = new ConcurrentMapJobExecutionDao() {
+			protected void stored(JobExecution jobExecution) {
+				if (failing[0]) {
+					throw new IllegalStateException("journal failed");
+				}
+			}
+		};
+		JobExecution jobExecution = new JobExecution(jobInstance);
+		dao.saveJobExecution(jobExecution);
+		Integer version = jobExecution.getVersion();
+
+		failing[0] = true;
+		jobExecution.setStatus(BatchStatus.FAILED);
+		try {
+			dao.updateJobExecution(jobExecution);
+			fail();
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(version, jobExecution.getVersion());
+		assertFalse(BatchStatus.FAILED.equals(dao.getLastJobExecution(jobInstance).getStatus()));
+
+		JobExecution unsaved = new JobExecution(jobInstance);
+		try {
+			dao.saveJobExecution(unsaved);
+			fail();
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertNull(unsaved.getId());
+		assertEquals(1, dao.getJobExecutionCount(jobInstance));
+
+		failing[0] = false;
+		dao.updateJobExecution(jobExecution);
+		assertEquals(BatchStatus.FAILED, dao.getLastJobExecution(jobInstance).getStatus());
+	}
+
+	public void testConcurrentSaves() throws Exception {
+		final int threads = 8;
+		final int perThread = 100;
+		List workers = new ArrayList();
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					for (int j = 0; j < perThread; j++) {
+						jobExecutionDao.saveJobExecution(new JobExecution(jobInstance));
+					}
+				}
+			};
+			workers.add(thread);
+			thread.start();
+		}
+		for (int i = 0; i < threads; i++) {
+			((Thread) workers.get(i)).join();
+		}
+		assertEquals(threads * perThread, jobExecutionDao.getJobExecutionCount(jobInstance));
+	}
+
+}
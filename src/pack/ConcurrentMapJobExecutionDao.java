@@ -0,0 +1,197 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.dao;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.util.Assert;
+
+/**
+ * In-memory implementation of {@link JobExecutionDao} that is safe for
+ * concurrent use. Executions are kept by id, with a secondary index from job
+ * instance id to execution ids, so the lookups done by the repository for
+ * every job and step start do not degrade as history grows.
+ * <p>
+ * Stored executions are private copies: a copy is taken when an execution is
+ * saved or updated and another one is handed out on every read, so callers
+ * can never change the stored state behind the DAO's back. Updates are
+ * guarded by an optimistic version check that is serialized per execution id
+ * through a set of lock stripes.
+ *
+ * @see ConcurrentMapJobInstanceDao
+ * @see ConcurrentMapStepExecutionDao
+ */
+public class ConcurrentMapJobExecutionDao implements JobExecutionDao {
+
+	private final ConcurrentMap<Long, JobExecution> executionsById = new ConcurrentHashMap<Long, JobExecution>();
+
+	private final ConcurrentMap<Long, NavigableSet<Long>> executionIdsByInstanceId = new ConcurrentHashMap<Long, NavigableSet<Long>>();
+
+	private final AtomicLong currentId = new AtomicLong();
+
+	private final LockStripes locks = new LockStripes();
+
+	/**
+	 * Remove all job executions.
+	 */
+	public void clear() {
+		executionsById.clear();
+		executionIdsByInstanceId.clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.JobExecutionDao#saveJobExecution(org.springframework.batch.core.JobExecution)
+	 */
+	public void saveJobExecution(JobExecution jobExecution) {
+		Assert.isTrue(jobExecution.getId() == null, "JobExecution is already saved");
+		Long newId = new Long(currentId.getAndIncrement());
+		// the given execution changes only once the callback succeeded
+		JobExecution copy = copy(jobExecution);
+		copy.setId(newId);
+		copy.incrementVersion();
+		stored(copy);
+		jobExecution.setId(newId);
+		jobExecution.incrementVersion();
+		executionsById.put(newId, copy);
+		executionIdsFor(jobExecution.getJobInstance().getId()).add(newId);
+	}
+
+	/**
+	 * @throws OptimisticLockingFailureException if the version of the given
+	 * execution is not the one stored
+	 * @see JobExecutionDao#updateJobExecution(JobExecution)
+	 */
+	public void updateJobExecution(JobExecution jobExecution) {
+		Long id = jobExecution.getId();
+		Assert.notNull(id, "JobExecution is expected to have an id (should be saved already)");
+
+		synchronized (locks.lockFor(id)) {
+			JobExecution persistedExecution = executionsById.get(id);
+			Assert.notNull(persistedExecution, "JobExecution must already be saved");
+			if (!persistedExecution.getVersion().equals(jobExecution.getVersion())) {
+				throw new OptimisticLockingFailureException("Attempt to update job execution id=" + id
+						+ " with wrong version (" + jobExecution.getVersion() + "), where current version is "
+						+ persistedExecution.getVersion());
+			}
+			JobExecution copy = copy(jobExecution);
+			copy.incrementVersion();
+			stored(copy);
+			jobExecution.incrementVersion();
+			executionsById.put(id, copy);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.JobExecutionDao#getJobExecutionCount(org.springframework.batch.core.JobInstance)
+	 */
+	public int getJobExecutionCount(JobInstance jobInstance) {
+		NavigableSet<Long> ids = executionIdsByInstanceId.get(jobInstance.getId());
+		return ids == null ? 0 : ids.size();
+	}
+
+	/**
+	 * @return copies of the executions of the given instance, oldest first
+	 * @see JobExecutionDao#findJobExecutions(JobInstance)
+	 */
+	public List findJobExecutions(JobInstance jobInstance) {
+		List<JobExecution> executions = new ArrayList<JobExecution>();
+		NavigableSet<Long> ids = executionIdsByInstanceId.get(jobInstance.getId());
+		if (ids != null) {
+			for (Iterator<Long> iterator = ids.iterator(); iterator.hasNext();) {
+				JobExecution execution = executionsById.get(iterator.next());
+				if (execution != null) {
+					executions.add(copy(execution));
+				}
+			}
+		}
+		return executions;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.JobExecutionDao#getLastJobExecution(org.springframework.batch.core.JobInstance)
+	 */
+	public JobExecution getLastJobExecution(JobInstance jobInstance) {
+		NavigableSet<Long> ids = executionIdsByInstanceId.get(jobInstance.getId());
+		if (ids == null || ids.isEmpty()) {
+			return null;
+		}
+		JobExecution execution = executionsById.get(ids.last());
+		return execution == null ? null : copy(execution);
+	}
+
+	/**
+	 * Callback invoked with the copy to be stored when an execution is saved
+	 * or updated, before the copy replaces the stored state. Updates of the
+	 * same execution are serialized, so the calls for one execution arrive in
+	 * version order. If it throws, nothing is stored and the given execution
+	 * keeps its id and version. Does nothing by default; subclasses
+	 * can override it to record the change elsewhere, but must not modify the
+	 * copy.
+	 *
+	 * @param jobExecution the copy to be stored
+	 */
+	protected void stored(JobExecution jobExecution) {
+	}
+
+	/**
+	 * Put back an execution that was stored before, e.g. when recovering
+	 * state from a journal. Ids handed out afterwards are larger than its id.
+	 */
+	void restore(JobExecution jobExecution) {
+		executionsById.put(jobExecution.getId(), jobExecution);
+		executionIdsFor(jobExecution.getJobInstance().getId()).add(jobExecution.getId());
+		ConcurrentMapJobInstanceDao.advanceId(currentId, jobExecution.getId());
+	}
+
+	/**
+	 * @return the stored copies of all executions, in no particular order
+	 */
+	List<JobExecution> getAll() {
+		return new ArrayList<JobExecution>(executionsById.values());
+	}
+
+	private NavigableSet<Long> executionIdsFor(Long jobInstanceId) {
+		NavigableSet<Long> ids = executionIdsByInstanceId.get(jobInstanceId);
+		if (ids == null) {
+			NavigableSet<Long> created = new ConcurrentSkipListSet<Long>();
+			ids = executionIdsByInstanceId.putIfAbsent(jobInstanceId, created);
+			if (ids == null) {
+				ids = created;
+			}
+		}
+		return ids;
+	}
+
+	private static JobExecution copy(JobExecution original) {
+		return (JobExecution) SerializationUtils.clone(original);
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.dao;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.util.Assert;
+
+/**
+ * In-memory implementation of {@link JobInstanceDao} that is safe for
+ * concurrent use. Instances are indexed by job name and then by
+ * {@link JobParameters}, so a lookup costs two hash probes no matter how many
+ * instances have been created. Unlike {@link MapJobInstanceDao} the state is
+ * held per DAO instance rather than statically.
+ *
+ * @see ConcurrentMapJobExecutionDao
+ * @see ConcurrentMapStepExecutionDao
+ */
+public class ConcurrentMapJobInstanceDao implements JobInstanceDao {
+
+	private final ConcurrentMap<String, ConcurrentMap<JobParameters, JobInstance>> instancesByJobName = new ConcurrentHashMap<String, ConcurrentMap<JobParameters, JobInstance>>();
+
+	private final AtomicLong currentId = new AtomicLong();
+
+	/**
+	 * Remove all job instances.
+	 */
+	public void clear() {
+		instancesByJobName.clear();
+	}
+
+	/**
+	 * @throws IllegalStateException if an instance already exists for the
+	 * given job and parameters
+	 * @see JobInstanceDao#createJobInstance(Job, JobParameters)
+	 */
+	public JobInstance createJobInstance(Job job, JobParameters jobParameters) {
+		Assert.notNull(job, "Job must not be null.");
+		Assert.notNull(jobParameters, "JobParameters must not be null.");
+
+		JobInstance jobInstance = new JobInstance(new Long(currentId.getAndIncrement()), jobParameters, job.getName());
+		if (instancesFor(job.getName()).putIfAbsent(jobParameters, jobInstance) != null) {
+			throw new IllegalStateException("JobInstance must not already exist");
+		}
+		try {
+			stored(jobInstance);
+		}
+		catch (RuntimeException e) {
+			instancesFor(job.getName()).remove(jobParameters, jobInstance);
+			throw e;
+		}
+		return jobInstance;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.JobInstanceDao#getJobInstance(org.springframework.batch.core.Job,
+	 * org.springframework.batch.core.JobParameters)
+	 */
+	public JobInstance getJobInstance(Job job, JobParameters jobParameters) {
+		ConcurrentMap<JobParameters, JobInstance> instances = instancesByJobName.get(job.getName());
+		return instances == null ? null : instances.get(jobParameters);
+	}
+
+	/**
+	 * Callback invoked after an instance has been stored. Does nothing by
+	 * default; subclasses can override it to record the change elsewhere. If
+	 * it throws, the instance is removed again.
+	 *
+	 * @param jobInstance the instance that was stored
+	 */
+	protected void stored(JobInstance jobInstance) {
+	}
+
+	/**
+	 * Put back an instance that was stored before, e.g. when recovering state
+	 * from a journal. Ids handed out afterwards are larger than its id.
+	 */
+	void restore(JobInstance jobInstance) {
+		instancesFor(jobInstance.getJobName()).put(jobInstance.getJobParameters(), jobInstance);
+		advanceId(currentId, jobInstance.getId());
+	}
+
+	/**
+	 * @return all stored instances, in no particular order
+	 */
+	List<JobInstance> getAll() {
+		List<JobInstance> all = new ArrayList<JobInstance>();
+		for (Iterator<ConcurrentMap<JobParameters, JobInstance>> iterator = instancesByJobName.values().iterator(); iterator
+				.hasNext();) {
+			all.addAll(iterator.next().values());
+		}
+		return all;
+	}
+
+	static void advanceId(AtomicLong currentId, Long restoredId) {
+		long next = restoredId.longValue() + 1;
+		long current = currentId.get();
+		while (current < next && !currentId.compareAndSet(current, next)) {
+			current = currentId.get();
+		}
+	}
+
+	private ConcurrentMap<JobParameters, JobInstance> instancesFor(String jobName) {
+		ConcurrentMap<JobParameters, JobInstance> instances = instancesByJobName.get(jobName);
+		if (instances == null) {
+			ConcurrentMap<JobParameters, JobInstance> created = new ConcurrentHashMap<JobParameters, JobInstance>();
+			instances = instancesByJobName.putIfAbsent(jobName, created);
+			if (instances == null) {
+				instances = created;
+			}
+		}
+		return instances;
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.util.Assert;
+
+/**
+ * In-memory implementation of {@link StepExecutionDao} that is safe for
+ * concurrent use. Step executions are kept by id and indexed by job execution
+ * id and step name, so {@link #getStepExecution(JobExecution, Step)} is a
+ * constant time lookup. Execution contexts are stored separately, by step
+ * execution id.
+ * <p>
+ * As in {@link ConcurrentMapJobExecutionDao} all stored state is copied on
+ * write and on read, and updates go through a lock-striped optimistic version
+ * check.
+ *
+ * @see ConcurrentMapJobInstanceDao
+ */
+public class ConcurrentMapStepExecutionDao implements StepExecutionDao {
+
+	private final ConcurrentMap<Long, StepExecution> stepExecutionsById = new ConcurrentHashMap<Long, StepExecution>();
+
+	private final ConcurrentMap<Long, ConcurrentMap<String, Long>> stepExecutionIdsByJobExecutionId = new ConcurrentHashMap<Long, ConcurrentMap<String, Long>>();
+
+	private final ConcurrentMap<Long, ExecutionContext> contextsByStepExecutionId = new ConcurrentHashMap<Long, ExecutionContext>();
+
+	private final AtomicLong currentId = new AtomicLong();
+
+	private final LockStripes locks = new LockStripes();
+
+	/**
+	 * Remove all step executions and execution contexts.
+	 */
+	public void clear() {
+		stepExecutionsById.clear();
+		stepExecutionIdsByJobExecutionId.clear();
+		contextsByStepExecutionId.clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.StepExecutionDao#saveStepExecution(org.springframework.batch.core.StepExecution)
+	 */
+	public void saveStepExecution(StepExecution stepExecution) {
+		Assert.isTrue(stepExecution.getId() == null, "StepExecution is already saved");
+		Long newId = new Long(currentId.getAndIncrement());
+		// the given execution changes only once the callback succeeded
+		StepExecution copy = copy(stepExecution);
+		copy.setId(newId);
+		copy.incrementVersion();
+		stored(copy);
+		stepExecution.setId(newId);
+		stepExecution.incrementVersion();
+		stepExecutionsById.put(newId, copy);
+		stepExecutionIdsFor(stepExecution.getJobExecution().getId()).put(stepExecution.getStepName(), newId);
+	}
+
+	/**
+	 * @throws OptimisticLockingFailureException if the version of the given
+	 * execution is not the one stored
+	 * @see StepExecutionDao#updateStepExecution(StepExecution)
+	 */
+	public void updateStepExecution(StepExecution stepExecution) {
+		Long id = stepExecution.getId();
+		Assert.notNull(id, "StepExecution is expected to have an id (should be saved already)");
+
+		synchronized (locks.lockFor(id)) {
+			StepExecution persistedExecution = stepExecutionsById.get(id);
+			Assert.notNull(persistedExecution, "StepExecution must already be saved");
+			if (!persistedExecution.getVersion().equals(stepExecution.getVersion())) {
+				throw new OptimisticLockingFailureException("Attempt to update step execution id=" + id
+						+ " with wrong version (" + stepExecution.getVersion() + "), where current version is "
+						+ persistedExecution.getVersion());
+			}
+			StepExecution copy = copy(stepExecution);
+			copy.incrementVersion();
+			stored(copy);
+			stepExecution.incrementVersion();
+			stepExecutionsById.put(id, copy);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.StepExecutionDao#getStepExecution(org.springframework.batch.core.JobExecution,
+	 * org.springframework.batch.core.Step)
+	 */
+	public StepExecution getStepExecution(JobExecution jobExecution, Step step) {
+		ConcurrentMap<String, Long> ids = stepExecutionIdsByJobExecutionId.get(jobExecution.getId());
+		if (ids == null) {
+			return null;
+		}
+		Long id = ids.get(step.getName());
+		StepExecution stepExecution = id == null ? null : stepExecutionsById.get(id);
+		return stepExecution == null ? null : copy(stepExecution);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.StepExecutionDao#findExecutionContext(org.springframework.batch.core.StepExecution)
+	 */
+	public ExecutionContext findExecutionContext(StepExecution stepExecution) {
+		ExecutionContext executionContext = contextsByStepExecutionId.get(stepExecution.getId());
+		return executionContext == null ? new ExecutionContext() : copy(executionContext);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.repository.dao.StepExecutionDao#saveOrUpdateExecutionContext(org.springframework.batch.core.StepExecution)
+	 */
+	public void saveOrUpdateExecutionContext(StepExecution stepExecution) {
+		Assert.notNull(stepExecution.getId(), "StepExecution is expected to have an id (should be saved already)");
+		Long id = stepExecution.getId();
+		synchronized (locks.lockFor(id)) {
+			ExecutionContext copy = copy(stepExecution.getExecutionContext());
+			stored(id, copy);
+			contextsByStepExecutionId.put(id, copy);
+		}
+	}
+
+	/**
+	 * Callback invoked with the copy to be stored when a step execution is
+	 * saved or updated, before the copy replaces the stored state. Updates of
+	 * the same execution are serialized, so the calls for one execution arrive
+	 * in version order. If it throws, nothing is stored and the given
+	 * execution keeps its id and version. Does nothing by default; subclasses
+	 * must not modify the copy.
+	 *
+	 * @param stepExecution the copy to be stored
+	 */
+	protected void stored(StepExecution stepExecution) {
+	}
+
+	/**
+	 * Callback invoked with the copy to be stored when an execution context
+	 * is saved, before it replaces the stored context. If it throws, nothing
+	 * is stored. Does nothing by default.
+	 *
+	 * @param stepExecutionId the id of the owning step execution
+	 * @param executionContext the copy to be stored
+	 */
+	protected void stored(Long stepExecutionId, ExecutionContext executionContext) {
+	}
+
+	/**
+	 * Put back a step execution that was stored before, e.g. when recovering
+	 * state from a journal. Ids handed out afterwards are larger than its id.
+	 */
+	void restore(StepExecution stepExecution) {
+		stepExecutionsById.put(stepExecution.getId(), stepExecution);
+		stepExecutionIdsFor(stepExecution.getJobExecution().getId()).put(stepExecution.getStepName(),
+				stepExecution.getId());
+		ConcurrentMapJobInstanceDao.advanceId(currentId, stepExecution.getId());
+	}
+
+	/**
+	 * Put back an execution context that was stored before.
+	 */
+	void restore(Long stepExecutionId, ExecutionContext executionContext) {
+		contextsByStepExecutionId.put(stepExecutionId, executionContext);
+	}
+
+	/**
+	 * @return the stored copies of all step executions, in no particular order
+	 */
+	List<StepExecution> getAll() {
+		return new ArrayList<StepExecution>(stepExecutionsById.values());
+	}
+
+	/**
+	 * @return the stored copies of all execution contexts by step execution id
+	 */
+	Map<Long, ExecutionContext> getAllExecutionContexts() {
+		return new HashMap<Long, ExecutionContext>(contextsByStepExecutionId);
+	}
+
+	private ConcurrentMap<String, Long> stepExecutionIdsFor(Long jobExecutionId) {
+		ConcurrentMap<String, Long> ids = stepExecutionIdsByJobExecutionId.get(jobExecutionId);
+		if (ids == null) {
+			ConcurrentMap<String, Long> created = new ConcurrentHashMap<String, Long>();
+			ids = stepExecutionIdsByJobExecutionId.putIfAbsent(jobExecutionId, created);
+			if (ids == null) {
+				ids = created;
+			}
+		}
+		return ids;
+	}
+
+	private static StepExecution copy(StepExecution original) {
+		return (StepExecution) SerializationUtils.clone(original);
+	}
+
+	private static ExecutionContext copy(ExecutionContext original) {
+		return (ExecutionContext) SerializationUtils.clone(original);
+	}
+
+}
@@ -68,6 +68,12 @@ public class ConfDefaults
 	public static final String DEF_ATTR_ASSERTION_VALIDITY = P + "saml.validityPeriod";
 	public static final int defAttrAssertionValidity = 14400;
 	
+	/** fraction of the validity period for which a signed assertion is reused, 0 disables */
+	public static final String ASSERTION_CACHE_FRACTION = P + "saml.assertionCacheFraction";
+	public static final double assertionCacheFraction = 0.5;
+	public static final String ASSERTION_CACHE_SIZE = P + "saml.assertionCacheSize";
+	public static final int assertionCacheSize = 10000;
+	
 	public static final String SAML_REQUEST_VALIDITY = P + "saml.requestValidityPeriod";
 	public static final int samlRequestValidity = 120;
 	
@@ -107,4 +113,27 @@ public class ConfDefaults
 	public static final String P_DBPROPERTIES_FILE = "db.datamapPropertiesFile";
 	public static final String DBUPDATE_PROPERTIES_FILE_DEF = "conf/db/dbUpdate/update.properties";
 	public static final String P_DBUPDATE_PROPERTIES_FILE = "db.dbUpdatePropertiesFile";
+	
+	//properties of the DB connection pool, see PooledDataSource
+	public static final String P_DBPOOL_MIN_SIZE = "db.pool.minSize";
+	public static final int DBPOOL_MIN_SIZE_DEF = 2;
+	public static final String P_DBPOOL_MAX_SIZE = "db.pool.maxSize";
+	public static final int DBPOOL_MAX_SIZE_DEF = 16;
+	/** ms a caller waits for a free connection before getting an error */
+	public static final String P_DBPOOL_MAX_WAIT = "db.pool.maxWait";
+	public static final long DBPOOL_MAX_WAIT_DEF = 10000;
+	/** empty: use Connection.isValid() */
+	public static final String P_DBPOOL_VALIDATION_QUERY = "db.pool.validationQuery";
+	public static final String DBPOOL_VALIDATION_QUERY_DEF = "";
+	/** ms a connection may stay idle before it is validated on checkout */
+	public static final String P_DBPOOL_VALIDATION_INTERVAL = "db.pool.validationInterval";
+	public static final long DBPOOL_VALIDATION_INTERVAL_DEF = 30000;
+	/** ms after which idle connections above the minimum are closed */
+	public static final String P_DBPOOL_IDLE_TIMEOUT = "db.pool.idleTimeout";
+	public static final long DBPOOL_IDLE_TIMEOUT_DEF = 300000;
+	public static final String P_DBPOOL_EVICTION_INTERVAL = "db.pool.evictionInterval";
+	public static final long DBPOOL_EVICTION_INTERVAL_DEF = 60000;
+	/** prepared statements kept open per connection, 0 disables the cache */
+	public static final String P_DBPOOL_STATEMENT_CACHE_SIZE = "db.pool.statementCacheSize";
+	public static final int DBPOOL_STATEMENT_CACHE_SIZE_DEF = 64;
 }
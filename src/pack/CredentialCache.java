@@ -0,0 +1,226 @@
+/*********************************************************************************
+ * Copyright (c) 2007, 2008 Forschungszentrum Juelich GmbH 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the disclaimer at the end. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ * 
+ * (2) Neither the name of Forschungszentrum Juelich GmbH nor the names of its 
+ * contributors may be used to endorse or promote products derived from this 
+ * software without specific prior written permission.
+ * 
+ * DISCLAIMER
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ********************************************************************************/
+package de.fzj.hila.implementation.unicore6.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the keys and certificates held in JKS keystores.
+ * Decrypting a keystore is the expensive part of creating trust delegations,
+ * so each one is loaded once and kept until its file changes (by length or
+ * modification time) or a different password is used for it.
+ * 
+ * Entries are keyed by keystore path, modification time and alias; at most
+ * {@link #MAX_ENTRIES} are kept, the least recently used ones are dropped
+ * first. Passwords are not kept, only a digest salted per entry.
+ */
+class CredentialCache
+{
+
+  static final int MAX_ENTRIES = 256;
+
+  private static final Map<String, Credential> credentials = new LinkedHashMap<String, Credential>(16, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    protected boolean removeEldestEntry(Map.Entry<String, Credential> eldest)
+    {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  /**
+   * Keystores hashing to the same lock are loaded one after the other, so
+   * that each is decrypted only once.
+   */
+  private static final Object[] locks = new Object[32];
+
+  static
+  {
+    for (int i = 0; i < locks.length; i++)
+    {
+      locks[i] = new Object();
+    }
+  }
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private CredentialCache()
+  {
+  }
+
+  /**
+   * @return the key and certificate stored under alias in keystore
+   */
+  static Credential get(File keystore, String password, String alias) throws Exception
+  {
+    File file = keystore.getAbsoluteFile();
+    String key = file.getPath() + "#" + file.lastModified() + "#" + alias;
+    Credential cached = lookup(key);
+    if (cached != null && cached.isCurrent(file, password))
+    {
+      return cached;
+    }
+    synchronized (locks[(key.hashCode() & 0x7fffffff) % locks.length])
+    {
+      // someone else may have loaded it while we waited
+      cached = lookup(key);
+      if (cached != null && cached.isCurrent(file, password))
+      {
+        return cached;
+      }
+      Credential loaded = load(file, password, alias);
+      synchronized (credentials)
+      {
+        credentials.put(key, loaded);
+      }
+      return loaded;
+    }
+  }
+
+  private static Credential lookup(String key)
+  {
+    synchronized (credentials)
+    {
+      return credentials.get(key);
+    }
+  }
+
+  /**
+   * Forgets all credentials, e.g. after keystores have been replaced in
+   * place without changing their length or modification time.
+   */
+  static void clear()
+  {
+    synchronized (credentials)
+    {
+      credentials.clear();
+    }
+  }
+
+  private static Credential load(File file, String password, String alias) throws Exception
+  {
+    long lastModified = file.lastModified();
+    long length = file.length();
+    KeyStore jks = KeyStore.getInstance(KeyStore.getDefaultType());
+    InputStream in = new FileInputStream(file);
+    try
+    {
+      jks.load(in, password.toCharArray());
+    }
+    finally
+    {
+      in.close();
+    }
+    Certificate cert = jks.getCertificate(alias);
+    X509Certificate x509 = cert instanceof X509Certificate ? (X509Certificate) cert : null;
+    PrivateKey key = (PrivateKey) jks.getKey(alias, password.toCharArray());
+    byte[] salt = new byte[16];
+    synchronized (random)
+    {
+      random.nextBytes(salt);
+    }
+    return new Credential(x509, key, lastModified, length, salt, digest(salt, password));
+  }
+
+  private static byte[] digest(byte[] salt, String password) throws Exception
+  {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    md.update(salt);
+    return md.digest(password.getBytes("UTF-8"));
+  }
+
+  static class Credential
+  {
+
+    private final X509Certificate certificate;
+
+    private final PrivateKey key;
+
+    private final long lastModified;
+
+    private final long length;
+
+    private final byte[] salt;
+
+    private final byte[] passwordDigest;
+
+    Credential(X509Certificate certificate, PrivateKey key, long lastModified, long length, byte[] salt,
+        byte[] passwordDigest)
+    {
+      this.certificate = certificate;
+      this.key = key;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.salt = salt;
+      this.passwordDigest = passwordDigest;
+    }
+
+    /**
+     * @return the certificate, or null if it isn't an X.509 one
+     */
+    X509Certificate getCertificate()
+    {
+      return certificate;
+    }
+
+    /**
+     * @return the subject DN of the certificate, or null
+     */
+    String getDN()
+    {
+      return certificate == null ? null : certificate.getSubjectDN().getName();
+    }
+
+    PrivateKey getKey()
+    {
+      return key;
+    }
+
+    boolean isCurrent(File file, String password) throws Exception
+    {
+      return file.lastModified() == lastModified && file.length() == length
+          && MessageDigest.isEqual(passwordDigest, digest(salt, password));
+    }
+  }
+
+}
@@ -15,9 +15,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.core.resources.IFolder;
-import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -38,6 +41,7 @@ import de.fzj.unicore.rcp.gpe4eclipse.GPE4EclipseConstants;
 import de.fzj.unicore.rcp.gpe4eclipse.GPEActivator;
 import de.fzj.unicore.rcp.gpe4eclipse.extensions.wfeditor.GridBeanActivity;
 import de.fzj.unicore.rcp.gpe4eclipse.utils.GPEPathUtils;
+import de.fzj.unicore.rcp.gpe4eclipse.utils.OutcomeFileTracker;
 import de.fzj.unicore.rcp.gpe4eclipse.views.JobOutcomeView;
 import de.fzj.unicore.rcp.wfeditor.model.WorkflowDiagram;
 import de.fzj.unicore.rcp.wfeditor.model.structures.StructuredActivity;
@@ -70,8 +74,9 @@ public class FetchActivityOutcomeCommand extends Command {
 		Job todo = new Job("Downloading output files to workspace...") {
 			public IStatus run(final IProgressMonitor progress)
 			{
+				final AtomicBoolean jobRunning = new AtomicBoolean(true);
 				try {
-					ClientWrapper<JobClient, String> jobWrapper = new ClientWrapper<JobClient, String>(gridBeanActivity.getJobClient(),"");
+					final ClientWrapper<JobClient, String> jobWrapper = new ClientWrapper<JobClient, String>(gridBeanActivity.getJobClient(),"");
 					final WorkflowDiagram diagram = gridBeanActivity.getDiagram();
 					String workflowID = diagram.getExecutionData().getSubmissionID();
 
@@ -104,8 +109,10 @@ public class FetchActivityOutcomeCommand extends Command {
 					}
 					
 					processorParams.put(ProcessingConstants.DOWNLOAD_DIR,downloadDir);
+					// remember what is there already, so only new or changed files get refreshed
+					final OutcomeFileTracker tracker = new OutcomeFileTracker(new File(downloadDir));
 					
-					List<Integer> processingSteps = new ArrayList<Integer>();
+					final List<Integer> processingSteps = new ArrayList<Integer>();
 					processingSteps.add(ProcessingConstants.REMOVE_UNAVAILABLE_OUTCOMES);
 					processingSteps.add(ProcessingConstants.RESOLVE_OUTPUT_VARIABLES_AND_FILES);					
 					processingSteps.add(ProcessingConstants.PREPARE_DOWNLOADS);
@@ -117,44 +124,54 @@ public class FetchActivityOutcomeCommand extends Command {
 					{
 						gridBeanActivity.deserializeAndGetReady();
 					}
+
+					final IWorkspace workspace = parentFolder.getWorkspace();
+
+					// the files are refreshed from the observer, which is told once the
+					// download is over, whether fetchOutcome waits for it or not; only
+					// the refresh runs as a workspace operation, so dialogs and the
+					// transfer itself don't hold the lock on the target folder
 					gridBeanActivity.getGridBeanClient().fetchOutcome(jobWrapper, new IObserver() {
 						public void observableUpdate(Object arg0, Object arg1) {	
-							try {
-								
-								if(arg1 instanceof Throwable)
-								{
-									((Throwable) arg1).printStackTrace();
-									GPEActivator.log(Status.ERROR,"Unable to fetch output files for activity "+gridBeanActivity.getName(),new Exception((Throwable) arg1));
-									return;
-								}
-								
-								IGridFileSetTransfer transfer = (IGridFileSetTransfer) processorParams.get(ProcessingConstants.FILE_TRANSFERS);
-								if(transfer.getFiles().size() > 0)
+
+							if(arg1 instanceof Throwable)
+							{
+								((Throwable) arg1).printStackTrace();
+								GPEActivator.log(Status.ERROR,"Unable to fetch output files for activity "+gridBeanActivity.getName(),new Exception((Throwable) arg1));
+								return;
+							}
+
+							IGridFileSetTransfer transfer = (IGridFileSetTransfer) processorParams.get(ProcessingConstants.FILE_TRANSFERS);
+							if(transfer.getFiles().size() > 0)
+							{
+								JobOutcomeView view = (JobOutcomeView) gridBeanActivity.getGridBeanClient().openGridBeanOutputPanel().getComponent();
+								String name;
+								try {
+									name = gridBeanActivity.getGridBeanClient().getGridBeanJob().getName();
+									name = name.replace(Constants.CURRENT_TOTAL_ITERATOR, gridBeanActivity.getCurrentIterationId());
+									view.setJobName(name);
+								} catch (Exception e) {
+
+								} 
+
+								Object dir = processorParams.get(ProcessingConstants.DOWNLOAD_DIR);
+								OutcomeFileTracker downloaded = tracker;
+								if(dir != null && !new File(dir.toString()).equals(tracker.getDirectory()))
 								{
-									JobOutcomeView view = (JobOutcomeView) gridBeanActivity.getGridBeanClient().openGridBeanOutputPanel().getComponent();
-									String name;
-									try {
-										name = gridBeanActivity.getGridBeanClient().getGridBeanJob().getName();
-										name = name.replace(Constants.CURRENT_TOTAL_ITERATOR, gridBeanActivity.getCurrentIterationId());
-										view.setJobName(name);
-									} catch (Exception e) {
-
-									} 
-									
-									parentFolder.refreshLocal(IResource.DEPTH_INFINITE, null);
+									// the user picked another directory, nothing known about it
+									downloaded = OutcomeFileTracker.untracked(new File(dir.toString()));
 								}
-				
-							} catch (CoreException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
+								// report progress only while this job is still running
+								refresh(workspace, downloaded, jobRunning.get() ? progress : null);
 							}
-							
 						}},processorParams,processingSteps );
 					return Status.OK_STATUS;
 
 				} catch (Exception e) {
 					GPEActivator.log("Unable to fetch outcomes for activity "+gridBeanActivity.getName(),e);
 					return Status.CANCEL_STATUS;
+				} finally {
+					jobRunning.set(false);
 				}
 			}
 		};
@@ -162,6 +179,26 @@ public class FetchActivityOutcomeCommand extends Command {
 	}
 
 
+	/**
+	 * Refreshes the downloaded files in one workspace operation, locking only
+	 * the folder they were downloaded to, so that listeners get a single
+	 * delta.
+	 */
+	private void refresh(IWorkspace workspace, final OutcomeFileTracker downloaded, IProgressMonitor progress)
+	{
+		final IWorkspaceRoot root = workspace.getRoot();
+		try {
+			workspace.run(new IWorkspaceRunnable() {
+				public void run(IProgressMonitor monitor) throws CoreException {
+					downloaded.refreshChanged(root, monitor);
+				}
+			}, downloaded.getSchedulingRule(root), IWorkspace.AVOID_UPDATE, progress);
+		} catch (CoreException e) {
+			GPEActivator.log("Unable to refresh output files of activity "+gridBeanActivity.getName(),e);
+		}
+	}
+
+
 	public boolean canUndo() {
 		return false;
 	}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.support;
+
+import java.io.File;
+
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.dao.FileJobRepositoryStore;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * {@link FactoryBean} creating a {@link SimpleJobRepository} backed by a
+ * {@link FileJobRepositoryStore}, i.e. a job repository that needs no
+ * database but keeps its state, including what is needed to restart failed
+ * jobs, across a crash of the JVM.
+ *
+ * <pre>
+ * &lt;bean id=&quot;jobRepository&quot; class=&quot;org.springframework.batch.core.repository.support.FileJobRepositoryFactoryBean&quot;&gt;
+ *     &lt;property name=&quot;directory&quot; value=&quot;/var/lib/batch/repository&quot; /&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class FileJobRepositoryFactoryBean implements FactoryBean, InitializingBean, DisposableBean {
+
+	private File directory;
+
+	private int compactionThreshold = 10000;
+
+	private FileJobRepositoryStore store;
+
+	private JobRepository jobRepository;
+
+	/**
+	 * @param directory the directory holding the repository files (no
+	 * default)
+	 * @see FileJobRepositoryStore#setDirectory(File)
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param compactionThreshold the number of journal records between
+	 * snapshots
+	 * @see FileJobRepositoryStore#setCompactionThreshold(int)
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws Exception {
+		Assert.notNull(directory, "A directory must be provided");
+		store = new FileJobRepositoryStore();
+		store.setDirectory(directory);
+		store.setCompactionThreshold(compactionThreshold);
+		store.afterPropertiesSet();
+		jobRepository = new SimpleJobRepository(store.getJobInstanceDao(), store.getJobExecutionDao(), store
+				.getStepExecutionDao());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws Exception {
+		if (store != null) {
+			store.destroy();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.beans.factory.FactoryBean#getObject()
+	 */
+	public Object getObject() throws Exception {
+		return jobRepository;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.beans.factory.FactoryBean#getObjectType()
+	 */
+	public Class getObjectType() {
+		return JobRepository.class;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.beans.factory.FactoryBean#isSingleton()
+	 */
+	public boolean isSingleton() {
+		return true;
+	}
+
+}
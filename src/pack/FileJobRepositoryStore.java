@@ -0,0 +1,639 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.util.Assert;
+
+/**
+ * Crash-safe, file based storage for the job repository, for hosts that have
+ * no database. State is kept in the concurrent map DAOs and every change is
+ * appended to a journal in a directory of its own, so that the state (and
+ * with it restartability of failed jobs) survives a crash of the JVM.
+ * <p>
+ * The journal is a sequence of files <code>journal-&lt;generation&gt;.log</code>
+ * of length prefixed, checksummed records. A DAO call returns only once its
+ * record has been forced to disk; calls made concurrently share a single
+ * <code>fsync</code> (group commit). After <code>compactionThreshold</code>
+ * records the journal is compacted: a new generation is started and a
+ * snapshot of the whole state is written to a temporary file and atomically
+ * renamed to <code>snapshot.bin</code>, after which older generations are
+ * deleted. On start the snapshot is loaded and the journals of its generation
+ * and later are replayed; a torn record at the end of a journal (from a crash
+ * in the middle of a write) is discarded.
+ * <p>
+ * If writing or forcing the journal fails, the journal is cut back to the
+ * last record that was forced to disk and the store refuses any further
+ * change, so that no record reported as durable ends up behind a torn one.
+ * A change whose record could not be appended is not applied in memory
+ * either. The store has to be reopened to be used again.
+ * <p>
+ * Use the DAOs obtained from this store with a
+ * <code>SimpleJobRepository</code>, or let a
+ * <code>FileJobRepositoryFactoryBean</code> do the wiring.
+ */
+public class FileJobRepositoryStore implements InitializingBean, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(FileJobRepositoryStore.class);
+
+	private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+	private static final String JOURNAL_PREFIX = "journal-";
+
+	private static final String JOURNAL_SUFFIX = ".log";
+
+	private File directory;
+
+	private int compactionThreshold = 10000;
+
+	private final JournalingJobInstanceDao jobInstanceDao = new JournalingJobInstanceDao();
+
+	private final JournalingJobExecutionDao jobExecutionDao = new JournalingJobExecutionDao();
+
+	private final JournalingStepExecutionDao stepExecutionDao = new JournalingStepExecutionDao();
+
+	/**
+	 * Guards the journal stream and the counters of written records.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Held while forcing the journal to disk and while switching generations.
+	 */
+	private final Object syncLock = new Object();
+
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+	private long generation;
+
+	private FileOutputStream journalStream;
+
+	private DataOutputStream journal;
+
+	private long written;
+
+	private long sinceCompaction;
+
+	private long synced;
+
+	/**
+	 * Bytes appended to the current journal file, and the part of them known
+	 * to be on disk.
+	 */
+	private long writtenBytes;
+
+	private long syncedBytes;
+
+	/**
+	 * Set once the journal could not be written; guarded by the write lock.
+	 */
+	private IOException failure;
+
+	/**
+	 * The directory holding snapshot and journal. It is created if needed and
+	 * must not be shared with another store.
+	 *
+	 * @param directory is a mandatory dependence (no default).
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * The number of journal records after which a snapshot is written and the
+	 * journal is started afresh. Defaults to 10000.
+	 *
+	 * @param compactionThreshold the threshold to set
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	public JobInstanceDao getJobInstanceDao() {
+		return jobInstanceDao;
+	}
+
+	public JobExecutionDao getJobExecutionDao() {
+		return jobExecutionDao;
+	}
+
+	public StepExecutionDao getStepExecutionDao() {
+		return stepExecutionDao;
+	}
+
+	/**
+	 * Recover the state from the directory and start a new journal
+	 * generation.
+	 *
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws Exception {
+		Assert.notNull(directory, "A directory must be provided");
+		Assert.isTrue(compactionThreshold > 0, "The compaction threshold must be positive");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create job repository directory " + directory);
+		}
+		recover();
+		compact();
+	}
+
+	/**
+	 * Force outstanding records to disk and close the journal.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws Exception {
+		synchronized (syncLock) {
+			synchronized (writeLock) {
+				if (journal != null) {
+					journal.flush();
+					journalStream.getChannel().force(false);
+					journal.close();
+					journal = null;
+				}
+			}
+		}
+	}
+
+	private void append(Record record) {
+		byte[] data = SerializationUtils.serialize(record);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		synchronized (writeLock) {
+			checkNotFailed();
+			Assert.state(journal != null, "The job repository store is not open");
+			try {
+				journal.writeInt(data.length);
+				journal.writeLong(crc.getValue());
+				journal.write(data);
+			}
+			catch (IOException e) {
+				fail(e);
+				throw new DataAccessResourceFailureException("Could not write job repository journal", e);
+			}
+			written++;
+			writtenBytes += 12 + data.length;
+			sinceCompaction++;
+		}
+	}
+
+	/**
+	 * Must be called with the write lock held.
+	 */
+	private void checkNotFailed() {
+		if (failure != null) {
+			throw new DataAccessResourceFailureException("The job repository journal in " + directory
+					+ " could not be written earlier, the store must be reopened", failure);
+		}
+	}
+
+	/**
+	 * Cut the journal back to what was last forced to disk and refuse any
+	 * further record. The buffered stream is not flushed, so nothing more of
+	 * a torn record gets written. Must be called with the write lock held.
+	 */
+	private void fail(IOException e) {
+		if (failure != null) {
+			return;
+		}
+		failure = e;
+		logger.error("Could not write job repository journal in " + directory + ", refusing further changes", e);
+		try {
+			journalStream.getChannel().truncate(syncedBytes);
+			journalStream.getChannel().force(false);
+		}
+		catch (IOException truncateFailure) {
+			logger.error("Could not cut back job repository journal in " + directory, truncateFailure);
+		}
+		try {
+			journalStream.close();
+		}
+		catch (IOException closeFailure) {
+			logger.debug("Could not close job repository journal", closeFailure);
+		}
+		journal = null;
+	}
+
+	/**
+	 * Make sure every record appended so far is on disk. Callers arriving
+	 * while a force is in progress wait for it and are then usually covered
+	 * by the next one, so concurrent changes share the cost of the force.
+	 */
+	private void sync() {
+		long target;
+		synchronized (writeLock) {
+			target = written;
+		}
+		boolean compact = false;
+		synchronized (syncLock) {
+			if (synced < target) {
+				long upTo;
+				long upToBytes;
+				synchronized (writeLock) {
+					checkNotFailed();
+					try {
+						journal.flush();
+					}
+					catch (IOException e) {
+						fail(e);
+						throw new DataAccessResourceFailureException("Could not sync job repository journal", e);
+					}
+					upTo = written;
+					upToBytes = writtenBytes;
+				}
+				IOException forceFailure = null;
+				try {
+					journalStream.getChannel().force(false);
+				}
+				catch (IOException e) {
+					forceFailure = e;
+				}
+				synchronized (writeLock) {
+					if (forceFailure != null) {
+						fail(forceFailure);
+					}
+					// a failed append may have cut the journal back meanwhile
+					checkNotFailed();
+					syncedBytes = upToBytes;
+				}
+				synced = upTo;
+			}
+			synchronized (writeLock) {
+				compact = sinceCompaction >= compactionThreshold;
+			}
+		}
+		if (compact && compacting.compareAndSet(false, true)) {
+			try {
+				compact();
+			}
+			catch (IOException e) {
+				// unless the store failed, the journal is intact and the next
+				// attempt can try again
+				logger.error("Could not compact job repository journal in " + directory, e);
+			}
+			finally {
+				compacting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Switch to a new journal generation and write a snapshot for it. Records
+	 * for changes made while the snapshot is being taken end up in the new
+	 * generation and are replayed on top of it, which is harmless because a
+	 * record always carries the complete state of its entity.
+	 */
+	private void compact() throws IOException {
+		long snapshotGeneration;
+		synchronized (syncLock) {
+			synchronized (writeLock) {
+				if (failure != null) {
+					throw new IOException("The job repository journal could not be written earlier", failure);
+				}
+				if (journal != null) {
+					try {
+						journal.flush();
+						journalStream.getChannel().force(false);
+					}
+					catch (IOException e) {
+						fail(e);
+						throw e;
+					}
+					journal.close();
+				}
+				generation++;
+				journalStream = new FileOutputStream(journalFile(generation), true);
+				journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+				synced = written;
+				writtenBytes = 0;
+				syncedBytes = 0;
+				sinceCompaction = 0;
+				snapshotGeneration = generation;
+			}
+		}
+
+		Snapshot snapshot = new Snapshot(snapshotGeneration);
+		snapshot.jobInstances.addAll(jobInstanceDao.getAll());
+		snapshot.jobExecutions.addAll(jobExecutionDao.getAll());
+		snapshot.stepExecutions.addAll(stepExecutionDao.getAll());
+		snapshot.executionContexts.putAll(stepExecutionDao.getAllExecutionContexts());
+
+		File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(out));
+			stream.writeObject(snapshot);
+			stream.flush();
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+
+		long[] generations = journalGenerations();
+		for (int i = 0; i < generations.length; i++) {
+			if (generations[i] < snapshotGeneration) {
+				journalFile(generations[i]).delete();
+			}
+		}
+		logger.debug("Compacted job repository journal in " + directory + " to generation " + snapshotGeneration);
+	}
+
+	private void recover() throws IOException, ClassNotFoundException {
+		long snapshotGeneration = 0;
+		File snapshotFile = new File(directory, SNAPSHOT_FILE);
+		if (snapshotFile.exists()) {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(snapshotFile));
+			Snapshot snapshot;
+			try {
+				snapshot = (Snapshot) in.readObject();
+			}
+			finally {
+				in.close();
+			}
+			snapshotGeneration = snapshot.generation;
+			for (Iterator<JobInstance> iterator = snapshot.jobInstances.iterator(); iterator.hasNext();) {
+				jobInstanceDao.restore(iterator.next());
+			}
+			for (Iterator<JobExecution> iterator = snapshot.jobExecutions.iterator(); iterator.hasNext();) {
+				jobExecutionDao.restore(iterator.next());
+			}
+			for (Iterator<StepExecution> iterator = snapshot.stepExecutions.iterator(); iterator.hasNext();) {
+				stepExecutionDao.restore(iterator.next());
+			}
+			for (Iterator<Map.Entry<Long, ExecutionContext>> iterator = snapshot.executionContexts.entrySet()
+					.iterator(); iterator.hasNext();) {
+				Map.Entry<Long, ExecutionContext> entry = iterator.next();
+				stepExecutionDao.restore(entry.getKey(), entry.getValue());
+			}
+		}
+
+		generation = snapshotGeneration;
+		long[] generations = journalGenerations();
+		for (int i = 0; i < generations.length; i++) {
+			if (generations[i] >= snapshotGeneration) {
+				replay(journalFile(generations[i]));
+				generation = Math.max(generation, generations[i]);
+			}
+		}
+	}
+
+	private void replay(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long position = 0;
+		int count = 0;
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				}
+				catch (EOFException e) {
+					return;
+				}
+				long checksum = in.readLong();
+				if (length < 0 || position + 12 + length > file.length()) {
+					truncate(file, position);
+					return;
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				if (crc.getValue() != checksum) {
+					truncate(file, position);
+					return;
+				}
+				apply((Record) SerializationUtils.deserialize(data));
+				position += 12 + length;
+				count++;
+			}
+		}
+		catch (EOFException e) {
+			truncate(file, position);
+		}
+		finally {
+			in.close();
+			logger.debug("Replayed " + count + " records from " + file);
+		}
+	}
+
+	private void truncate(File file, long position) throws IOException {
+		logger.warn("Discarding incomplete record at offset " + position + " of " + file);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(position);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private void apply(Record record) {
+		switch (record.type) {
+		case Record.JOB_INSTANCE:
+			jobInstanceDao.restore((JobInstance) record.payload);
+			break;
+		case Record.JOB_EXECUTION:
+			jobExecutionDao.restore((JobExecution) record.payload);
+			break;
+		case Record.STEP_EXECUTION:
+			stepExecutionDao.restore((StepExecution) record.payload);
+			break;
+		case Record.EXECUTION_CONTEXT:
+			stepExecutionDao.restore(record.id, (ExecutionContext) record.payload);
+			break;
+		default:
+			throw new IllegalStateException("Unknown journal record type: " + record.type);
+		}
+	}
+
+	private File journalFile(long generation) {
+		return new File(directory, JOURNAL_PREFIX + generation + JOURNAL_SUFFIX);
+	}
+
+	private long[] journalGenerations() {
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX);
+			}
+		});
+		List<Long> generations = new ArrayList<Long>();
+		for (int i = 0; names != null && i < names.length; i++) {
+			try {
+				generations.add(Long.valueOf(names[i].substring(JOURNAL_PREFIX.length(), names[i].length()
+						- JOURNAL_SUFFIX.length())));
+			}
+			catch (NumberFormatException e) {
+				logger.warn("Ignoring unexpected file " + names[i] + " in " + directory);
+			}
+		}
+		long[] result = new long[generations.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = generations.get(i).longValue();
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * A single journal entry: the complete stored state of one entity.
+	 */
+	private static class Record implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final int JOB_INSTANCE = 0;
+
+		private static final int JOB_EXECUTION = 1;
+
+		private static final int STEP_EXECUTION = 2;
+
+		private static final int EXECUTION_CONTEXT = 3;
+
+		private final int type;
+
+		private final Long id;
+
+		private final Serializable payload;
+
+		private Record(int type, Long id, Serializable payload) {
+			this.type = type;
+			this.id = id;
+			this.payload = payload;
+		}
+
+	}
+
+	private static class Snapshot implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long generation;
+
+		private final List<JobInstance> jobInstances = new ArrayList<JobInstance>();
+
+		private final List<JobExecution> jobExecutions = new ArrayList<JobExecution>();
+
+		private final List<StepExecution> stepExecutions = new ArrayList<StepExecution>();
+
+		private final Map<Long, ExecutionContext> executionContexts = new HashMap<Long, ExecutionContext>();
+
+		private Snapshot(long generation) {
+			this.generation = generation;
+		}
+
+	}
+
+	private class JournalingJobInstanceDao extends ConcurrentMapJobInstanceDao {
+
+		public JobInstance createJobInstance(Job job, JobParameters jobParameters) {
+			JobInstance jobInstance = super.createJobInstance(job, jobParameters);
+			sync();
+			return jobInstance;
+		}
+
+		protected void stored(JobInstance jobInstance) {
+			append(new Record(Record.JOB_INSTANCE, jobInstance.getId(), jobInstance));
+		}
+
+	}
+
+	private class JournalingJobExecutionDao extends ConcurrentMapJobExecutionDao {
+
+		public void saveJobExecution(JobExecution jobExecution) {
+			super.saveJobExecution(jobExecution);
+			sync();
+		}
+
+		public void updateJobExecution(JobExecution jobExecution) {
+			super.updateJobExecution(jobExecution);
+			sync();
+		}
+
+		protected void stored(JobExecution jobExecution) {
+			append(new Record(Record.JOB_EXECUTION, jobExecution.getId(), jobExecution));
+		}
+
+	}
+
+	private class JournalingStepExecutionDao extends ConcurrentMapStepExecutionDao {
+
+		public void saveStepExecution(StepExecution stepExecution) {
+			super.saveStepExecution(stepExecution);
+			sync();
+		}
+
+		public void updateStepExecution(StepExecution stepExecution) {
+			super.updateStepExecution(stepExecution);
+			sync();
+		}
+
+		public void saveOrUpdateExecutionContext(StepExecution stepExecution) {
+			super.saveOrUpdateExecutionContext(stepExecution);
+			sync();
+		}
+
+		protected void stored(StepExecution stepExecution) {
+			append(new Record(Record.STEP_EXECUTION, stepExecution.getId(), stepExecution));
+		}
+
+		protected void stored(Long stepExecutionId, ExecutionContext executionContext) {
+			append(new Record(Record.EXECUTION_CONTEXT, stepExecutionId, executionContext));
+		}
+
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.dao;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.job.JobSupport;
+import org.springframework.batch.core.step.StepSupport;
+
+/**
+ * Tests that the state kept by {@link FileJobRepositoryStore} survives
+ * closing and reopening the store, including a torn write at the end of the
+ * journal.
+ */
+public class FileJobRepositoryStoreTests extends TestCase {
+
+	private File directory;
+
+	private FileJobRepositoryStore store;
+
+	private JobSupport job = new JobSupport("testJob");
+
+	private StepSupport step = new StepSupport("step");
+
+	private JobParameters jobParameters = new JobParameters();
+
+	protected void setUp() throws Exception {
+		directory = new File("target/file-job-repository");
+		deleteDirectory(directory);
+		store = open(2);
+	}
+
+	protected void tearDown() throws Exception {
+		store.destroy();
+		deleteDirectory(directory);
+	}
+
+	public void testStateSurvivesReopen() throws Exception {
+		JobInstance jobInstance = store.getJobInstanceDao().createJobInstance(job, jobParameters);
+		JobExecution jobExecution = new JobExecution(jobInstance);
+		store.getJobExecutionDao().saveJobExecution(jobExecution);
+		StepExecution stepExecution = new StepExecution(step.getName(), jobExecution, null);
+		stepExecution.getExecutionContext().putString("key", "value");
+		store.getStepExecutionDao().saveStepExecution(stepExecution);
+		store.getStepExecutionDao().saveOrUpdateExecutionContext(stepExecution);
+		stepExecution.setStatus(BatchStatus.FAILED);
+		store.getStepExecutionDao().updateStepExecution(stepExecution);
+		jobExecution.setStatus(BatchStatus.FAILED);
+		store.getJobExecutionDao().updateJobExecution(jobExecution);
+
+		store.destroy();
+		store = open(2);
+
+		assertEquals(jobInstance.getId(), store.getJobInstanceDao().getJobInstance(job, jobParameters).getId());
+		JobExecution recovered = store.getJobExecutionDao().getLastJobExecution(jobInstance);
+		assertEquals(BatchStatus.FAILED, recovered.getStatus());
+		StepExecution recoveredStep = store.getStepExecutionDao().getStepExecution(recovered, step);
+		assertEquals(BatchStatus.FAILED, recoveredStep.getStatus());
+		assertEquals("value", store.getStepExecutionDao().findExecutionContext(recoveredStep).getString("key"));
+
+		// ids keep growing after recovery
+		JobExecution next = new JobExecution(jobInstance);
+		store.getJobExecutionDao().saveJobExecution(next);
+		assertTrue(next.getId().longValue() > jobExecution.getId().longValue());
+	}
+
+	public void testTornRecordIsDiscarded() throws Exception {
+		JobInstance jobInstance = store.getJobInstanceDao().createJobInstance(job, jobParameters);
+		store.destroy();
+
+		File[] journals = directory.listFiles();
+		for (int i = 0; i < journals.length; i++) {
+			if (journals[i].getName().endsWith(".log")) {
+				FileOutputStream out = new FileOutputStream(journals[i], true);
+				out.write(new byte[] { 0, 0, 1, 0, 42 });
+				out.close();
+			}
+		}
+
+		store = open(2);
+		assertEquals(jobInstance.getId(), store.getJobInstanceDao().getJobInstance(job, jobParameters).getId());
+	}
+
+	private FileJobRepositoryStore open(int compactionThreshold) throws Exception {
+		FileJobRepositoryStore store = new FileJobRepositoryStore();
+		store.setDirectory(directory);
+		store.setCompactionThreshold(compactionThreshold);
+		store.afterPropertiesSet();
+		return store;
+	}
+
+	private void deleteDirectory(File path) {
+		File[] files = path.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		path.delete();
+	}
+
+}
@@ -78,6 +78,17 @@ public class ForEachDataSourceSection extends AbstractSection {
 	protected SelectionListener selectionListener;
 	protected ModifyListener modifyListener;
 
+	/**
+	 * Milliseconds without further keystrokes after which an edited value is
+	 * written to the activity.
+	 */
+	protected static final int COMMIT_DELAY = 300;
+
+	private Runnable pendingCommit;
+	private ForEachDataSourceActivity pendingActivity;
+	private Integer pendingValue;
+	private String shownError;
+
 
 	public void createControls(Composite parent,
 			TabbedPropertySheetPage tabbedPropertySheetPage) {
@@ -143,6 +154,7 @@ public class ForEachDataSourceSection extends AbstractSection {
 	}
 
 	public void setInput(IWorkbenchPart part, ISelection selection) {
+		commitPending();
 		super.setInput(part, selection);
 		init();
 		updateEnabled();
@@ -170,9 +182,70 @@ public class ForEachDataSourceSection extends AbstractSection {
 
 
 	public void dispose() {
+		commitPending();
 		removeListeners();
 	}
 
+	/**
+	 * Writes the value typed last to the activity once typing pauses for
+	 * {@link #COMMIT_DELAY} ms; every keystroke restarts the delay. Marking
+	 * the diagram dirty makes the editor re-validate, which is too expensive
+	 * to do for every single keystroke.
+	 */
+	protected void scheduleCommit(Integer value)
+	{
+		pendingActivity = getActivity();
+		pendingValue = value;
+		if(pendingCommit == null)
+		{
+			pendingCommit = new Runnable() {
+				public void run() {
+					commitPending();
+				}
+			};
+		}
+		else maxNumTasksText.getDisplay().timerExec(-1, pendingCommit);
+		maxNumTasksText.getDisplay().timerExec(COMMIT_DELAY, pendingCommit);
+	}
+
+	/**
+	 * Writes a scheduled value to the activity right away.
+	 */
+	protected void commitPending()
+	{
+		if(pendingCommit == null) return;
+		if(maxNumTasksText != null && !maxNumTasksText.isDisposed())
+		{
+			maxNumTasksText.getDisplay().timerExec(-1, pendingCommit);
+		}
+		pendingCommit = null;
+		ForEachDataSourceActivity activity = pendingActivity;
+		Integer value = pendingValue;
+		pendingActivity = null;
+		pendingValue = null;
+		if(activity == null) return;
+		Integer oldValue = (Integer) activity.getPropertyValue(ForEachDataSourceActivity.PROP_MAX_PARALLEL_TASKS);
+		boolean changed = oldValue == null ? value != null : !oldValue.equals(value);
+		if(changed)
+		{
+			activity.setPropertyValue(ForEachDataSourceActivity.PROP_MAX_PARALLEL_TASKS, value);
+			activity.getDiagram().setDirty(true);
+		}
+	}
+
+	private void showError(String errorMsg)
+	{
+		if(errorMsg == null ? shownError == null : errorMsg.equals(shownError)) return;
+		shownError = errorMsg;
+		if(errorMsg != null)
+		{
+			errorLabel.setText(errorMsg);
+			errorLabel.setVisible(true);
+			errorLabel.pack();
+		}
+		else errorLabel.setVisible(false);
+	}
+
 
 
 
@@ -211,6 +284,7 @@ public class ForEachDataSourceSection extends AbstractSection {
 			private void updateVariableType()
 			{
 				int selected = iterationModeCombo.getSelectionIndex();
+				if(selected == getActivity().getSelectedIterationMode()) return;
 				getActivity().setSelectedIterationMode(selected);
 				getActivity().getDiagram().setDirty(true);
 			}
@@ -219,6 +293,8 @@ public class ForEachDataSourceSection extends AbstractSection {
 
 		modifyListener = new ModifyListener(){
 			public void modifyText(ModifyEvent e) {
+				// only the cheap syntax check happens per keystroke, the
+				// activity is updated once typing pauses
 				String errorMsg = null;
 				String s = maxNumTasksText.getText();
 
@@ -227,24 +303,12 @@ public class ForEachDataSourceSection extends AbstractSection {
 					{
 						Integer value = Integer.parseInt(s);
 						if(value <= 0) errorMsg = "Maximum number of parallel tasks must be positive";
-						Integer oldValue = (Integer) getActivity().getPropertyValue(ForEachDataSourceActivity.PROP_MAX_PARALLEL_TASKS);
-						boolean changed = oldValue == null ? value != null : !oldValue.equals(value);
-						if(changed)
-						{
-							getActivity().setPropertyValue(ForEachDataSourceActivity.PROP_MAX_PARALLEL_TASKS, value);
-							getActivity().getDiagram().setDirty(true);
-						}
+						scheduleCommit(value);
 					}
 				} catch (Exception ex) {
 					errorMsg = "Maximum number of parallel tasks must be an integer value";
 				}
-				if(errorMsg != null)
-				{
-					errorLabel.setText(errorMsg);
-					errorLabel.setVisible(true);
-					errorLabel.pack();
-				}
-				else errorLabel.setVisible(false);
+				showError(errorMsg);
 			}
 		};
 
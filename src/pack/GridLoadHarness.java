@@ -0,0 +1,421 @@
+/*********************************************************************************
+ * Copyright (c) 2007, 2008 Forschungszentrum Juelich GmbH 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the disclaimer at the end. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ * 
+ * (2) Neither the name of Forschungszentrum Juelich GmbH nor the names of its 
+ * contributors may be used to endorse or promote products derived from this 
+ * software without specific prior written permission.
+ * 
+ * DISCLAIMER
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ********************************************************************************/
+package de.fzj.hila.implementation.unicore6.config;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.springframework.core.io.FileSystemResource;
+import org.w3.x2005.x08.addressing.EndpointReferenceType;
+
+import de.fzj.hila.Location;
+import de.fzj.hila.implementation.unicore6.Unicore6ID;
+import de.fzj.hila.implementation.unicore6.Unicore6SecurityProperties;
+import de.fzj.unicore.uas.TargetSystemFactory;
+import de.fzj.unicore.uas.client.RegistryClient;
+import eu.unicore.security.xfireutil.JettyServer;
+
+/**
+ * Load harness for site discovery, location resolution and SAML retrieval.
+ * All three phases run against a {@link StandInGrid}, so the numbers don't
+ * depend on the network: discovery queries and probes its registry and TSFs,
+ * location resolution and SAML retrieval use a temporary MegaConfig store
+ * with one site per TSF listed by its registry.
+ * 
+ * Usage: <code>GridLoadHarness &lt;identity properties&gt; [sites] [rounds]</code>
+ * 
+ * The identity is used to build the clients, the stand-in doesn't check it.
+ * It is also the primary identity of every site in the store, and its
+ * keystore stands in for the keystores of <code>standin.users</code> users
+ * per site (default 2), whose assertions the store creates on start-up. The
+ * stand-in is configured through the system properties
+ * <code>standin.latency</code>, <code>standin.latencySpread</code>,
+ * <code>standin.failureRate</code>, <code>standin.hangRate</code>,
+ * <code>standin.seed</code>, and the prober through
+ * <code>standin.probeThreads</code> and <code>standin.probeTimeout</code>. The
+ * first round of every phase is a warm-up and not counted.
+ */
+public class GridLoadHarness
+{
+
+  private final Unicore6SecurityProperties securityProperties;
+
+  private final int rounds;
+
+  public GridLoadHarness(Unicore6SecurityProperties securityProperties, int rounds)
+  {
+    this.securityProperties = securityProperties;
+    this.rounds = rounds;
+  }
+
+  /**
+   * Lists the TSFs of the stand-in registry and probes them, as
+   * {@link RegistryConfig} does on refresh.
+   */
+  public void discovery(StandInGrid grid, int probeThreads, long probeTimeout) throws Exception
+  {
+    Timings listing = new Timings("registry query");
+    Timings probing = new Timings("probe all sites");
+    Timings probes = new Timings("single probe");
+    int dead = 0;
+    EndpointReferenceType regEPR = EndpointReferenceType.Factory.newInstance();
+    regEPR.addNewAddress().setStringValue(grid.getRegistryURL());
+    RegistryClient registry = new RegistryClient(grid.getRegistryURL(), regEPR,
+        (Unicore6SecurityProperties) securityProperties.clone());
+    TSFProber prober = new TSFProber(probeThreads, probeTimeout);
+    try
+    {
+      for (int round = 0; round <= rounds; round++)
+      {
+        long start = System.nanoTime();
+        List<EndpointReferenceType> tsfs = registry.listAccessibleServices(TargetSystemFactory.TSF_PORT);
+        long listed = System.nanoTime();
+        List<TSFProber.Result> results = prober.probe(tsfs, (Unicore6SecurityProperties) securityProperties.clone());
+        long probed = System.nanoTime();
+        if (round == 0)
+        {
+          continue;
+        }
+        listing.add((listed - start) / 1000);
+        probing.add((probed - listed) / 1000);
+        for (TSFProber.Result result : results)
+        {
+          probes.add(result.getLatency() * 1000);
+          if (!result.isAlive())
+          {
+            dead++;
+          }
+        }
+      }
+    }
+    finally
+    {
+      prober.shutdown();
+    }
+    listing.print();
+    probing.print();
+    probes.print();
+    System.out.println("  failed probes: " + dead + ", stand-in requests: " + grid.getRequestCount() + ", faults: "
+        + grid.getFailureCount() + ", hangs: " + grid.getHangCount());
+  }
+
+  /**
+   * Creates a MegaConfig store below root with one site per TSF the stand-in
+   * registry lists, each with the given identity and its TSF URL, and with
+   * users whose keystore and security properties are copies of the
+   * identity's.
+   * 
+   * @return the number of sites
+   */
+  public int populateStore(File root, StandInGrid grid, File identity, int users) throws Exception
+  {
+    EndpointReferenceType regEPR = EndpointReferenceType.Factory.newInstance();
+    regEPR.addNewAddress().setStringValue(grid.getRegistryURL());
+    RegistryClient registry = new RegistryClient(grid.getRegistryURL(), regEPR,
+        (Unicore6SecurityProperties) securityProperties.clone());
+    List<EndpointReferenceType> tsfs = registry.listAccessibleServices(TargetSystemFactory.TSF_PORT);
+
+    Properties props = new Properties();
+    InputStream in = new FileInputStream(identity);
+    try
+    {
+      props.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+    String keystore = props.getProperty("unicore.wsrflite.ssl.keystore");
+    if (keystore == null)
+    {
+      System.out.println("No keystore in " + identity + ", the store gets no users.");
+      users = 0;
+    }
+
+    for (int i = 0; i < tsfs.size(); i++)
+    {
+      File site = new File(root, "standin-" + i);
+      site.mkdirs();
+      writeXML(identity.getAbsoluteFile(), new File(site, "1"));
+      writeXML(tsfs.get(i).getAddress().getStringValue(), new File(site, "url"));
+      for (int u = 0; u < users; u++)
+      {
+        String name = "user-" + u;
+        File dir = new File(site, "users/" + name);
+        dir.mkdirs();
+        copy(new File(keystore), new File(dir, name + ".jks"));
+        copy(identity, new File(dir, name + ".security"));
+      }
+    }
+    writeXML(new Date(), new File(root, ".timestamp"));
+    return tsfs.size();
+  }
+
+  /**
+   * Resolves the ID of every site known to the MegaConfig store.
+   */
+  public void locationResolution(MegaConfig config) throws Exception
+  {
+    Timings timings = new Timings("findIDforLocation");
+    List<Location> locations = new ArrayList<Location>(config.getAllSiteLocations());
+    for (int round = 0; round <= rounds; round++)
+    {
+      for (Location location : locations)
+      {
+        long start = System.nanoTime();
+        config.findIDforLocation(location);
+        if (round > 0)
+        {
+          timings.add((System.nanoTime() - start) / 1000);
+        }
+      }
+    }
+    timings.print();
+  }
+
+  /**
+   * Fetches the assertion of every user of every site in the store; the
+   * first round reads the files, the others should be served from memory.
+   */
+  public void samlRetrieval(File root)
+  {
+    Timings cold = new Timings("getSAMLAssertion, first");
+    Timings warm = new Timings("getSAMLAssertion, repeated");
+    File[] sites = root.listFiles(new FileFilter()
+    {
+      public boolean accept(File f)
+      {
+        return new File(f, "users").isDirectory();
+      }
+    });
+    if (sites == null)
+    {
+      return;
+    }
+    SAMLFileRetriever[] retrievers = new SAMLFileRetriever[sites.length];
+    for (int i = 0; i < sites.length; i++)
+    {
+      retrievers[i] = new SAMLFileRetriever(new File(sites[i], "users"));
+    }
+    try
+    {
+      for (int round = 0; round <= rounds; round++)
+      {
+        for (int i = 0; i < sites.length; i++)
+        {
+          for (File user : new File(sites[i], "users").listFiles())
+          {
+            if (!user.isDirectory())
+            {
+              continue;
+            }
+            long start = System.nanoTime();
+            retrievers[i].getSAMLAssertion(user.getName());
+            (round == 0 ? cold : warm).add((System.nanoTime() - start) / 1000);
+          }
+        }
+      }
+    }
+    finally
+    {
+      // don't leave renewals of the temporary store's assertions scheduled
+      SAMLFileRetriever.clearCache();
+    }
+    cold.print();
+    warm.print();
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1)
+    {
+      System.err.println("Usage: GridLoadHarness <identity properties> [sites] [rounds]");
+      System.exit(1);
+    }
+    Unicore6ID id = new Unicore6ID(new FileSystemResource(args[0]));
+    int sites = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    GridLoadHarness harness = new GridLoadHarness(id.getUnicore6SecurityProperties(), rounds);
+
+    JettyServer server = new JettyServer();
+    StandInGrid grid = new StandInGrid(server, sites);
+    grid.setLatency(Long.getLong("standin.latency", 20).longValue());
+    grid.setLatencySpread(Double.parseDouble(System.getProperty("standin.latencySpread", "0.5")));
+    grid.setFailureRate(Double.parseDouble(System.getProperty("standin.failureRate", "0.0")));
+    grid.setHangRate(Double.parseDouble(System.getProperty("standin.hangRate", "0.0")));
+    grid.setSeed(Long.getLong("standin.seed", 0).longValue());
+    File root = File.createTempFile("megaconfig", "");
+    root.delete();
+    server.start();
+    try
+    {
+      System.out.println("Site discovery, " + sites + " sites, " + rounds + " rounds:");
+      harness.discovery(grid, Integer.getInteger("standin.probeThreads", 8).intValue(),
+          Long.getLong("standin.probeTimeout", 5000).longValue());
+
+      int stored = harness.populateStore(root, grid, new File(args[0]),
+          Integer.getInteger("standin.users", 2).intValue());
+      System.out.println("Created MegaConfig store with " + stored + " sites in " + root);
+      MegaConfig config = new MegaConfig(root);
+      // never go to the registries, measure the store as it is
+      config.setCheckeveryhours(500);
+      config.afterPropertiesSet();
+      try
+      {
+        System.out.println("Location resolution:");
+        harness.locationResolution(config);
+        System.out.println("SAML retrieval:");
+        harness.samlRetrieval(root);
+      }
+      finally
+      {
+        config.destroy();
+      }
+    }
+    finally
+    {
+      server.stop();
+      delete(root);
+    }
+  }
+
+  private static void writeXML(Object o, File f) throws IOException
+  {
+    Writer w = new FileWriter(f);
+    try
+    {
+      MegaConfig.XS.toXML(o, w);
+    }
+    finally
+    {
+      w.close();
+    }
+  }
+
+  private static void copy(File from, File to) throws IOException
+  {
+    InputStream in = new FileInputStream(from);
+    try
+    {
+      OutputStream out = new FileOutputStream(to);
+      try
+      {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+        {
+          out.write(buf, 0, n);
+        }
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static void delete(File f)
+  {
+    File[] children = f.listFiles();
+    if (children != null)
+    {
+      for (File child : children)
+      {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+  /**
+   * Collects durations in microseconds and prints their distribution.
+   */
+  private static class Timings
+  {
+
+    private final String name;
+
+    private final List<Long> values = new ArrayList<Long>();
+
+    Timings(String name)
+    {
+      this.name = name;
+    }
+
+    void add(long micros)
+    {
+      values.add(Long.valueOf(micros));
+    }
+
+    private long percentile(List<Long> sorted, double p)
+    {
+      int i = (int) Math.ceil(p * sorted.size()) - 1;
+      return sorted.get(Math.max(0, i)).longValue();
+    }
+
+    void print()
+    {
+      if (values.isEmpty())
+      {
+        System.out.println("  " + name + ": no samples");
+        return;
+      }
+      List<Long> sorted = new ArrayList<Long>(values);
+      Collections.sort(sorted);
+      long sum = 0;
+      for (Long v : sorted)
+      {
+        sum += v.longValue();
+      }
+      System.out.println("  " + name + ": n=" + sorted.size() + " mean=" + sum / sorted.size() + "us p50="
+          + percentile(sorted, 0.5) + "us p95=" + percentile(sorted, 0.95) + "us p99=" + percentile(sorted, 0.99)
+          + "us max=" + sorted.get(sorted.size() - 1) + "us");
+    }
+  }
+
+}
@@ -8,22 +8,34 @@
 
 package eu.unicore.security.xfireutil;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+
 import org.codehaus.xfire.transport.http.XFireServlet;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.ContextHandler;
 import org.mortbay.jetty.handler.ContextHandlerCollection;
 import org.mortbay.jetty.handler.DefaultHandler;
 import org.mortbay.jetty.handler.HandlerCollection;
 import org.mortbay.jetty.handler.RequestLogHandler;
+import org.mortbay.jetty.handler.StatisticsHandler;
 import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.jetty.security.SslSelectChannelConnector;
 import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
 
 
 
 /**
  * Test Jetty server implementation. Here appropriate connectors are configured. 
+ * Thread pool, connectors and request log are tuned through a
+ * {@link JettyServerConfiguration}; the server exposes the depth of the
+ * request queue and request statistics per context.
  * @author K. Benedyczak
  */
 public class JettyServer
@@ -32,31 +44,126 @@ public class JettyServer
 	public static final String KS = "conf/server.jks";
 	public static final String KS_PWD = "the!server";
 	private Server jettyServer;
+	private final JettyServerConfiguration cfg;
+	private QueuedThreadPool threadPool;
+	private AsyncRequestLog requestLog;
+	private Context root;
+	private final Map<String, StatisticsHandler> contextStatistics = 
+		new LinkedHashMap<String, StatisticsHandler>();
 	
 	public JettyServer() throws Exception
+	{
+		this(new JettyServerConfiguration());
+	}
+	
+	public JettyServer(JettyServerConfiguration cfg) throws Exception
 	{
 		//System.setProperty("DEBUG", "true");
+		this.cfg = cfg;
 		jettyServer = new Server();
+		threadPool = new QueuedThreadPool();
+		threadPool.setName("jetty-request");
+		threadPool.setMinThreads(cfg.getMinThreads());
+		threadPool.setMaxThreads(cfg.getMaxThreads());
+		threadPool.setMaxIdleTimeMs(cfg.getThreadIdleTime());
+		jettyServer.setThreadPool(threadPool);
 		jettyServer.setConnectors(new Connector[] {getSSLConnector(),
 				getPlainConnector()});
 		
 		ContextHandlerCollection contexts = new ContextHandlerCollection();
 		RequestLogHandler requestLogHandler = new RequestLogHandler();
-
+		if (cfg.getRequestLogFile() != null)
+		{
+			requestLog = new AsyncRequestLog(cfg.getRequestLogFile(), 
+					cfg.isRequestLogExtended(), 
+					cfg.getRequestLogQueueSize(), 
+					cfg.getRequestLogBatchSize());
+			requestLogHandler.setRequestLog(requestLog);
+		}
 		
 		
-		Context root=new Context(jettyServer, "/", Context.SESSIONS);
+		root=new Context(jettyServer, "/", Context.SESSIONS);
 		root.addServlet(XFireServlet.class, "/services/*");
 		
 		HandlerCollection handlers = new HandlerCollection();
 		handlers.setHandlers(new Handler[]{
 				contexts,
-				root,
+				withStatistics(root),
 				new DefaultHandler(),
 				requestLogHandler});
 		jettyServer.setHandler(handlers);
 	}
 	
+	/**
+	 * Wraps a context so that its requests are counted and timed.
+	 */
+	private Handler withStatistics(ContextHandler context)
+	{
+		StatisticsHandler stats = new StatisticsHandler();
+		stats.setHandler(context);
+		contextStatistics.put(context.getContextPath(), stats);
+		return stats;
+	}
+	
+	/**
+	 * Mounts an additional servlet in the root context, next to the XFire
+	 * servlet serving <code>/services/*</code>. Call before {@link #start()}.
+	 */
+	public void addServlet(Servlet servlet, String pathSpec)
+	{
+		root.addServlet(new ServletHolder(servlet), pathSpec);
+	}
+	
+	/**
+	 * @return request count and latency (average, max) of the context with
+	 * the given path, or null if there is no such context
+	 */
+	public StatisticsHandler getContextStatistics(String contextPath)
+	{
+		return contextStatistics.get(contextPath);
+	}
+	
+	/**
+	 * @return number of requests waiting for a thread
+	 */
+	public int getQueueDepth()
+	{
+		return threadPool.getQueueSize();
+	}
+	
+	/**
+	 * @return number of threads in the request pool
+	 */
+	public int getThreads()
+	{
+		return threadPool.getThreads();
+	}
+	
+	/**
+	 * @return number of idle threads in the request pool
+	 */
+	public int getIdleThreads()
+	{
+		return threadPool.getIdleThreads();
+	}
+	
+	/**
+	 * @return the request log, or null if request logging is off
+	 */
+	public AsyncRequestLog getRequestLog()
+	{
+		return requestLog;
+	}
+	
+	private void configure(SelectChannelConnector connector)
+	{
+		connector.setAcceptors(cfg.getAcceptors());
+		connector.setAcceptQueueSize(cfg.getAcceptQueueSize());
+		connector.setMaxIdleTime(cfg.getMaxIdleTime());
+		connector.setLowResourcesConnections(cfg.getLowResourcesConnections());
+		connector.setLowResourcesMaxIdleTime(cfg.getLowResourcesMaxIdleTime());
+	}
+	
 	private Connector getSSLConnector()
 	{
 		SslSelectChannelConnector connector = new SslSelectChannelConnector();
@@ -73,6 +180,7 @@ public class JettyServer
 		connector.setKeystore(KS);
 		connector.setKeystoreType("JKS");
 		connector.setKeyPassword(KS_PWD);
+		configure(connector);
 		return connector;
 	}
 
@@ -81,6 +189,7 @@ public class JettyServer
 		SelectChannelConnector connector = new SelectChannelConnector();
 		connector.setPort(PORT+1);
 		connector.setHost("localhost");
+		configure(connector);
 		return connector;
 	}
 
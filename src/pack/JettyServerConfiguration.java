@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package eu.unicore.security.xfireutil;
+
+/**
+ * Tunables of the {@link JettyServer}. The defaults suit a local service
+ * host with a few hundred concurrent clients.
+ */
+public class JettyServerConfiguration
+{
+	private int minThreads = 10;
+	private int maxThreads = 400;
+	private int threadIdleTime = 60000;
+	private int acceptors = 2;
+	private int acceptQueueSize = 512;
+	private int maxIdleTime = 30000;
+	private int lowResourcesConnections = 300;
+	private int lowResourcesMaxIdleTime = 5000;
+	private String requestLogFile = null;
+	private boolean requestLogExtended = false;
+	private int requestLogQueueSize = 10000;
+	private int requestLogBatchSize = 256;
+
+	public int getMinThreads()
+	{
+		return minThreads;
+	}
+
+	/**
+	 * Threads kept in the pool even when idle. Default 10.
+	 */
+	public void setMinThreads(int minThreads)
+	{
+		this.minThreads = minThreads;
+	}
+
+	public int getMaxThreads()
+	{
+		return maxThreads;
+	}
+
+	/**
+	 * Upper bound of the request thread pool; further requests wait in its
+	 * queue. Default 400.
+	 */
+	public void setMaxThreads(int maxThreads)
+	{
+		this.maxThreads = maxThreads;
+	}
+
+	public int getThreadIdleTime()
+	{
+		return threadIdleTime;
+	}
+
+	/**
+	 * Milliseconds after which threads above the minimum are stopped when
+	 * idle. Default 60000.
+	 */
+	public void setThreadIdleTime(int threadIdleTime)
+	{
+		this.threadIdleTime = threadIdleTime;
+	}
+
+	public int getAcceptors()
+	{
+		return acceptors;
+	}
+
+	/**
+	 * Acceptor threads per connector. For the select channel connectors used
+	 * here this is also the number of selectors. Default 2.
+	 */
+	public void setAcceptors(int acceptors)
+	{
+		this.acceptors = acceptors;
+	}
+
+	public int getAcceptQueueSize()
+	{
+		return acceptQueueSize;
+	}
+
+	/**
+	 * Backlog of the server sockets. Default 512.
+	 */
+	public void setAcceptQueueSize(int acceptQueueSize)
+	{
+		this.acceptQueueSize = acceptQueueSize;
+	}
+
+	public int getMaxIdleTime()
+	{
+		return maxIdleTime;
+	}
+
+	/**
+	 * Milliseconds an idle connection is kept open. Default 30000.
+	 */
+	public void setMaxIdleTime(int maxIdleTime)
+	{
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public int getLowResourcesConnections()
+	{
+		return lowResourcesConnections;
+	}
+
+	/**
+	 * Number of connections per connector above which the shorter
+	 * low resources idle time applies. Default 300.
+	 */
+	public void setLowResourcesConnections(int lowResourcesConnections)
+	{
+		this.lowResourcesConnections = lowResourcesConnections;
+	}
+
+	public int getLowResourcesMaxIdleTime()
+	{
+		return lowResourcesMaxIdleTime;
+	}
+
+	/**
+	 * Milliseconds an idle connection is kept open when the server is short
+	 * of resources. Default 5000.
+	 */
+	public void setLowResourcesMaxIdleTime(int lowResourcesMaxIdleTime)
+	{
+		this.lowResourcesMaxIdleTime = lowResourcesMaxIdleTime;
+	}
+
+	public String getRequestLogFile()
+	{
+		return requestLogFile;
+	}
+
+	/**
+	 * File the NCSA request log is appended to; null (the default) disables
+	 * request logging.
+	 */
+	public void setRequestLogFile(String requestLogFile)
+	{
+		this.requestLogFile = requestLogFile;
+	}
+
+	public boolean isRequestLogExtended()
+	{
+		return requestLogExtended;
+	}
+
+	/**
+	 * Whether to log referer and user agent as well (extended NCSA format).
+	 */
+	public void setRequestLogExtended(boolean requestLogExtended)
+	{
+		this.requestLogExtended = requestLogExtended;
+	}
+
+	public int getRequestLogQueueSize()
+	{
+		return requestLogQueueSize;
+	}
+
+	/**
+	 * Log lines waiting to be written; when the queue is full further lines
+	 * are dropped rather than delaying requests. Default 10000.
+	 */
+	public void setRequestLogQueueSize(int requestLogQueueSize)
+	{
+		this.requestLogQueueSize = requestLogQueueSize;
+	}
+
+	public int getRequestLogBatchSize()
+	{
+		return requestLogBatchSize;
+	}
+
+	/**
+	 * Maximum number of log lines written with a single flush. Default 256.
+	 */
+	public void setRequestLogBatchSize(int requestLogBatchSize)
+	{
+		this.requestLogBatchSize = requestLogBatchSize;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.launch.support;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.batch.core.JobExecution;
+
+/**
+ * Handle on a job execution launched by a {@link PriorityJobLauncher}.
+ * Waiting on it returns the finished {@link JobExecution} or throws an
+ * {@link ExecutionException} wrapping whatever the job threw.
+ * <p>
+ * {@link #cancel(boolean)} does not interrupt the worker thread; it calls
+ * {@link JobExecution#stop()} so that the job stops the way an interrupted
+ * job always does, and the outcome is recorded in the repository.
+ */
+public class JobExecutionHandle implements Future<JobExecution> {
+
+	private final Future<JobExecution> future;
+
+	private final JobExecution jobExecution;
+
+	JobExecutionHandle(Future<JobExecution> future, JobExecution jobExecution) {
+		this.future = future;
+		this.jobExecution = jobExecution;
+	}
+
+	/**
+	 * @return the job execution, possibly still queued or running
+	 */
+	public JobExecution getJobExecution() {
+		return jobExecution;
+	}
+
+	/**
+	 * Request the execution to stop.
+	 *
+	 * @param mayInterruptIfRunning ignored, a running job is stopped at the
+	 * next step boundary
+	 * @return false if the execution had already finished
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (future.isDone()) {
+			return false;
+		}
+		jobExecution.stop();
+		return true;
+	}
+
+	/**
+	 * @return true if {@link #cancel(boolean)} has been called before the
+	 * execution finished
+	 */
+	public boolean isCancelled() {
+		return jobExecution.isStopping();
+	}
+
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	public JobExecution get() throws InterruptedException, ExecutionException {
+		return future.get();
+	}
+
+	public JobExecution get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		return future.get(timeout, unit);
+	}
+
+}
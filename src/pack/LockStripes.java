@@ -0,0 +1,50 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.repository.dao;
+
+/**
+ * Fixed set of monitors used to serialize the optimistic version check of
+ * the concurrent map DAOs per entity id, without a single global lock.
+ * Updates of different entities only contend when their ids hash to the same
+ * stripe.
+ */
+final class LockStripes {
+
+	private static final int DEFAULT_STRIPES = 32;
+
+	private final Object[] locks;
+
+	LockStripes() {
+		this(DEFAULT_STRIPES);
+	}
+
+	LockStripes(int stripes) {
+		locks = new Object[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @param id the id of the entity about to be updated
+	 * @return the monitor guarding that id
+	 */
+	Object lockFor(Long id) {
+		return locks[(id.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+}
@@ -30,6 +30,12 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -37,17 +43,22 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.xmlbeans.XmlException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
-import org.springframework.core.io.FileSystemResource;
 import org.w3.x2005.x08.addressing.EndpointReferenceType;
 
 import xmlbeans.org.oasis.saml2.assertion.AssertionDocument;
@@ -73,7 +84,7 @@ import eu.unicore.security.etd.TrustDelegation;
  * 
  * @author roger
  */
-public class MegaConfig implements Config, InitializingBean {
+public class MegaConfig implements Config, InitializingBean, DisposableBean {
 
     private static final Logger log = LoggerFactory.getLogger(MegaConfig.class);
 
@@ -85,6 +96,30 @@ public class MegaConfig implements Config, InitializingBean {
 
     private File[] vss;
 
+    private int discoveryThreads = 8;
+
+    private long discoveryTimeout = 5000;
+
+    private ExecutorService discoveryExecutor;
+
+    /**
+     * How often, at most, the site index is checked against the
+     * <code>.timestamp</code> file, in milliseconds.
+     */
+    private static final long INDEX_VALIDATION_INTERVAL = 1000;
+
+    private volatile SiteIndex index;
+
+    private volatile long indexValidated;
+
+    private final Object indexLock = new Object();
+
+    private boolean binarySnapshot = false;
+
+    private WatchService watchService;
+
+    private Thread watcher;
+
     public static final String TSF_URL = "TSF_URL";
 
     public static final XStream XS = new XStream();
@@ -95,6 +130,15 @@ public class MegaConfig implements Config, InitializingBean {
 	root.mkdir();
     }
 
+    /**
+     * Uses the store in the given directory instead of
+     * <code>~/.hila/megaconfig</code>.
+     */
+    MegaConfig(File root) {
+	this.root = root;
+	root.mkdirs();
+    }
+
     public void afterPropertiesSet() throws Exception {
 	File ts = new File(root, ".timestamp");
 	boolean update = true;
@@ -108,49 +152,225 @@ public class MegaConfig implements Config, InitializingBean {
 	    reload();
 	    XS.toXML(new Date(), new FileWriter(ts));
 	}
-	this.vss = this.root.listFiles(new FileFilter() {
+	this.vss = getIndex().getSiteDirectories();
+	startWatcher();
+	createAssertions();
+    }
+
+    /**
+     * @return the current site index, rebuilt if it was invalidated or the
+     *         <code>.timestamp</code> file changed
+     */
+    private SiteIndex getIndex() {
+	SiteIndex current = index;
+	long now = System.currentTimeMillis();
+	if (current != null && now - indexValidated < INDEX_VALIDATION_INTERVAL) {
+	    return current;
+	}
+	synchronized (indexLock) {
+	    current = index;
+	    if (current == null || !current.isCurrent()) {
+		log.debug("(re)building site index of " + root);
+		current = SiteIndex.load(root, binarySnapshot);
+		index = current;
+	    }
+	    indexValidated = now;
+	    return current;
+	}
+    }
+
+    /**
+     * Drops the site index after the files on disk have changed. The binary
+     * snapshot is outdated as well then and is removed.
+     */
+    private void invalidateIndex() {
+	synchronized (indexLock) {
+	    index = null;
+	    if (binarySnapshot) {
+		MegaConfigSnapshot.delete(root);
+	    }
+	}
+    }
+
+    /**
+     * Watches the config directory and all site directories and drops the
+     * site index whenever something in them changes. Where no watch service
+     * is available the index is still checked against the
+     * <code>.timestamp</code> file.
+     */
+    private synchronized void startWatcher() {
+	if (watcher != null) {
+	    return;
+	}
+	try {
+	    watchService = FileSystems.getDefault().newWatchService();
+	    registerWatches();
+	} catch (IOException e) {
+	    log.warn("Cannot watch " + root + " for changes, relying on "
+		    + ".timestamp only.", e);
+	    return;
+	}
+	watcher = new Thread(new Runnable() {
+
+	    public void run() {
+		while (true) {
+		    WatchKey key;
+		    try {
+			key = watchService.take();
+		    } catch (InterruptedException e) {
+			return;
+		    } catch (ClosedWatchServiceException e) {
+			return;
+		    }
+		    boolean changed = false;
+		    for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			changed |= context == null
+				|| !MegaConfigSnapshot.isSnapshotFile(context
+					.toString());
+		    }
+		    key.reset();
+		    if (!changed) {
+			// only our own snapshot was written
+			continue;
+		    }
+		    invalidateIndex();
+		    try {
+			registerWatches();
+		    } catch (IOException e) {
+			log.warn("Cannot watch new site directory.", e);
+		    } catch (ClosedWatchServiceException e) {
+			return;
+		    }
+		}
+	    }
+	}, "megaconfig-watcher");
+	watcher.setDaemon(true);
+	watcher.start();
+    }
+
+    private void registerWatches() throws IOException {
+	root.toPath().register(watchService,
+		StandardWatchEventKinds.ENTRY_CREATE,
+		StandardWatchEventKinds.ENTRY_DELETE,
+		StandardWatchEventKinds.ENTRY_MODIFY);
+	File[] dirs = root.listFiles(new FileFilter() {
 
 	    public boolean accept(File f) {
 		return f.isDirectory();
 	    }
 	});
-	createAssertions();
+	if (dirs != null) {
+	    for (File dir : dirs) {
+		dir.toPath().register(watchService,
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_DELETE,
+			StandardWatchEventKinds.ENTRY_MODIFY);
+	    }
+	}
+    }
+
+    /**
+     * Queries the given registry for the TSFs of all its IDs and waits for
+     * the answers, at most <code>discoverytimeout</code> milliseconds.
+     * Discoveries not finished by then are cancelled.
+     * 
+     * @return the IDs whose discovery finished in time, in the order they
+     *         finished
+     */
+    public List<Unicore6ID> addRegistry(Registry r) throws Exception {
+	List<Unicore6ID> found = submitRegistry(r).await();
+	invalidateIndex();
+	return found;
     }
 
-    public void addRegistry(Registry r) throws Exception {
+    private RegistryDiscovery submitRegistry(Registry r) {
 	log.info("..... LOOKING at registry :: " + r.getRegistryUrl());
 	String ru = r.getRegistryUrl();
 	Unicore6ID[] ids = r.getIds();
 
-	ExecutorService executor = Executors.newCachedThreadPool();
-
-	List<Future<?>> pendingTasks = new ArrayList<Future<?>>();
-
+	RegistryDiscovery discovery = new RegistryDiscovery(ru,
+		getDiscoveryExecutor());
 	for (Unicore6ID id : ids) {
 	    EndpointReferenceType _registryEPR = EndpointReferenceType.Factory
 		    .newInstance();
 	    _registryEPR.addNewAddress().setStringValue(ru);
 	    GetUserTSFsFromRegistry gutsf = new GetUserTSFsFromRegistry(
 		    _registryEPR, id, this.root);
+	    discovery.submit(gutsf, id);
+	}
+	return discovery;
+    }
 
-	    pendingTasks.add(executor.submit(gutsf));
+    private synchronized ExecutorService getDiscoveryExecutor() {
+	if (discoveryExecutor == null) {
+	    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+		    discoveryThreads, discoveryThreads, 60, TimeUnit.SECONDS,
+		    new LinkedBlockingQueue<Runnable>(),
+		    new DiscoveryThreadFactory());
+	    executor.allowCoreThreadTimeOut(true);
+	    discoveryExecutor = executor;
 	}
+	return discoveryExecutor;
+    }
 
-	// wait for at most 4 seconds for all queries to be finished
-	long time1 = System.currentTimeMillis();
-	boolean allDone;
-	do {
-	    allDone = true;
-	    for (Future<?> future : pendingTasks) {
-		allDone &= future.isDone();
+    /**
+     * Shuts down the registry discovery threads and the directory watcher.
+     * Discoveries still running are given <code>discoverytimeout</code>
+     * milliseconds to finish and are interrupted after that.
+     */
+    public synchronized void destroy() throws Exception {
+	if (watcher != null) {
+	    watchService.close();
+	    watcher.interrupt();
+	    watcher = null;
+	}
+	if (discoveryExecutor != null) {
+	    discoveryExecutor.shutdown();
+	    if (!discoveryExecutor.awaitTermination(discoveryTimeout,
+		    TimeUnit.MILLISECONDS)) {
+		log.warn("Registry discovery threads did not terminate.");
 	    }
-	    log.debug("Remaining time: " + Long.toString(5000 - System.currentTimeMillis() + time1));
-	} while (!allDone && (System.currentTimeMillis() - time1 < 5000));
-	
-	if(!allDone) {
-	    log.warn("Unfinished site discoveries pending.");
+	    discoveryExecutor = null;
 	}
-	executor.shutdown();
+    }
+
+    public boolean isBinarysnapshot() {
+	return binarySnapshot;
+    }
+
+    /**
+     * Whether to keep a single-file binary snapshot of the site data next to
+     * the XML files and load from it at start-up. The XML files remain the
+     * master copy; the snapshot is rewritten from them whenever they change.
+     * Defaults to false.
+     */
+    public void setBinarysnapshot(boolean binarySnapshot) {
+	this.binarySnapshot = binarySnapshot;
+    }
+
+    public int getDiscoverythreads() {
+	return discoveryThreads;
+    }
+
+    /**
+     * Maximum number of registry queries running at the same time, shared by
+     * all registries. Defaults to 8.
+     */
+    public void setDiscoverythreads(int discoveryThreads) {
+	this.discoveryThreads = discoveryThreads;
+    }
+
+    public long getDiscoverytimeout() {
+	return discoveryTimeout;
+    }
+
+    /**
+     * How long to wait for the site discovery of one registry, in
+     * milliseconds. Defaults to 5000.
+     */
+    public void setDiscoverytimeout(long discoveryTimeout) {
+	this.discoveryTimeout = discoveryTimeout;
     }
 
     public Registry[] getRegistries() {
@@ -171,8 +391,7 @@ public class MegaConfig implements Config, InitializingBean {
 
     public boolean exists(Location location) {
 	try {
-	    return new File(this.root, location.getSiteLocation().getName())
-		    .exists();
+	    return getIndex().contains(location.getSiteLocation().getName());
 	} catch (HiLALocationSyntaxException e) {
 	    return false;
 	}
@@ -187,8 +406,8 @@ public class MegaConfig implements Config, InitializingBean {
 	Unicore6ID u6id = null;
 	Unicore6SecurityProperties u6sp;
 	try {
-	    File c = (File) XS.fromXML(new FileReader(new File(vx, "1")));
-	    u6id = new Unicore6ID(new FileSystemResource(c));
+	    // the indexed identity is shared, hand out a private copy
+	    u6id = (Unicore6ID) getIndex().getId(sn).clone();
 	    u6sp = u6id.getUnicore6SecurityProperties();
 	} catch (FileNotFoundException e) {
 	    throw new HiLAIdentityException(
@@ -233,10 +452,9 @@ public class MegaConfig implements Config, InitializingBean {
 
     public Set<Location> getAllSiteLocations(String user) {
 	HashSet<Location> l = new HashSet<Location>();
-	for (File v : this.vss) {
+	for (String v : getIndex().getSiteNames()) {
 	    try {
-		l.add(new Location("unicore6:/" + user + "/sites/"
-			+ v.getName()));
+		l.add(new Location("unicore6:/" + user + "/sites/" + v));
 	    } catch (HiLALocationSyntaxException e) {
 		e.printStackTrace();
 	    }
@@ -247,10 +465,14 @@ public class MegaConfig implements Config, InitializingBean {
     public Map<String, Object> getExtraInformationForLocation(Location location) {
 	HashMap<String, Object> xi = new HashMap<String, Object>();
 	try {
-	    String u = (String) XS.fromXML(new FileReader(new File(this.root,
-		    location.getSiteLocation().getName() + "/url")));
-	    xi.put(TSF_URL, u);
-	} catch (FileNotFoundException e) {
+	    String sn = location.getSiteLocation().getName();
+	    String u = getIndex().getUrl(sn);
+	    if (u != null) {
+		xi.put(TSF_URL, u);
+	    } else {
+		log.warn("No TSF URL known for site " + sn);
+	    }
+	} catch (IOException e) {
 	    e.printStackTrace();
 	} catch (HiLALocationSyntaxException e) {
 	    e.printStackTrace();
@@ -258,9 +480,14 @@ public class MegaConfig implements Config, InitializingBean {
 	return xi;
     }
 
+    /**
+     * Drops everything cached about the sites and re-reads the site list from
+     * disk. Registries are not queried again, see {@link #reload()}.
+     */
     public void refresh() throws HiLAException {
 	try {
-	    // this.reload();
+	    invalidateIndex();
+	    this.vss = getIndex().getSiteDirectories();
 	} catch (Exception e) {
 	    throw new HiLAException(e);
 	}
@@ -268,21 +495,36 @@ public class MegaConfig implements Config, InitializingBean {
 
     public void reload() {
 	log.debug("reloading ... ");
+	// query all registries at once, then collect the answers registry by
+	// registry, each with its own deadline
+	List<RegistryDiscovery> discoveries = new ArrayList<RegistryDiscovery>();
 	for (Registry r : getRegistries()) {
 	    try {
-		addRegistry(r);
-
+		discoveries.add(submitRegistry(r));
 	    } catch (Exception e) {
 		e.printStackTrace();
 	    }
 	}
+	for (RegistryDiscovery discovery : discoveries) {
+	    try {
+		List<Unicore6ID> found = discovery.await();
+		log.info(found.size() + " of " + discovery.size()
+			+ " site discoveries finished at "
+			+ discovery.getRegistryUrl());
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		break;
+	    }
+	}
+	invalidateIndex();
     }
 
     public void createAssertions() throws Exception {
+	List<File> roots = new ArrayList<File>();
 	for (File f : this.vss) {
-	    new SAMLFileRetriever(new File(f, "users"))
-		    .generateSAMLifNeccessary();
+	    roots.add(new File(f, "users"));
 	}
+	SAMLFileRetriever.generateSAMLifNeccessary(roots, discoveryThreads);
     }
 
     public void lodgeAssertion(Location siteLoc, AssertionDocument assertion)
@@ -294,4 +536,97 @@ public class MegaConfig implements Config, InitializingBean {
 	assertion.save(assertionFile);
     }
 
+    /**
+     * Site discoveries submitted for one registry. Results are taken as they
+     * complete, until <code>discoverytimeout</code> milliseconds after the
+     * registry was submitted; the discoveries still queued or running then
+     * are cancelled.
+     */
+    private class RegistryDiscovery {
+
+	private final String registryUrl;
+
+	private final CompletionService<Unicore6ID> completion;
+
+	private final List<Future<Unicore6ID>> pending = new ArrayList<Future<Unicore6ID>>();
+
+	private final long deadline;
+
+	private int submitted;
+
+	RegistryDiscovery(String registryUrl, ExecutorService executor) {
+	    this.registryUrl = registryUrl;
+	    this.completion = new ExecutorCompletionService<Unicore6ID>(
+		    executor);
+	    this.deadline = System.currentTimeMillis() + discoveryTimeout;
+	}
+
+	void submit(GetUserTSFsFromRegistry task, Unicore6ID id) {
+	    pending.add(completion.submit(task, id));
+	    submitted++;
+	}
+
+	String getRegistryUrl() {
+	    return registryUrl;
+	}
+
+	int size() {
+	    return submitted;
+	}
+
+	/**
+	 * @return the IDs whose discovery finished before the deadline, in the
+	 *         order they finished
+	 */
+	List<Unicore6ID> await() throws InterruptedException {
+	    List<Unicore6ID> done = new ArrayList<Unicore6ID>();
+	    try {
+		while (!pending.isEmpty()) {
+		    long left = deadline - System.currentTimeMillis();
+		    if (left <= 0) {
+			break;
+		    }
+		    Future<Unicore6ID> f = completion.poll(left,
+			    TimeUnit.MILLISECONDS);
+		    if (f == null) {
+			break;
+		    }
+		    pending.remove(f);
+		    try {
+			Unicore6ID id = f.get();
+			done.add(id);
+			log.debug("Site discovery finished at " + registryUrl
+				+ ", " + pending.size() + " pending.");
+		    } catch (ExecutionException e) {
+			log.warn("Site discovery failed at " + registryUrl, e
+				.getCause());
+		    }
+		}
+	    } finally {
+		if (!pending.isEmpty()) {
+		    log.warn(pending.size() + " site discoveries at "
+			    + registryUrl + " not finished after "
+			    + discoveryTimeout + "ms, cancelling them.");
+		    for (Future<Unicore6ID> f : pending) {
+			f.cancel(true);
+		    }
+		    pending.clear();
+		}
+	    }
+	    return done;
+	}
+    }
+
+    private static class DiscoveryThreadFactory implements ThreadFactory {
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	public Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "megaconfig-discovery-"
+		    + count.incrementAndGet());
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
+
 }
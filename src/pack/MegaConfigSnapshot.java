@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2005, Forschungszentrum Juelich
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: * Redistributions of source
+ * code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer. * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution. * Neither the name of the Forschungszentrum
+ * Juelich nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.fzj.hila.implementation.unicore6.config;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Single file, binary copy of what MegaConfig otherwise reads from many small
+ * XStream files: the site names, the security properties file of each site's
+ * primary identity (the <code>1</code> file), the TSF URLs (the
+ * <code>url</code> files) and the modification time of the
+ * <code>.timestamp</code> file the data belongs to.
+ * 
+ * Layout (big endian): magic <code>HMCS</code>, format version, timestamp,
+ * number of sites, then per site the name, identity file path and URL as
+ * length prefixed UTF-8 strings (length -1 for a missing value). The file is
+ * memory-mapped for reading and replaced atomically by renaming a temporary
+ * file when written, so readers never see a partial snapshot.
+ */
+class MegaConfigSnapshot {
+
+    static final String FILE_NAME = ".snapshot";
+
+    private static final String TMP_NAME = FILE_NAME + ".tmp";
+
+    private static final int MAGIC = 0x484d4353;
+
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static class Entry {
+
+	final String site;
+
+	final File idFile;
+
+	final String url;
+
+	Entry(String site, File idFile, String url) {
+	    this.site = site;
+	    this.idFile = idFile;
+	    this.url = url;
+	}
+    }
+
+    final long timestamp;
+
+    final List<Entry> entries;
+
+    private MegaConfigSnapshot(long timestamp, List<Entry> entries) {
+	this.timestamp = timestamp;
+	this.entries = entries;
+    }
+
+    /**
+     * @return true if the name belongs to a snapshot file (or its temporary
+     *         file) and changes to it can be ignored by directory watchers
+     */
+    static boolean isSnapshotFile(String name) {
+	return name.startsWith(FILE_NAME);
+    }
+
+    /**
+     * @return the snapshot stored below root, or null if there is none or it
+     *         was written in another format version
+     */
+    static MegaConfigSnapshot read(File root) throws IOException {
+	File f = new File(root, FILE_NAME);
+	if (!f.exists()) {
+	    return null;
+	}
+	FileInputStream in = new FileInputStream(f);
+	try {
+	    FileChannel channel = in.getChannel();
+	    MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+		    0, channel.size());
+	    if (buf.remaining() < 8 || buf.getInt() != MAGIC
+		    || buf.getInt() != VERSION) {
+		return null;
+	    }
+	    long timestamp = buf.getLong();
+	    int count = buf.getInt();
+	    // every entry takes at least three length fields
+	    if (count < 0 || count > buf.remaining() / 12) {
+		throw new IOException("Corrupt snapshot " + f + ", " + count
+			+ " entries");
+	    }
+	    List<Entry> entries = new ArrayList<Entry>(count);
+	    for (int i = 0; i < count; i++) {
+		String site = getString(buf);
+		if (site == null) {
+		    throw new IOException("Corrupt snapshot " + f
+			    + ", entry without site name");
+		}
+		String idFile = getString(buf);
+		String url = getString(buf);
+		entries.add(new Entry(site, idFile == null ? null : new File(
+			idFile), url));
+	    }
+	    return new MegaConfigSnapshot(timestamp, Collections
+		    .unmodifiableList(entries));
+	} catch (BufferUnderflowException e) {
+	    throw new IOException("Truncated snapshot " + f);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Writes a new snapshot below root, replacing the existing one.
+     */
+    static void write(File root, long timestamp, List<Entry> entries)
+	    throws IOException {
+	File tmp = new File(root, TMP_NAME);
+	FileOutputStream fos = new FileOutputStream(tmp);
+	try {
+	    DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(fos));
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(timestamp);
+	    out.writeInt(entries.size());
+	    for (Entry e : entries) {
+		putString(out, e.site);
+		putString(out, e.idFile == null ? null : e.idFile.getPath());
+		putString(out, e.url);
+	    }
+	    out.flush();
+	    fos.getFD().sync();
+	} finally {
+	    fos.close();
+	}
+	Files.move(tmp.toPath(), new File(root, FILE_NAME).toPath(),
+		StandardCopyOption.ATOMIC_MOVE,
+		StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Removes the snapshot, so that the next load falls back to the XML
+     * files.
+     */
+    static void delete(File root) {
+	new File(root, FILE_NAME).delete();
+    }
+
+    private static String getString(MappedByteBuffer buf) {
+	int len = buf.getInt();
+	if (len < 0) {
+	    return null;
+	}
+	if (len > buf.remaining()) {
+	    throw new BufferUnderflowException();
+	}
+	byte[] b = new byte[len];
+	buf.get(b);
+	return new String(b, UTF8);
+    }
+
+    private static void putString(DataOutputStream out, String s)
+	    throws IOException {
+	if (s == null) {
+	    out.writeInt(-1);
+	} else {
+	    byte[] b = s.getBytes(UTF8);
+	    out.writeInt(b.length);
+	    out.write(b);
+	}
+    }
+}
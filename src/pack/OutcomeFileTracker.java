@@ -0,0 +1,224 @@
+package de.fzj.unicore.rcp.gpe4eclipse.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+
+/**
+ * Remembers size and modification time of all files below a download
+ * directory, so that after a download only the files that were actually
+ * created, changed or deleted need to be refreshed in the workspace. Run the
+ * refresh inside an IWorkspaceRunnable under
+ * {@link #getSchedulingRule(IWorkspaceRoot)} to have it reported as a
+ * single resource delta.
+ */
+public class OutcomeFileTracker {
+
+	private final File dir;
+
+	private final Map<String, long[]> before;
+
+	/**
+	 * Records the current state of the files below dir.
+	 */
+	public OutcomeFileTracker(File dir)
+	{
+		this.dir = dir;
+		this.before = scan(dir);
+	}
+
+	private OutcomeFileTracker(File dir, Map<String, long[]> before)
+	{
+		this.dir = dir;
+		this.before = before;
+	}
+
+	/**
+	 * @return a tracker for which every file below dir counts as new
+	 */
+	public static OutcomeFileTracker untracked(File dir)
+	{
+		return new OutcomeFileTracker(dir, new HashMap<String, long[]>());
+	}
+
+	public File getDirectory()
+	{
+		return dir;
+	}
+
+	/**
+	 * @return the files below dir that are new or differ in size or
+	 * modification time from when this tracker was created
+	 */
+	public List<File> getChangedFiles()
+	{
+		return getChangedFiles(scan(dir));
+	}
+
+	/**
+	 * @return the files and directories below dir that existed when this
+	 * tracker was created and are gone now; of a deleted directory only the
+	 * directory itself is listed
+	 */
+	public List<File> getDeletedFiles()
+	{
+		return getDeletedFiles(scan(dir));
+	}
+
+	private List<File> getChangedFiles(Map<String, long[]> after)
+	{
+		List<File> changed = new ArrayList<File>();
+		for(Map.Entry<String, long[]> e : after.entrySet())
+		{
+			if(e.getValue()[0] < 0) continue; // a directory
+			long[] old = before.get(e.getKey());
+			if(old == null || old[0] != e.getValue()[0] || old[1] != e.getValue()[1])
+			{
+				changed.add(new File(e.getKey()));
+			}
+		}
+		return changed;
+	}
+
+	private List<File> getDeletedFiles(Map<String, long[]> after)
+	{
+		List<File> deleted = new ArrayList<File>();
+		for(String path : before.keySet())
+		{
+			if(after.containsKey(path)) continue;
+			File f = new File(path);
+			File parent = f.getParentFile();
+			// the parent is listed instead if it is gone as well
+			if(parent == null || after.containsKey(parent.getAbsolutePath())
+					|| !before.containsKey(parent.getAbsolutePath()))
+			{
+				deleted.add(f);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Refreshes the changed files in the workspace, one by one. Files in
+	 * directories that didn't exist before are covered by refreshing the
+	 * topmost new directory instead, deleted files and directories by
+	 * refreshing the directory that held them.
+	 * 
+	 * @return the number of files and directories found created, changed or
+	 * deleted
+	 */
+	public int refreshChanged(IWorkspaceRoot root, IProgressMonitor progress) throws CoreException
+	{
+		if(progress == null) progress = new NullProgressMonitor();
+		Map<String, long[]> after = scan(dir);
+		List<File> changed = getChangedFiles(after);
+		List<File> deleted = getDeletedFiles(after);
+		Set<IResource> toRefresh = new LinkedHashSet<IResource>();
+		for(File f : changed)
+		{
+			File newDir = topmostNewDirectory(f);
+			IResource r = newDir != null
+			? root.getContainerForLocation(new Path(newDir.getAbsolutePath()))
+					: root.getFileForLocation(new Path(f.getAbsolutePath()));
+			if(r != null) toRefresh.add(r);
+		}
+		// directories that only lost entries need their direct children checked
+		Set<IResource> parents = new LinkedHashSet<IResource>();
+		for(File f : deleted)
+		{
+			File parent = f.getParentFile();
+			IResource r = parent == null ? null : root.getContainerForLocation(new Path(parent.getAbsolutePath()));
+			if(r != null && !toRefresh.contains(r)) parents.add(r);
+		}
+		toRefresh.addAll(parents);
+		progress.beginTask("Refreshing downloaded files", toRefresh.size());
+		try {
+			for(IResource r : toRefresh)
+			{
+				if(progress.isCanceled()) break;
+				progress.subTask(r.getName());
+				int depth = r instanceof IFile ? IResource.DEPTH_ZERO
+						: parents.contains(r) ? IResource.DEPTH_ONE : IResource.DEPTH_INFINITE;
+				r.refreshLocal(depth, null);
+				progress.worked(1);
+			}
+		} finally {
+			progress.done();
+		}
+		return changed.size() + deleted.size();
+	}
+
+	/**
+	 * @return the innermost existing workspace container holding the
+	 * directory, i.e. the smallest rule under which all changed files can be
+	 * refreshed, or the workspace root if the directory lies outside the
+	 * workspace
+	 */
+	public ISchedulingRule getSchedulingRule(IWorkspaceRoot root)
+	{
+		for(File d = dir; d != null; d = d.getParentFile())
+		{
+			IContainer c = root.getContainerForLocation(new Path(d.getAbsolutePath()));
+			if(c != null && c.exists()) return c;
+		}
+		return root;
+	}
+
+	private File topmostNewDirectory(File f)
+	{
+		File newDir = null;
+		for(File p = f.getParentFile(); p != null && !isKnownDirectory(p); p = p.getParentFile())
+		{
+			newDir = p;
+		}
+		return newDir;
+	}
+
+	private boolean isKnownDirectory(File d)
+	{
+		String path = d.getAbsolutePath();
+		if(!path.startsWith(dir.getAbsolutePath())) return true;
+		return before.containsKey(path);
+	}
+
+	private static Map<String, long[]> scan(File dir)
+	{
+		Map<String, long[]> result = new HashMap<String, long[]>();
+		if(dir.isDirectory())
+		{
+			// directories are recorded too, to find new ones later on
+			result.put(dir.getAbsolutePath(), new long[] {-1, -1});
+			scan(dir, result);
+		}
+		return result;
+	}
+
+	private static void scan(File dir, Map<String, long[]> result)
+	{
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		for(File f : files)
+		{
+			if(f.isDirectory())
+			{
+				result.put(f.getAbsolutePath(), new long[] {-1, -1});
+				scan(f, result);
+			}
+			else result.put(f.getAbsolutePath(), new long[] {f.length(), f.lastModified()});
+		}
+	}
+}
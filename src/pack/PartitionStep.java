@@ -0,0 +1,361 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.step.partition;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobInterruptedException;
+import org.springframework.batch.core.StartLimitExceededException;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.UnexpectedJobExecutionException;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.step.StepSupport;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.repeat.ExitStatus;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.util.Assert;
+
+/**
+ * {@link Step} implementation that splits the work of a delegate step into
+ * partitions and executes them, possibly in parallel, through a
+ * {@link TaskExecutor}. To a {@link org.springframework.batch.core.job.SimpleJob}
+ * it looks like any other step, so a job can mix partitioned and plain steps.
+ * <p>
+ * Every partition gets its own {@link StepExecution} (named
+ * <code>&lt;step name&gt;:&lt;partition name&gt;</code>) that is stored
+ * through the {@link JobRepository} exactly like the execution of a top level
+ * step. On restart the repository is consulted per partition: partitions that
+ * completed in a previous run are skipped, the others are started again with
+ * the execution context they left behind.
+ * <p>
+ * The degree of parallelism is determined by the {@link TaskExecutor}; the
+ * default is a {@link SyncTaskExecutor}, which runs the partitions one after
+ * another in the caller's thread. Use a bounded executor (e.g. a
+ * <code>ThreadPoolTaskExecutor</code> with a fixed core and max pool size)
+ * to run them concurrently. When partitions run concurrently the delegate step
+ * and the {@link JobRepository} must be safe for concurrent use; updates made
+ * by this class are serialized on the repository instance.
+ *
+ * @see Partitioner
+ */
+public class PartitionStep extends StepSupport implements InitializingBean {
+
+	private static final Log logger = LogFactory.getLog(PartitionStep.class);
+
+	/**
+	 * Separator between the name of this step and the partition name in the
+	 * step name of each partition execution.
+	 */
+	public static final String PARTITION_SEPARATOR = ":";
+
+	private Step step;
+
+	private Partitioner partitioner = new SimplePartitioner();
+
+	private int gridSize = 1;
+
+	private TaskExecutor taskExecutor = new SyncTaskExecutor();
+
+	private JobRepository jobRepository;
+
+	/**
+	 * Default constructor.
+	 */
+	public PartitionStep() {
+		super();
+	}
+
+	/**
+	 * @param name the name of this step
+	 */
+	public PartitionStep(String name) {
+		super(name);
+	}
+
+	/**
+	 * Public setter for the step that is executed once per partition.
+	 *
+	 * @param step is a mandatory dependence (no default).
+	 */
+	public void setStep(Step step) {
+		this.step = step;
+	}
+
+	/**
+	 * Public setter for the {@link Partitioner}. Defaults to a
+	 * {@link SimplePartitioner}.
+	 *
+	 * @param partitioner the partitioner to set
+	 */
+	public void setPartitioner(Partitioner partitioner) {
+		this.partitioner = partitioner;
+	}
+
+	/**
+	 * The number of partitions requested from the {@link Partitioner}.
+	 * Defaults to 1.
+	 *
+	 * @param gridSize the grid size to set
+	 */
+	public void setGridSize(int gridSize) {
+		this.gridSize = gridSize;
+	}
+
+	/**
+	 * Public setter for the {@link TaskExecutor} used to run the partitions.
+	 * Defaults to a {@link SyncTaskExecutor}.
+	 *
+	 * @param taskExecutor the task executor to set
+	 */
+	public void setTaskExecutor(TaskExecutor taskExecutor) {
+		this.taskExecutor = taskExecutor;
+	}
+
+	/**
+	 * Public setter for {@link JobRepository}.
+	 *
+	 * @param jobRepository is a mandatory dependence (no default).
+	 */
+	public void setJobRepository(JobRepository jobRepository) {
+		this.jobRepository = jobRepository;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws Exception {
+		Assert.notNull(step, "A Step must be provided");
+		Assert.notNull(partitioner, "A Partitioner must be provided");
+		Assert.notNull(taskExecutor, "A TaskExecutor must be provided");
+		Assert.notNull(jobRepository, "A JobRepository must be provided");
+		Assert.isTrue(gridSize > 0, "The grid size must be positive");
+	}
+
+	/**
+	 * Create (or, on restart, resume) one execution per partition, run them
+	 * on the {@link TaskExecutor} and wait for all of them to finish. If any
+	 * partition was interrupted a {@link JobInterruptedException} is thrown,
+	 * otherwise the first failure of a partition is rethrown after all
+	 * partitions have finished.
+	 *
+	 * @see org.springframework.batch.core.Step#execute(org.springframework.batch.core.StepExecution)
+	 */
+	public void execute(StepExecution stepExecution) throws JobInterruptedException,
+			UnexpectedJobExecutionException {
+
+		JobExecution jobExecution = stepExecution.getJobExecution();
+		JobInstance jobInstance = jobExecution.getJobInstance();
+		Map<String, ExecutionContext> contexts = partitioner.partition(gridSize);
+
+		// check all partitions before saving any, so that an exceeded start
+		// limit doesn't leave the others behind as STARTED
+		Map<Step, ExecutionContext> toRun = new LinkedHashMap<Step, ExecutionContext>();
+		int skipped = 0;
+
+		for (Iterator<Map.Entry<String, ExecutionContext>> iterator = contexts.entrySet().iterator(); iterator
+				.hasNext();) {
+			Map.Entry<String, ExecutionContext> entry = iterator.next();
+			Step partitionStep = new StepSupport(getName() + PARTITION_SEPARATOR + entry.getKey());
+			ExecutionContext executionContext = entry.getValue();
+
+			StepExecution lastExecution;
+			int startCount;
+			synchronized (jobRepository) {
+				lastExecution = jobRepository.getLastStepExecution(jobInstance, partitionStep);
+				startCount = jobRepository.getStepExecutionCount(jobInstance, partitionStep);
+			}
+
+			if (lastExecution != null) {
+				if (lastExecution.getStatus() == BatchStatus.COMPLETED && !step.isAllowStartIfComplete()) {
+					logger.debug("Partition already complete, skipping: " + partitionStep.getName());
+					skipped++;
+					continue;
+				}
+				if (lastExecution.getStatus() != BatchStatus.COMPLETED) {
+					// restart: carry on from wherever the failed attempt left off
+					executionContext = lastExecution.getExecutionContext();
+				}
+			}
+
+			if (startCount >= step.getStartLimit()) {
+				throw new StartLimitExceededException("Maximum start limit exceeded for step: "
+						+ partitionStep.getName() + " StartMax: " + step.getStartLimit());
+			}
+			toRun.put(partitionStep, executionContext);
+		}
+
+		List<PartitionTask> tasks = new ArrayList<PartitionTask>(toRun.size());
+		for (Iterator<Map.Entry<Step, ExecutionContext>> iterator = toRun.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<Step, ExecutionContext> entry = iterator.next();
+			StepExecution partitionExecution = jobExecution.createStepExecution(entry.getKey());
+			partitionExecution.setExecutionContext(entry.getValue());
+			partitionExecution.setStartTime(new Date());
+			partitionExecution.setStatus(BatchStatus.STARTED);
+			synchronized (jobRepository) {
+				jobRepository.saveOrUpdate(partitionExecution);
+				jobRepository.saveOrUpdateExecutionContext(partitionExecution);
+			}
+			tasks.add(new PartitionTask(partitionExecution));
+		}
+
+		for (Iterator<PartitionTask> iterator = tasks.iterator(); iterator.hasNext();) {
+			taskExecutor.execute(iterator.next().future);
+		}
+
+		Throwable failure = null;
+		JobInterruptedException interrupted = null;
+		for (Iterator<PartitionTask> iterator = tasks.iterator(); iterator.hasNext();) {
+			PartitionTask task = iterator.next();
+			try {
+				task.future.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Iterator<PartitionTask> remaining = tasks.iterator(); remaining.hasNext();) {
+					remaining.next().stop();
+				}
+				throw new JobInterruptedException("Interrupted while waiting for partitions of step: " + getName());
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof JobInterruptedException) {
+					if (interrupted == null) {
+						interrupted = (JobInterruptedException) cause;
+					}
+				}
+				else if (failure == null) {
+					failure = cause;
+				}
+			}
+		}
+
+		if (interrupted != null) {
+			throw interrupted;
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		if (failure != null) {
+			throw new UnexpectedJobExecutionException("Partition of step " + getName() + " failed", failure);
+		}
+
+		stepExecution.setExitStatus(ExitStatus.FINISHED.addExitDescription(tasks.size() + " partitions executed, "
+				+ skipped + " already complete"));
+
+	}
+
+	/**
+	 * The execution of one partition, which can be stopped before it starts.
+	 */
+	private class PartitionTask implements Callable<StepExecution> {
+
+		private final StepExecution partitionExecution;
+
+		private final FutureTask<StepExecution> future = new FutureTask<StepExecution>(this);
+
+		private volatile boolean started = false;
+
+		public PartitionTask(StepExecution partitionExecution) {
+			this.partitionExecution = partitionExecution;
+		}
+
+		public StepExecution call() throws Exception {
+			started = true;
+			return executePartition(partitionExecution);
+		}
+
+		/**
+		 * Cancel the partition. One that never started is marked STOPPED in
+		 * the repository, one that is running is interrupted and records its
+		 * own outcome.
+		 */
+		public void stop() {
+			if (future.cancel(true) && !started) {
+				partitionExecution.setStatus(BatchStatus.STOPPED);
+				partitionExecution.setExitStatus(ExitStatus.FAILED);
+				partitionExecution.setEndTime(new Date());
+				synchronized (jobRepository) {
+					jobRepository.saveOrUpdate(partitionExecution);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Execute the delegate step for a single partition and store the outcome
+	 * in the repository. Mirrors the status handling
+	 * {@link org.springframework.batch.core.job.SimpleJob} applies to a top
+	 * level step.
+	 */
+	private StepExecution executePartition(StepExecution partitionExecution) throws Exception {
+		try {
+			if (partitionExecution.getJobExecution().isStopping()) {
+				throw new JobInterruptedException("JobExecution interrupted.");
+			}
+			step.execute(partitionExecution);
+			partitionExecution.setStatus(BatchStatus.COMPLETED);
+			if (partitionExecution.getExitStatus() == null
+					|| ExitStatus.UNKNOWN.getExitCode().equals(partitionExecution.getExitStatus().getExitCode())) {
+				partitionExecution.setExitStatus(ExitStatus.FINISHED);
+			}
+			return partitionExecution;
+		}
+		catch (JobInterruptedException e) {
+			partitionExecution.setStatus(BatchStatus.STOPPED);
+			partitionExecution.setExitStatus(ExitStatus.FAILED);
+			throw e;
+		}
+		catch (Throwable t) {
+			logger.error("Partition " + partitionExecution.getStepName() + " failed", t);
+			partitionExecution.setStatus(BatchStatus.FAILED);
+			partitionExecution.setExitStatus(ExitStatus.FAILED);
+			if (t instanceof Error) {
+				throw (Error) t;
+			}
+			throw (Exception) t;
+		}
+		finally {
+			partitionExecution.setEndTime(new Date());
+			synchronized (jobRepository) {
+				jobRepository.saveOrUpdate(partitionExecution);
+				jobRepository.saveOrUpdateExecutionContext(partitionExecution);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.step.partition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInterruptedException;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StartLimitExceededException;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.UnexpectedJobExecutionException;
+import org.springframework.batch.core.job.SimpleJob;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.dao.MapJobExecutionDao;
+import org.springframework.batch.core.repository.dao.MapJobInstanceDao;
+import org.springframework.batch.core.repository.dao.MapStepExecutionDao;
+import org.springframework.batch.core.repository.support.SimpleJobRepository;
+import org.springframework.batch.core.step.StepSupport;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.repeat.ExitStatus;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+/**
+ * Tests for {@link PartitionStep} running inside a {@link SimpleJob}, backed
+ * by the Map DAOs so that the partition executions can be checked in the
+ * repository.
+ */
+public class PartitionStepTests extends TestCase {
+
+	private JobRepository jobRepository;
+
+	private SimpleJob job;
+
+	private PartitionStep step;
+
+	private StubStep delegate;
+
+	private List processed = Collections.synchronizedList(new ArrayList());
+
+	private JobParameters jobParameters = new JobParameters();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		MapJobInstanceDao.clear();
+		MapJobExecutionDao.clear();
+		MapStepExecutionDao.clear();
+		jobRepository = new SimpleJobRepository(new MapJobInstanceDao(), new MapJobExecutionDao(),
+				new MapStepExecutionDao());
+
+		delegate = new StubStep("worker");
+
+		step = new PartitionStep("partitioned");
+		step.setStep(delegate);
+		step.setGridSize(4);
+		step.setJobRepository(jobRepository);
+		step.afterPropertiesSet();
+
+		job = new SimpleJob();
+		job.setName("partitionJob");
+		job.setJobRepository(jobRepository);
+		List steps = new ArrayList();
+		steps.add(step);
+		job.setSteps(steps);
+	}
+
+	public void testAllPartitionsExecuted() throws Exception {
+		JobExecution jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		job.execute(jobExecution);
+
+		assertEquals(BatchStatus.COMPLETED, jobExecution.getStatus());
+		assertEquals(4, processed.size());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(processed.contains(SimplePartitioner.PARTITION_KEY + i));
+			assertPartitionStatus(jobExecution, SimplePartitioner.PARTITION_KEY + i, BatchStatus.COMPLETED);
+		}
+	}
+
+	public void testPartitionsExecutedConcurrently() throws Exception {
+		SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor();
+		taskExecutor.setConcurrencyLimit(2);
+		step.setTaskExecutor(taskExecutor);
+
+		JobExecution jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		job.execute(jobExecution);
+
+		assertEquals(BatchStatus.COMPLETED, jobExecution.getStatus());
+		assertEquals(4, new HashSet(processed).size());
+	}
+
+	public void testRestartOnlyFailedPartitions() throws Exception {
+		final RuntimeException exception = new RuntimeException("Foo!");
+		delegate.failOn(SimplePartitioner.PARTITION_KEY + 2, exception);
+
+		JobExecution jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		try {
+			job.execute(jobExecution);
+			fail();
+		}
+		catch (RuntimeException e) {
+			assertSame(exception, e);
+		}
+		assertEquals(4, processed.size());
+		assertPartitionStatus(jobExecution, SimplePartitioner.PARTITION_KEY + 2, BatchStatus.FAILED);
+
+		processed.clear();
+		delegate.failOn(null, null);
+
+		jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		job.execute(jobExecution);
+
+		assertEquals(BatchStatus.COMPLETED, jobExecution.getStatus());
+		assertEquals(1, processed.size());
+		assertEquals(SimplePartitioner.PARTITION_KEY + 2, processed.get(0));
+		assertEquals("restarted", lastPartitionExecution(jobExecution, SimplePartitioner.PARTITION_KEY + 2)
+				.getExecutionContext().getString("state"));
+	}
+
+	public void testInterruptedPartition() throws Exception {
+		final JobInterruptedException exception = new JobInterruptedException("Interrupt!");
+		delegate.failOn(SimplePartitioner.PARTITION_KEY + 0, exception);
+
+		JobExecution jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		try {
+			job.execute(jobExecution);
+			fail();
+		}
+		catch (UnexpectedJobExecutionException e) {
+			assertEquals(exception, e.getCause());
+		}
+		assertEquals(BatchStatus.STOPPED, jobExecution.getStatus());
+		assertPartitionStatus(jobExecution, SimplePartitioner.PARTITION_KEY + 0, BatchStatus.STOPPED);
+	}
+
+	public void testStartLimitCheckedBeforeAnyPartitionIsSaved() throws Exception {
+		final List<String> keys = new ArrayList<String>();
+		keys.add("b");
+		step.setPartitioner(new Partitioner() {
+			public Map<String, ExecutionContext> partition(int gridSize) {
+				Map<String, ExecutionContext> map = new LinkedHashMap<String, ExecutionContext>();
+				for (Iterator<String> iterator = keys.iterator(); iterator.hasNext();) {
+					map.put(iterator.next(), new ExecutionContext());
+				}
+				return map;
+			}
+		});
+		delegate.setStartLimit(1);
+		delegate.failOn("b", new RuntimeException("Foo!"));
+
+		JobExecution jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		try {
+			job.execute(jobExecution);
+			fail();
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+
+		// a new partition in front of the one that may not be started again
+		keys.add(0, "a");
+		processed.clear();
+		jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		try {
+			job.execute(jobExecution);
+			fail();
+		}
+		catch (StartLimitExceededException e) {
+			assertTrue(e.getMessage().endsWith(" StartMax: 1"));
+		}
+		assertEquals(0, processed.size());
+		Step partitionStep = new StepSupport(step.getName() + PartitionStep.PARTITION_SEPARATOR + "a");
+		assertNull(jobRepository.getLastStepExecution(jobExecution.getJobInstance(), partitionStep));
+	}
+
+	private void assertPartitionStatus(JobExecution jobExecution, String partition, BatchStatus status) {
+		assertEquals(status, lastPartitionExecution(jobExecution, partition).getStatus());
+	}
+
+	private StepExecution lastPartitionExecution(JobExecution jobExecution, String partition) {
+		Step partitionStep = new StepSupport(step.getName() + PartitionStep.PARTITION_SEPARATOR + partition);
+		StepExecution stepExecution = jobRepository.getLastStepExecution(jobExecution.getJobInstance(),
+				partitionStep);
+		assertNotNull("No execution stored for " + partitionStep.getName(), stepExecution);
+		return stepExecution;
+	}
+
+	private class StubStep extends StepSupport {
+
+		private String failingPartition;
+
+		private Throwable exception;
+
+		public StubStep(String name) {
+			super(name);
+		}
+
+		public void failOn(String partition, Throwable exception) {
+			this.failingPartition = partition;
+			this.exception = exception;
+		}
+
+		public void execute(StepExecution stepExecution) throws JobInterruptedException,
+				UnexpectedJobExecutionException {
+			String name = stepExecution.getStepName();
+			String partition = name.substring(name.indexOf(PartitionStep.PARTITION_SEPARATOR) + 1);
+			processed.add(partition);
+
+			// a restarted partition sees the context left behind by the failed attempt
+			boolean restarted = stepExecution.getExecutionContext().containsKey("state");
+			stepExecution.getExecutionContext().putString("state", restarted ? "restarted" : "first");
+
+			if (partition.equals(failingPartition)) {
+				stepExecution.setExitStatus(ExitStatus.FAILED);
+				if (exception instanceof JobInterruptedException) {
+					throw (JobInterruptedException) exception;
+				}
+				throw (RuntimeException) exception;
+			}
+			stepExecution.setExitStatus(ExitStatus.FINISHED);
+		}
+
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.step.partition;
+
+import java.util.Map;
+
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * Strategy for splitting the work of a step into independent partitions. Each
+ * partition is identified by a key that is unique within the step and carries
+ * its own {@link ExecutionContext} describing the slice of input it owns (e.g.
+ * a key range or a file name).
+ *
+ * @see PartitionStep
+ */
+public interface Partitioner {
+
+	/**
+	 * Create a set of distinct {@link ExecutionContext} instances together
+	 * with a unique identifier for each one. The identifiers must be stable
+	 * across calls with the same grid size, so that a restart can match the
+	 * partitions with the ones recorded in the repository.
+	 *
+	 * @param gridSize the requested number of partitions (a hint only, the
+	 * partitioner may return more or fewer)
+	 * @return a map from partition name to its execution context
+	 */
+	Map<String, ExecutionContext> partition(int gridSize);
+
+}
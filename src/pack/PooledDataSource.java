@@ -0,0 +1,984 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package pl.edu.icm.unicore.uvos.util;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of JDBC connections to the UVOS database, configured with the
+ * <code>db.pool.*</code> options of {@link ConfDefaults}.
+ * <p>
+ * At most <code>maxSize</code> connections are open at once; a caller that
+ * finds all of them in use waits up to <code>maxWait</code> ms, in arrival
+ * order, and then gets an SQLException. Idle connections are reused most
+ * recently returned first, so that the surplus of a peak stays idle and is
+ * closed after <code>idleTimeout</code>, down to <code>minSize</code>.
+ * A connection that was idle longer than <code>validationInterval</code> is
+ * validated before it is handed out.
+ * <p>
+ * Every connection keeps up to <code>statementCacheSize</code> prepared
+ * statements open, keyed by their SQL. Closing a statement obtained with
+ * {@link Connection#prepareStatement(String)} puts it back into the cache of
+ * its connection, closing the connection returns it to the pool.
+ * <p>
+ * Session settings a user changes (read only, isolation, catalog, holdability,
+ * type map) are restored when the connection is returned; a connection with
+ * other changed settings is closed instead of pooled. Likewise a statement
+ * whose settings (max rows, fetch size, timeout and the like) were changed is
+ * closed instead of cached.
+ * <p>
+ * Users only ever get the pool's proxies: all statements, result sets and
+ * the database meta data lead back to the pooled connection rather than to
+ * the underlying one, and none of them can be unwrapped, so that users can't
+ * close or reconfigure the physical connection behind the pool's back.
+ * Statements the user didn't close are closed (or put back into the cache)
+ * when the connection is returned.
+ */
+public class PooledDataSource implements DataSource
+{
+	private static final Logger log = Logger.getLogger(PooledDataSource.class);
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	/** Connection setters whose effect {@link PooledConnection#restore()} undoes */
+	private static final Set<String> RESTORABLE_SETTINGS = new HashSet<String>(Arrays.asList(
+			"setReadOnly", "setTransactionIsolation", "setCatalog", "setHoldability", "setTypeMap"));
+	/** Connection setters that don't change the session beyond the transaction */
+	private static final Set<String> TRANSACTION_SETTINGS = new HashSet<String>(Arrays.asList(
+			"setAutoCommit", "setSavepoint"));
+	/** Statement methods after which the statement isn't cached */
+	private static final Set<String> STATEMENT_SETTINGS = new HashSet<String>(Arrays.asList(
+			"setMaxRows", "setLargeMaxRows", "setFetchSize", "setFetchDirection",
+			"setQueryTimeout", "setMaxFieldSize", "setEscapeProcessing", "setCursorName",
+			"setPoolable", "closeOnCompletion"));
+
+	private final String url;
+	private final Properties connectionProperties = new Properties();
+	private final int minSize;
+	private final int maxSize;
+	private final long maxWait;
+	private final String validationQuery;
+	private final long validationInterval;
+	private final long idleTimeout;
+	private final int statementCacheSize;
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition released = lock.newCondition();
+	/** most recently returned first */
+	private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	private int size;
+	private boolean closed;
+	private final ScheduledExecutorService evictor;
+
+	private final AtomicLong checkouts = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+
+	private PrintWriter logWriter;
+	private int loginTimeout;
+
+	/**
+	 * @param driver JDBC driver class to load, may be null if the driver
+	 * registers itself
+	 * @param url JDBC URL of the database
+	 * @param user database user, may be null
+	 * @param password password of the user, may be null
+	 * @param conf server configuration with the pool options; options that
+	 * are not set get the defaults from {@link ConfDefaults}
+	 */
+	public PooledDataSource(String driver, String url, String user,
+			String password, Properties conf) throws SQLException
+	{
+		if (driver != null)
+		{
+			try
+			{
+				Class.forName(driver);
+			} catch (ClassNotFoundException e)
+			{
+				throw new SQLException("Can't load JDBC driver " + driver + ": " + e);
+			}
+		}
+		this.url = url;
+		if (user != null)
+			connectionProperties.setProperty("user", user);
+		if (password != null)
+			connectionProperties.setProperty("password", password);
+		maxSize = Math.max(1, getInt(conf, ConfDefaults.P_DBPOOL_MAX_SIZE,
+				ConfDefaults.DBPOOL_MAX_SIZE_DEF));
+		int min = getInt(conf, ConfDefaults.P_DBPOOL_MIN_SIZE,
+				ConfDefaults.DBPOOL_MIN_SIZE_DEF);
+		if (min > maxSize)
+			log.warn(ConfDefaults.P_DBPOOL_MIN_SIZE + " is larger than "
+					+ ConfDefaults.P_DBPOOL_MAX_SIZE + ", using " + maxSize);
+		minSize = Math.min(min, maxSize);
+		maxWait = getLong(conf, ConfDefaults.P_DBPOOL_MAX_WAIT,
+				ConfDefaults.DBPOOL_MAX_WAIT_DEF);
+		validationQuery = conf.getProperty(ConfDefaults.P_DBPOOL_VALIDATION_QUERY,
+				ConfDefaults.DBPOOL_VALIDATION_QUERY_DEF).trim();
+		validationInterval = getLong(conf, ConfDefaults.P_DBPOOL_VALIDATION_INTERVAL,
+				ConfDefaults.DBPOOL_VALIDATION_INTERVAL_DEF);
+		idleTimeout = getLong(conf, ConfDefaults.P_DBPOOL_IDLE_TIMEOUT,
+				ConfDefaults.DBPOOL_IDLE_TIMEOUT_DEF);
+		statementCacheSize = getInt(conf, ConfDefaults.P_DBPOOL_STATEMENT_CACHE_SIZE,
+				ConfDefaults.DBPOOL_STATEMENT_CACHE_SIZE_DEF);
+		long evictionInterval = getLong(conf, ConfDefaults.P_DBPOOL_EVICTION_INTERVAL,
+				ConfDefaults.DBPOOL_EVICTION_INTERVAL_DEF);
+
+		fill();
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "uvos-db-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				evict();
+				fill();
+			}
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private static int getInt(Properties conf, String key, int def)
+	{
+		String v = conf.getProperty(key);
+		return v == null ? def : Integer.parseInt(v.trim());
+	}
+
+	private static long getLong(Properties conf, String key, long def)
+	{
+		String v = conf.getProperty(key);
+		return v == null ? def : Long.parseLong(v.trim());
+	}
+
+	public Connection getConnection() throws SQLException
+	{
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWait);
+		boolean waited = false;
+		while (true)
+		{
+			PooledConnection pc = null;
+			lock.lock();
+			try
+			{
+				while (pc == null && !closed)
+				{
+					if (!idle.isEmpty())
+					{
+						pc = idle.removeFirst();
+						break;
+					}
+					if (size < maxSize)
+					{
+						size++;
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+					{
+						timeouts.incrementAndGet();
+						recordWait(start);
+						throw new SQLException("No database connection became available within "
+								+ maxWait + "ms, all " + maxSize + " are in use");
+					}
+					waited = true;
+					try
+					{
+						released.awaitNanos(remaining);
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection");
+					}
+				}
+				if (closed)
+					throw new SQLException("The connection pool is closed");
+			} finally
+			{
+				lock.unlock();
+			}
+
+			if (pc == null)
+			{
+				// a slot was reserved above
+				try
+				{
+					pc = open();
+				} catch (SQLException e)
+				{
+					discard(null);
+					throw e;
+				}
+			} else if (!validate(pc))
+			{
+				discard(pc);
+				continue;
+			}
+			checkouts.incrementAndGet();
+			if (waited)
+				recordWait(start);
+			return pc.checkout();
+		}
+	}
+
+	private void recordWait(long start)
+	{
+		long t = System.nanoTime() - start;
+		waits.incrementAndGet();
+		waitTime.addAndGet(t);
+		long max;
+		while (t > (max = maxWaitTime.get()) && !maxWaitTime.compareAndSet(max, t));
+	}
+
+	private PooledConnection open() throws SQLException
+	{
+		Connection c = DriverManager.getConnection(url, connectionProperties);
+		created.incrementAndGet();
+		return new PooledConnection(c);
+	}
+
+	/**
+	 * Checks a connection that was idle for a while. Drivers predating JDBC 4
+	 * don't implement isValid(); without a validation query their connections
+	 * are only checked for being closed.
+	 */
+	private boolean validate(PooledConnection pc)
+	{
+		if (System.currentTimeMillis() - pc.lastUsed < validationInterval)
+			return true;
+		try
+		{
+			if (validationQuery.length() > 0)
+			{
+				Statement s = pc.connection.createStatement();
+				try
+				{
+					s.execute(validationQuery);
+				} finally
+				{
+					s.close();
+				}
+				return true;
+			}
+			try
+			{
+				return pc.connection.isValid(VALIDATION_TIMEOUT);
+			} catch (AbstractMethodError e)
+			{
+				return !pc.connection.isClosed();
+			}
+		} catch (SQLException e)
+		{
+			log.debug("Discarding broken database connection: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Closes a connection and frees its slot.
+	 * @param pc may be null if opening the connection failed
+	 */
+	private void discard(PooledConnection pc)
+	{
+		if (pc != null)
+		{
+			pc.close();
+			discarded.incrementAndGet();
+		}
+		lock.lock();
+		try
+		{
+			size--;
+			released.signal();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called when the user closes a connection: resets it and puts it back
+	 * into the pool, or discards it if that fails.
+	 */
+	private void release(PooledConnection pc)
+	{
+		try
+		{
+			if (!pc.connection.getAutoCommit())
+			{
+				pc.connection.rollback();
+				pc.connection.setAutoCommit(true);
+			}
+			pc.restore();
+			pc.connection.clearWarnings();
+		} catch (SQLException e)
+		{
+			log.debug("Discarding database connection that can't be reset: " + e);
+			discard(pc);
+			return;
+		}
+		lock.lock();
+		try
+		{
+			if (!closed)
+			{
+				pc.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pc);
+				released.signal();
+				return;
+			}
+			size--;
+		} finally
+		{
+			lock.unlock();
+		}
+		pc.close();
+	}
+
+	/**
+	 * Closes connections idle for longer than idleTimeout, as long as more
+	 * than minSize are open.
+	 */
+	private void evict()
+	{
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+		long limit = System.currentTimeMillis() - idleTimeout;
+		lock.lock();
+		try
+		{
+			// the least recently used connections are at the end
+			while (size > minSize && !idle.isEmpty() && idle.getLast().lastUsed < limit)
+			{
+				expired.add(idle.removeLast());
+				size--;
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+		for (PooledConnection pc: expired)
+		{
+			pc.close();
+			discarded.incrementAndGet();
+		}
+		if (!expired.isEmpty())
+			log.debug("Closed " + expired.size() + " idle database connections");
+	}
+
+	/**
+	 * Opens connections until minSize are open.
+	 */
+	private void fill()
+	{
+		while (true)
+		{
+			lock.lock();
+			try
+			{
+				if (closed || size >= minSize)
+					return;
+				size++;
+			} finally
+			{
+				lock.unlock();
+			}
+			PooledConnection pc;
+			try
+			{
+				pc = open();
+			} catch (SQLException e)
+			{
+				log.warn("Can't open database connection: " + e);
+				discard(null);
+				return;
+			}
+			pc.lastUsed = System.currentTimeMillis();
+			lock.lock();
+			try
+			{
+				if (!closed)
+				{
+					idle.addLast(pc);
+					released.signal();
+					continue;
+				}
+				size--;
+			} finally
+			{
+				lock.unlock();
+			}
+			// the pool was closed while the connection was opened
+			pc.close();
+			return;
+		}
+	}
+
+	/**
+	 * Closes all idle connections and the ones in use as soon as they are
+	 * returned. Further requests for connections fail.
+	 */
+	public void close()
+	{
+		List<PooledConnection> toClose;
+		lock.lock();
+		try
+		{
+			closed = true;
+			toClose = new ArrayList<PooledConnection>(idle);
+			size -= idle.size();
+			idle.clear();
+			released.signalAll();
+		} finally
+		{
+			lock.unlock();
+		}
+		evictor.shutdownNow();
+		for (PooledConnection pc: toClose)
+			pc.close();
+	}
+
+	/**
+	 * @return number of connections handed out and not yet returned
+	 */
+	public int getActiveConnections()
+	{
+		lock.lock();
+		try
+		{
+			return size - idle.size();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public int getIdleConnections()
+	{
+		lock.lock();
+		try
+		{
+			return idle.size();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public long getCheckoutCount()
+	{
+		return checkouts.get();
+	}
+
+	/**
+	 * @return number of requests that found all connections in use and had
+	 * to wait, including the ones that timed out
+	 */
+	public long getWaitCount()
+	{
+		return waits.get();
+	}
+
+	/**
+	 * @return time spent waiting for connections, in ms
+	 */
+	public long getTotalWaitTime()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+	}
+
+	/**
+	 * @return longest time a request waited for a connection, in ms
+	 */
+	public long getMaxWaitTime()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+	}
+
+	public long getTimeoutCount()
+	{
+		return timeouts.get();
+	}
+
+	public long getCreatedCount()
+	{
+		return created.get();
+	}
+
+	/**
+	 * @return number of connections closed because they were broken or idle
+	 */
+	public long getDiscardedCount()
+	{
+		return discarded.get();
+	}
+
+	public long getStatementCacheHits()
+	{
+		return statementHits.get();
+	}
+
+	public long getStatementCacheMisses()
+	{
+		return statementMisses.get();
+	}
+
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		throw new SQLException("Pooled connections all use the configured credentials");
+	}
+
+	public PrintWriter getLogWriter()
+	{
+		return logWriter;
+	}
+
+	public void setLogWriter(PrintWriter out)
+	{
+		logWriter = out;
+	}
+
+	public int getLoginTimeout()
+	{
+		return loginTimeout;
+	}
+
+	public void setLoginTimeout(int seconds)
+	{
+		loginTimeout = seconds;
+	}
+
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException
+	{
+		if (iface.isInstance(this))
+			return iface.cast(this);
+		throw new SQLException(getClass().getName() + " doesn't wrap " + iface.getName());
+	}
+
+	public boolean isWrapperFor(Class<?> iface)
+	{
+		return iface.isInstance(this);
+	}
+
+	/**
+	 * Unwrapping stops at the pool's proxies: handing out the underlying
+	 * objects would let users close or reconfigure them behind the pool.
+	 */
+	private static Object unwrap(Object proxy, Class<?> iface) throws SQLException
+	{
+		if (iface.isInstance(proxy))
+			return proxy;
+		throw new SQLException("Pooled objects can't be unwrapped to " + iface.getName());
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * A physical connection with its statement cache. It is used by one
+	 * thread at a time, the pool lock orders the hand-overs.
+	 */
+	private class PooledConnection
+	{
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements =
+			new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+			{
+				if (size() <= statementCacheSize)
+					return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+		private long lastUsed;
+		/** values to restore, by the setter the user called */
+		private final Map<String, Object> changed = new HashMap<String, Object>();
+		private boolean unrestorable;
+
+		public PooledConnection(Connection connection)
+		{
+			this.connection = connection;
+		}
+
+		public Connection checkout()
+		{
+			return (Connection) Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+					new Class<?>[] {Connection.class}, new ConnectionHandler(this));
+		}
+
+		/**
+		 * Takes the statement out of the cache while it is in use, so that
+		 * preparing the same SQL twice without closing gives two statements.
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException
+		{
+			PreparedStatement ps = statements.remove(sql);
+			if (ps != null)
+			{
+				statementHits.incrementAndGet();
+				return ps;
+			}
+			statementMisses.incrementAndGet();
+			return connection.prepareStatement(sql);
+		}
+
+		/**
+		 * @param modified whether the user changed settings of the statement,
+		 * in which case it is closed rather than cached
+		 */
+		public void giveBack(String sql, PreparedStatement ps, boolean modified)
+		{
+			if (modified || statementCacheSize <= 0 || statements.containsKey(sql))
+			{
+				closeQuietly(ps);
+				return;
+			}
+			try
+			{
+				ResultSet rs = ps.getResultSet();
+				if (rs != null)
+					rs.close();
+				ps.clearParameters();
+				ps.clearBatch();
+				ps.clearWarnings();
+				statements.put(sql, ps);
+			} catch (SQLException e)
+			{
+				closeQuietly(ps);
+			}
+		}
+
+		/**
+		 * Called before the user calls a setter of the connection: remembers
+		 * the current value if the setting can be restored later on.
+		 */
+		public void remember(String setter) throws SQLException
+		{
+			if (unrestorable || changed.containsKey(setter))
+				return;
+			if (setter.equals("setReadOnly"))
+				changed.put(setter, Boolean.valueOf(connection.isReadOnly()));
+			else if (setter.equals("setTransactionIsolation"))
+				changed.put(setter, Integer.valueOf(connection.getTransactionIsolation()));
+			else if (setter.equals("setCatalog"))
+				changed.put(setter, connection.getCatalog());
+			else if (setter.equals("setHoldability"))
+				changed.put(setter, Integer.valueOf(connection.getHoldability()));
+			else if (setter.equals("setTypeMap"))
+				changed.put(setter, connection.getTypeMap());
+			else
+				unrestorable = true;
+		}
+
+		/**
+		 * Puts back the session settings the user changed.
+		 * @throws SQLException if that fails or a setting was changed that
+		 * can't be put back
+		 */
+		@SuppressWarnings("unchecked")
+		public void restore() throws SQLException
+		{
+			if (unrestorable)
+				throw new SQLException("Connection settings were changed that can't be restored");
+			for (Map.Entry<String, Object> e: changed.entrySet())
+			{
+				String setter = e.getKey();
+				Object value = e.getValue();
+				if (setter.equals("setReadOnly"))
+					connection.setReadOnly(((Boolean) value).booleanValue());
+				else if (setter.equals("setTransactionIsolation"))
+					connection.setTransactionIsolation(((Integer) value).intValue());
+				else if (setter.equals("setCatalog"))
+					connection.setCatalog((String) value);
+				else if (setter.equals("setHoldability"))
+					connection.setHoldability(((Integer) value).intValue());
+				else if (setter.equals("setTypeMap"))
+					connection.setTypeMap((Map<String, Class<?>>) value);
+			}
+			changed.clear();
+		}
+
+		public void close()
+		{
+			for (Iterator<PreparedStatement> it = statements.values().iterator(); it.hasNext();)
+				closeQuietly(it.next());
+			statements.clear();
+			try
+			{
+				connection.close();
+			} catch (SQLException e)
+			{
+				log.debug("Error closing database connection: " + e);
+			}
+		}
+
+		private void closeQuietly(Statement s)
+		{
+			try
+			{
+				s.close();
+			} catch (SQLException e)
+			{
+				log.debug("Error closing statement: " + e);
+			}
+		}
+	}
+
+	/**
+	 * The connection as seen by a user, valid until closed.
+	 */
+	private class ConnectionHandler implements InvocationHandler
+	{
+		private final PooledConnection pc;
+		private final List<StatementHandler> open = new ArrayList<StatementHandler>();
+		private boolean closed;
+
+		public ConnectionHandler(PooledConnection pc)
+		{
+			this.pc = pc;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+			if (name.equals("close"))
+			{
+				if (!closed)
+				{
+					closed = true;
+					// statements the user forgot go back to the cache or are closed
+					for (StatementHandler sh: new ArrayList<StatementHandler>(open))
+						sh.close();
+					release(pc);
+				}
+				return null;
+			}
+			if (name.equals("isClosed"))
+				return Boolean.valueOf(closed);
+			if (name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if (name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if (name.equals("toString"))
+				return "Pooled " + pc.connection;
+			if (closed)
+				throw new SQLException("Connection is closed");
+			if (name.equals("unwrap"))
+				return unwrap(proxy, (Class<?>) args[0]);
+			if (name.equals("isWrapperFor"))
+				return Boolean.valueOf(((Class<?>) args[0]).isInstance(proxy));
+			if (name.startsWith("set") && !TRANSACTION_SETTINGS.contains(name))
+				pc.remember(name);
+			if (name.equals("prepareStatement") && args.length == 1)
+			{
+				String sql = (String) args[0];
+				return track(new StatementHandler(this, (Connection) proxy,
+						sql, pc.prepare(sql)), PreparedStatement.class);
+			}
+			if (name.equals("createStatement") || name.equals("prepareStatement")
+					|| name.equals("prepareCall"))
+			{
+				// other kinds of statements aren't cached
+				Statement s = (Statement) PooledDataSource.invoke(pc.connection, method, args);
+				return track(new StatementHandler(this, (Connection) proxy, null, s),
+						method.getReturnType());
+			}
+			if (name.equals("getMetaData"))
+				return proxy(PooledDataSource.invoke(pc.connection, method, args),
+						DatabaseMetaData.class, (Connection) proxy, null);
+			return PooledDataSource.invoke(pc.connection, method, args);
+		}
+
+		private Object track(StatementHandler sh, Class<?> type)
+		{
+			open.add(sh);
+			return Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+					new Class<?>[] {type}, sh);
+		}
+	}
+
+	/**
+	 * A statement as seen by a user. Closing a cached statement returns it to
+	 * the cache, other statements are closed.
+	 */
+	private class StatementHandler implements InvocationHandler
+	{
+		private final ConnectionHandler owner;
+		private final Connection connection;
+		/** null for a statement that isn't cached */
+		private final String sql;
+		private final Statement statement;
+		private boolean closed;
+		private boolean modified;
+
+		public StatementHandler(ConnectionHandler owner, Connection connection,
+				String sql, Statement statement)
+		{
+			this.owner = owner;
+			this.connection = connection;
+			this.sql = sql;
+			this.statement = statement;
+		}
+
+		public void close()
+		{
+			if (closed)
+				return;
+			closed = true;
+			owner.open.remove(this);
+			if (sql != null)
+				owner.pc.giveBack(sql, (PreparedStatement) statement, modified);
+			else
+				owner.pc.closeQuietly(statement);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+			if (name.equals("close"))
+			{
+				close();
+				return null;
+			}
+			if (name.equals("isClosed"))
+				return Boolean.valueOf(closed);
+			if (name.equals("getConnection"))
+				return connection;
+			if (name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if (name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if (name.equals("toString"))
+				return "Pooled " + statement;
+			if (closed)
+				throw new SQLException("Statement is closed");
+			if (name.equals("unwrap"))
+				return unwrap(proxy, (Class<?>) args[0]);
+			if (name.equals("isWrapperFor"))
+				return Boolean.valueOf(((Class<?>) args[0]).isInstance(proxy));
+			if (STATEMENT_SETTINGS.contains(name))
+				modified = true;
+			return proxy(PooledDataSource.invoke(statement, method, args),
+					method.getReturnType(), connection, (Statement) proxy);
+		}
+	}
+
+	/**
+	 * Result sets and the database meta data are handed out as proxies, so
+	 * that they lead back to the user's statement and connection instead of
+	 * the underlying ones. Other values are returned as they are.
+	 * @param statement the statement proxy a result set belongs to, null for
+	 * result sets of the meta data
+	 */
+	private static Object proxy(Object value, Class<?> type, Connection connection,
+			Statement statement)
+	{
+		if (value == null || (type != ResultSet.class && type != DatabaseMetaData.class))
+			return value;
+		return Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+				new Class<?>[] {type}, new ChildHandler(value, connection, statement));
+	}
+
+	/**
+	 * A result set or the database meta data as seen by a user.
+	 */
+	private static class ChildHandler implements InvocationHandler
+	{
+		private final Object target;
+		private final Connection connection;
+		private final Statement statement;
+
+		public ChildHandler(Object target, Connection connection, Statement statement)
+		{
+			this.target = target;
+			this.connection = connection;
+			this.statement = statement;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+			if (name.equals("getConnection"))
+				return connection;
+			if (name.equals("getStatement"))
+				return statement;
+			if (name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if (name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if (name.equals("toString"))
+				return "Pooled " + target;
+			if (name.equals("unwrap"))
+				return unwrap(proxy, (Class<?>) args[0]);
+			if (name.equals("isWrapperFor"))
+				return Boolean.valueOf(((Class<?>) args[0]).isInstance(proxy));
+			return proxy(PooledDataSource.invoke(target, method, args),
+					method.getReturnType(), connection, null);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package eu.unicore.security.xfireutil.client;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.log4j.Logger;
+import org.codehaus.xfire.client.Client;
+import org.codehaus.xfire.transport.http.CommonsHttpMessageSender;
+
+import eu.unicore.security.xfireutil.LogPfx;
+
+/**
+ * Creates {@link HttpClient}s that share a pool of keep-alive connections,
+ * opened through an {@link AuthSSLProtocolSocketFactory}.
+ * <p>
+ * Connections are pooled per host, up to a maximum per host and in total.
+ * Before a pooled connection is reused it is checked for having been closed
+ * by the server (stale checking); connections idle for longer than the idle
+ * timeout are closed by a background thread once {@link #start()} was
+ * called.
+ * <p>
+ * To use the pool from XFire, call {@link #configure(Client)} on the client
+ * proxy and {@link #registerProtocol()} once, so that https URLs are opened
+ * through the factory.
+ */
+public class PooledHttpClientFactory
+{
+	private static final Logger LOG = Logger.getLogger(LogPfx.LOG_PFX +
+		 PooledHttpClientFactory.class.getSimpleName());
+
+	public static final int DEFAULT_MAX_PER_HOST = 20;
+	public static final int DEFAULT_MAX_TOTAL = 200;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	private final AuthSSLProtocolSocketFactory socketFactory;
+	private final Protocol protocol;
+	private final MultiThreadedHttpConnectionManager manager;
+	private IdleConnectionTimeoutThread evictor;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	public PooledHttpClientFactory(IAuthenticationConfiguration sec)
+	{
+		this(new AuthSSLProtocolSocketFactory(sec));
+	}
+
+	public PooledHttpClientFactory(AuthSSLProtocolSocketFactory socketFactory)
+	{
+		this.socketFactory = socketFactory;
+		this.protocol = new Protocol("https", 
+				(ProtocolSocketFactory) socketFactory, 443);
+		this.manager = new MultiThreadedHttpConnectionManager();
+		HttpConnectionManagerParams params = manager.getParams();
+		params.setDefaultMaxConnectionsPerHost(DEFAULT_MAX_PER_HOST);
+		params.setMaxTotalConnections(DEFAULT_MAX_TOTAL);
+		params.setConnectionTimeout(DEFAULT_CONNECT_TIMEOUT);
+		params.setStaleCheckingEnabled(true);
+	}
+
+	/**
+	 * Sets the maximum number of pooled connections to a single host.
+	 */
+	public void setMaxConnectionsPerHost(int max)
+	{
+		manager.getParams().setDefaultMaxConnectionsPerHost(max);
+	}
+
+	/**
+	 * Sets the maximum number of pooled connections to all hosts.
+	 */
+	public void setMaxTotalConnections(int max)
+	{
+		manager.getParams().setMaxTotalConnections(max);
+	}
+
+	/**
+	 * Sets the timeout for establishing a connection, in milliseconds.
+	 */
+	public void setConnectTimeout(int timeout)
+	{
+		manager.getParams().setConnectionTimeout(timeout);
+	}
+
+	/**
+	 * Sets the read timeout of pooled connections, in milliseconds.
+	 */
+	public void setSocketTimeout(int timeout)
+	{
+		manager.getParams().setSoTimeout(timeout);
+	}
+
+	/**
+	 * Sets whether a pooled connection is checked before it is reused.
+	 * Enabled by default.
+	 */
+	public void setStaleChecking(boolean enabled)
+	{
+		manager.getParams().setStaleCheckingEnabled(enabled);
+	}
+
+	/**
+	 * Sets after how many milliseconds an unused connection is closed. Must
+	 * be set before {@link #start()}.
+	 */
+	public void setIdleTimeout(long idleTimeout)
+	{
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Starts closing idle connections in the background.
+	 */
+	public synchronized void start()
+	{
+		if (evictor != null)
+			return;
+		evictor = new IdleConnectionTimeoutThread();
+		evictor.setName("idle-connection-evictor");
+		evictor.setConnectionTimeout(idleTimeout);
+		evictor.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+		evictor.addConnectionManager(manager);
+		evictor.start();
+		LOG.debug("Closing connections idle for more than " + idleTimeout + "ms");
+	}
+
+	/**
+	 * Closes all pooled connections and stops the background thread.
+	 */
+	public synchronized void shutdown()
+	{
+		if (evictor != null)
+		{
+			evictor.shutdown();
+			evictor = null;
+		}
+		manager.shutdown();
+	}
+
+	/**
+	 * @return a client using the shared connection pool
+	 */
+	public HttpClient createHttpClient()
+	{
+		return new HttpClient(manager);
+	}
+
+	/**
+	 * Makes an XFire client proxy send its requests through the shared
+	 * connection pool.
+	 */
+	public void configure(Client client)
+	{
+		client.setProperty(CommonsHttpMessageSender.HTTP_CLIENT, createHttpClient());
+	}
+
+	/**
+	 * Registers the socket factory for all https URLs of this JVM, as XFire
+	 * resolves the protocol from the URL.
+	 */
+	public void registerProtocol()
+	{
+		Protocol.registerProtocol("https", protocol);
+	}
+
+	/**
+	 * @return a host configuration connecting to the given host through the
+	 * socket factory, for use with relative request URIs
+	 */
+	public HostConfiguration getHostConfiguration(String host, int port)
+	{
+		HostConfiguration hc = new HostConfiguration();
+		hc.setHost(host, port, protocol);
+		return hc;
+	}
+
+	public AuthSSLProtocolSocketFactory getSocketFactory()
+	{
+		return socketFactory;
+	}
+
+	/**
+	 * @return the number of connections currently open, in use or idle
+	 */
+	public int getConnectionsInPool()
+	{
+		return manager.getConnectionsInPool();
+	}
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.launch.support;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.launch.JobLauncher;
+import org.springframework.batch.core.listener.BatchMetricsListener;
+import org.springframework.batch.core.repository.JobExecutionAlreadyRunningException;
+import org.springframework.batch.core.repository.JobInstanceAlreadyCompleteException;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.JobRestartException;
+import org.springframework.batch.repeat.ExitStatus;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Asynchronous {@link JobLauncher} that runs job executions on a bounded,
+ * prioritized thread pool instead of the caller's thread.
+ * <p>
+ * Launch requests are admitted per job name: at most
+ * <code>maxConcurrentInstances</code> executions of the same job run at any
+ * time (configurable per job name), further requests wait in a per-job
+ * priority queue without holding a thread. Admitted executions are handed to
+ * a fixed size pool whose work queue is ordered by priority (higher first)
+ * and then by submission order. The total number of launched but not yet
+ * started executions is bounded by <code>queueCapacity</code>; beyond that
+ * {@link #launch(Job, JobParameters, int)} fails fast with a
+ * {@link TaskRejectedException}.
+ * <p>
+ * The {@link JobExecution} is created in the repository before the launch
+ * returns, so the caller can track it straight away through the returned
+ * {@link JobExecutionHandle}. Cancelling the handle stops the execution using
+ * the usual {@link JobExecution#stop()} semantics: a running job is
+ * interrupted at the next step boundary, one that has not started yet ends
+ * as <code>STOPPED</code> without running any step.
+ */
+public class PriorityJobLauncher implements JobLauncher, InitializingBean, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(PriorityJobLauncher.class);
+
+	private JobRepository jobRepository;
+
+	private int poolSize = 4;
+
+	private int queueCapacity = 1000;
+
+	private int maxConcurrentInstances = Integer.MAX_VALUE;
+
+	private Map<String, Integer> maxConcurrentInstancesPerJob = new HashMap<String, Integer>();
+
+	private BatchMetricsListener metricsListener;
+
+	private ThreadPoolExecutor executor;
+
+	private Semaphore pending;
+
+	private final Map<String, Admission> admissions = new HashMap<String, Admission>();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Set by {@link #destroy()}. Guarded by the admissions map.
+	 */
+	private boolean shutdown = false;
+
+	/**
+	 * Public setter for the {@link JobRepository}.
+	 *
+	 * @param jobRepository is a mandatory dependence (no default).
+	 */
+	public void setJobRepository(JobRepository jobRepository) {
+		this.jobRepository = jobRepository;
+	}
+
+	/**
+	 * The number of threads running job executions. Defaults to 4.
+	 *
+	 * @param poolSize the pool size to set
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * The maximum number of launched executions that have not started yet.
+	 * Defaults to 1000.
+	 *
+	 * @param queueCapacity the capacity to set
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * The maximum number of concurrently running executions of any one job,
+	 * unless overridden per job name. Defaults to unlimited.
+	 *
+	 * @param maxConcurrentInstances the limit to set
+	 */
+	public void setMaxConcurrentInstances(int maxConcurrentInstances) {
+		this.maxConcurrentInstances = maxConcurrentInstances;
+	}
+
+	/**
+	 * Per job name overrides of {@link #setMaxConcurrentInstances(int)}.
+	 *
+	 * @param maxConcurrentInstancesPerJob map from job name to limit
+	 */
+	public void setMaxConcurrentInstancesPerJob(Map<String, Integer> maxConcurrentInstancesPerJob) {
+		this.maxConcurrentInstancesPerJob = maxConcurrentInstancesPerJob;
+	}
+
+	/**
+	 * Optional listener to which the time each execution spent queued is
+	 * reported, under the name of its job.
+	 *
+	 * @param metricsListener the listener to set
+	 */
+	public void setMetricsListener(BatchMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	public void afterPropertiesSet() throws Exception {
+		Assert.state(jobRepository != null, "A JobRepository has not been set.");
+		Assert.state(poolSize > 0, "The pool size must be positive.");
+		Assert.state(queueCapacity > 0, "The queue capacity must be positive.");
+		Assert.state(maxConcurrentInstances > 0, "The maximum number of concurrent instances must be positive.");
+		pending = new Semaphore(queueCapacity);
+		executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), new CustomizableThreadFactory("jobLauncher-"));
+	}
+
+	/**
+	 * Stop accepting launches and wait for the running executions to finish.
+	 * Executions that have not started yet are not run: their handles are
+	 * cancelled (waiting on them throws a <code>CancellationException</code>)
+	 * and they are recorded as <code>STOPPED</code> in the repository.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	public void destroy() throws Exception {
+		List<Runnable> notStarted = new ArrayList<Runnable>();
+		synchronized (admissions) {
+			shutdown = true;
+			for (Iterator<Admission> iterator = admissions.values().iterator(); iterator.hasNext();) {
+				notStarted.addAll(iterator.next().waiting);
+			}
+			admissions.clear();
+			executor.shutdown();
+		}
+		executor.getQueue().drainTo(notStarted);
+		for (Iterator<Runnable> iterator = notStarted.iterator(); iterator.hasNext();) {
+			abandon((LaunchTask) iterator.next());
+		}
+		if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+			logger.warn("Job executions still running after shutdown of the launcher");
+		}
+	}
+
+	/**
+	 * Launch with default priority (0).
+	 *
+	 * @see org.springframework.batch.core.launch.JobLauncher#run(org.springframework.batch.core.Job,
+	 * org.springframework.batch.core.JobParameters)
+	 */
+	public JobExecution run(Job job, JobParameters jobParameters) throws JobExecutionAlreadyRunningException,
+			JobRestartException, JobInstanceAlreadyCompleteException {
+		return launch(job, jobParameters, 0).getJobExecution();
+	}
+
+	/**
+	 * Create a {@link JobExecution} for the given job and parameters and queue
+	 * it for asynchronous execution.
+	 *
+	 * @param job the job to run
+	 * @param jobParameters the parameters identifying the job instance
+	 * @param priority executions with a higher priority are started first
+	 * @return a handle on the queued execution
+	 * @throws TaskRejectedException if <code>queueCapacity</code> executions
+	 * are already waiting
+	 */
+	public JobExecutionHandle launch(Job job, JobParameters jobParameters, int priority)
+			throws JobExecutionAlreadyRunningException, JobRestartException, JobInstanceAlreadyCompleteException {
+
+		Assert.state(executor != null, "The launcher has not been initialized (call afterPropertiesSet)");
+		synchronized (admissions) {
+			if (shutdown) {
+				throw new TaskRejectedException("The launcher has been shut down");
+			}
+		}
+		if (!pending.tryAcquire()) {
+			throw new TaskRejectedException("Launch queue is full (" + queueCapacity + " pending executions)");
+		}
+		JobExecution jobExecution;
+		try {
+			jobExecution = jobRepository.createJobExecution(job, jobParameters);
+		}
+		catch (RuntimeException e) {
+			pending.release();
+			throw e;
+		}
+		catch (JobExecutionAlreadyRunningException e) {
+			pending.release();
+			throw e;
+		}
+		catch (JobRestartException e) {
+			pending.release();
+			throw e;
+		}
+		catch (JobInstanceAlreadyCompleteException e) {
+			pending.release();
+			throw e;
+		}
+
+		LaunchTask task = new LaunchTask(job, jobExecution, priority, sequence.getAndIncrement());
+		admit(task);
+		logger.info("Job: [" + job + "] queued with priority " + priority + " and parameters: [" + jobParameters
+				+ "]");
+		return task.handle;
+	}
+
+	/**
+	 * @param jobName the name of a job
+	 * @return the number of executions of that job currently admitted to the
+	 * pool (queued there or running)
+	 */
+	public int getActiveCount(String jobName) {
+		synchronized (admissions) {
+			Admission admission = admissions.get(jobName);
+			return admission == null ? 0 : admission.active;
+		}
+	}
+
+	/**
+	 * @return the number of launched executions that have not started yet
+	 */
+	public int getPendingCount() {
+		return queueCapacity - pending.availablePermits();
+	}
+
+	private void admit(LaunchTask task) {
+		synchronized (admissions) {
+			if (shutdown) {
+				abandon(task);
+				throw new TaskRejectedException("The launcher has been shut down");
+			}
+			Admission admission = admissions.get(task.job.getName());
+			if (admission == null) {
+				admission = new Admission(getLimit(task.job.getName()));
+				admissions.put(task.job.getName(), admission);
+			}
+			if (admission.active < admission.limit) {
+				admission.active++;
+				executor.execute(task);
+			}
+			else {
+				logger.debug("Maximum concurrent instances reached for job " + task.job.getName()
+						+ ", holding execution back");
+				admission.waiting.add(task);
+			}
+		}
+	}
+
+	private void release(LaunchTask task) {
+		synchronized (admissions) {
+			if (shutdown) {
+				// waiting executions are abandoned by destroy()
+				return;
+			}
+			Admission admission = admissions.get(task.job.getName());
+			admission.active--;
+			LaunchTask next = admission.waiting.poll();
+			if (next != null) {
+				admission.active++;
+				executor.execute(next);
+			}
+			else if (admission.active == 0) {
+				admissions.remove(task.job.getName());
+			}
+		}
+	}
+
+	/**
+	 * End an execution that will never be started: cancel its handle, give
+	 * back its place in the queue and record it as stopped.
+	 */
+	private void abandon(LaunchTask task) {
+		pending.release();
+		task.cancel(false);
+		JobExecution jobExecution = task.handle.getJobExecution();
+		jobExecution.setStatus(BatchStatus.STOPPED);
+		jobExecution.setExitStatus(ExitStatus.FAILED
+				.addExitDescription("The launcher was shut down before the execution started"));
+		jobExecution.setEndTime(new Date());
+		jobRepository.saveOrUpdate(jobExecution);
+		logger.info("Job: [" + task.job + "] not started, the launcher was shut down");
+	}
+
+	private int getLimit(String jobName) {
+		Integer limit = maxConcurrentInstancesPerJob.get(jobName);
+		return limit == null ? maxConcurrentInstances : limit.intValue();
+	}
+
+	/**
+	 * Per job name admission state. Guarded by the admissions map.
+	 */
+	private static class Admission {
+
+		private final int limit;
+
+		private int active;
+
+		private final PriorityQueue<LaunchTask> waiting = new PriorityQueue<LaunchTask>();
+
+		private Admission(int limit) {
+			this.limit = limit;
+		}
+
+	}
+
+	/**
+	 * Queued job execution, ordered by priority and then submission order.
+	 */
+	private class LaunchTask extends FutureTask<JobExecution> implements Comparable<LaunchTask> {
+
+		private final Job job;
+
+		private final int priority;
+
+		private final long sequence;
+
+		private final long queuedAt = System.nanoTime();
+
+		private final JobExecutionHandle handle;
+
+		private LaunchTask(final Job job, final JobExecution jobExecution, int priority, long sequence) {
+			super(new Callable<JobExecution>() {
+				public JobExecution call() throws Exception {
+					job.execute(jobExecution);
+					return jobExecution;
+				}
+			});
+			this.job = job;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.handle = new JobExecutionHandle(this, jobExecution);
+		}
+
+		public void run() {
+			pending.release();
+			if (metricsListener != null) {
+				metricsListener.recordQueueWait(job.getName(), System.nanoTime() - queuedAt);
+			}
+			try {
+				super.run();
+			}
+			finally {
+				release(this);
+			}
+		}
+
+		public int compareTo(LaunchTask other) {
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.launch.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.job.JobSupport;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.dao.MapJobExecutionDao;
+import org.springframework.batch.core.repository.dao.MapJobInstanceDao;
+import org.springframework.batch.core.repository.dao.MapStepExecutionDao;
+import org.springframework.batch.core.repository.support.SimpleJobRepository;
+import org.springframework.core.task.TaskRejectedException;
+
+/**
+ * Tests for {@link PriorityJobLauncher}: priority ordering, admission per job
+ * name and shutdown with executions still queued.
+ */
+public class PriorityJobLauncherTests extends TestCase {
+
+	private JobRepository jobRepository;
+
+	private PriorityJobLauncher launcher;
+
+	private List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+	private CountDownLatch release = new CountDownLatch(1);
+
+	private long run = 0;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		MapJobInstanceDao.clear();
+		MapJobExecutionDao.clear();
+		MapStepExecutionDao.clear();
+		jobRepository = new SimpleJobRepository(new MapJobInstanceDao(), new MapJobExecutionDao(),
+				new MapStepExecutionDao());
+		launcher = new PriorityJobLauncher();
+		launcher.setJobRepository(jobRepository);
+	}
+
+	protected void tearDown() throws Exception {
+		release.countDown();
+		launcher.destroy();
+		super.tearDown();
+	}
+
+	public void testHigherPriorityStartedFirst() throws Exception {
+		launcher.setPoolSize(1);
+		launcher.afterPropertiesSet();
+		JobExecutionHandle blocker = launcher.launch(new BlockingJob("blocker"), nextParameters(), 0);
+		waitForStart(1);
+
+		List<JobExecutionHandle> handles = new ArrayList<JobExecutionHandle>();
+		handles.add(launcher.launch(new BlockingJob("low"), nextParameters(), 0));
+		handles.add(launcher.launch(new BlockingJob("high"), nextParameters(), 5));
+		handles.add(launcher.launch(new BlockingJob("medium"), nextParameters(), 1));
+		handles.add(launcher.launch(new BlockingJob("high2"), nextParameters(), 5));
+		assertEquals(4, launcher.getPendingCount());
+
+		release.countDown();
+		blocker.get(10, TimeUnit.SECONDS);
+		for (JobExecutionHandle handle : handles) {
+			handle.get(10, TimeUnit.SECONDS);
+		}
+		assertEquals("[blocker, high, high2, medium, low]", started.toString());
+		assertEquals(0, launcher.getPendingCount());
+	}
+
+	public void testConcurrentInstancesLimitedPerJob() throws Exception {
+		launcher.setPoolSize(4);
+		launcher.setMaxConcurrentInstances(1);
+		launcher.afterPropertiesSet();
+		List<JobExecutionHandle> handles = new ArrayList<JobExecutionHandle>();
+		for (int i = 0; i < 3; i++) {
+			handles.add(launcher.launch(new BlockingJob("limited"), nextParameters(), 0));
+		}
+		JobExecutionHandle other = launcher.launch(new BlockingJob("other"), nextParameters(), 0);
+		waitForStart(2);
+		Thread.sleep(100);
+
+		assertEquals(2, started.size());
+		assertTrue(started.contains("other"));
+		assertEquals(1, launcher.getActiveCount("limited"));
+		assertEquals(2, launcher.getPendingCount());
+
+		release.countDown();
+		for (JobExecutionHandle handle : handles) {
+			handle.get(10, TimeUnit.SECONDS);
+		}
+		other.get(10, TimeUnit.SECONDS);
+		assertEquals(4, started.size());
+		// the admission is given back just after the handle completes
+		for (int i = 0; i < 100 && launcher.getActiveCount("limited") > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, launcher.getActiveCount("limited"));
+	}
+
+	public void testDestroyAbandonsQueuedExecutions() throws Exception {
+		launcher.setPoolSize(1);
+		launcher.setMaxConcurrentInstances(1);
+		launcher.afterPropertiesSet();
+		JobExecutionHandle running = launcher.launch(new BlockingJob("job"), nextParameters(), 0);
+		waitForStart(1);
+		// one held back by the admission limit, one queued in the pool
+		JobExecutionHandle heldBack = launcher.launch(new BlockingJob("job"), nextParameters(), 0);
+		JobExecutionHandle queued = launcher.launch(new BlockingJob("other"), nextParameters(), 0);
+
+		Thread destroyer = new Thread() {
+			public void run() {
+				try {
+					launcher.destroy();
+				}
+				catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		destroyer.start();
+		for (int i = 0; i < 100 && !(heldBack.isDone() && queued.isDone()); i++) {
+			Thread.sleep(50);
+		}
+		assertFalse(running.isDone());
+
+		release.countDown();
+		destroyer.join(10000);
+		assertFalse(destroyer.isAlive());
+
+		assertSame(running.getJobExecution(), running.get());
+		assertEquals(1, started.size());
+		assertAbandoned(heldBack);
+		assertAbandoned(queued);
+		assertEquals(0, launcher.getPendingCount());
+
+		try {
+			launcher.launch(new BlockingJob("job"), nextParameters(), 0);
+			fail();
+		}
+		catch (TaskRejectedException e) {
+			// expected
+		}
+	}
+
+	private void assertAbandoned(JobExecutionHandle handle) throws Exception {
+		try {
+			handle.get(1, TimeUnit.SECONDS);
+			fail();
+		}
+		catch (CancellationException e) {
+			// expected
+		}
+		JobExecution jobExecution = handle.getJobExecution();
+		assertEquals(BatchStatus.STOPPED, jobExecution.getStatus());
+		assertNotNull(jobExecution.getEndTime());
+	}
+
+	private JobParameters nextParameters() {
+		return new JobParametersBuilder().addLong("run", new Long(run++)).toJobParameters();
+	}
+
+	private void waitForStart(int count) throws InterruptedException {
+		for (int i = 0; i < 200 && started.size() < count; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue("Only " + started.size() + " of " + count + " jobs started", started.size() >= count);
+	}
+
+	/**
+	 * Records its start under its name and then blocks until the test
+	 * releases it.
+	 */
+	private class BlockingJob extends JobSupport {
+
+		public BlockingJob(String name) {
+			super(name);
+		}
+
+		public void execute(JobExecution execution) {
+			started.add(getName());
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+}
@@ -32,12 +32,14 @@
 package de.fzj.hila.implementation.unicore6.config;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.w3.x2005.x08.addressing.EndpointReferenceType;
 
 import de.fzj.hila.Location;
@@ -49,7 +51,6 @@ import de.fzj.hila.implementation.unicore6.Unicore6ID;
 import de.fzj.hila.implementation.unicore6.Unicore6SecurityProperties;
 import de.fzj.hila.implementation.unicore6.Unicore6Site;
 import de.fzj.unicore.uas.TargetSystemFactory;
-import de.fzj.unicore.uas.client.BaseUASClient;
 import de.fzj.unicore.uas.client.RegistryClient;
 
 /**
@@ -57,7 +58,7 @@ import de.fzj.unicore.uas.client.RegistryClient;
  * @author bjoernh
  *
  */
-public class RegistryConfig extends MapBackedConfig
+public class RegistryConfig extends MapBackedConfig implements DisposableBean
 {
 
   private String registryURL = null;
@@ -70,6 +71,14 @@ public class RegistryConfig extends MapBackedConfig
 
   List<Site> registrySites = null;
 
+  private int probeThreads = 8;
+
+  private long probeTimeout = 5000L;
+
+  private TSFProber prober = null;
+
+  private volatile List<TSFProber.Result> lastProbeResults = Collections.emptyList();
+
   private static final Logger log = LoggerFactory.getLogger(RegistryConfig.class);
 
   @SuppressWarnings("unchecked")
@@ -97,6 +106,11 @@ public class RegistryConfig extends MapBackedConfig
     {
       getSitesFromRegistry();
     }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new HiLAException("Interrupted while getting sites from registry.");
+    }
     catch (Exception e)
     {
       throw new HiLAException("Couldn't get sites from registry.");
@@ -115,7 +129,7 @@ public class RegistryConfig extends MapBackedConfig
 
   private List<Site> getSitesFromRegistry() throws Exception
   {
-    registrySites = new ArrayList<Site>();
+    List<Site> sites = new ArrayList<Site>();
     if (regClient == null)
     {
       createRegistryClient();
@@ -125,35 +139,111 @@ public class RegistryConfig extends MapBackedConfig
       log.debug("About to query registry for available TSFs.");
       List<EndpointReferenceType> siteEPRs = regClient.listAccessibleServices(TargetSystemFactory.TSF_PORT);
       log.debug("Accessible TSF_PORTs: " + siteEPRs.size());
-      for (EndpointReferenceType siteEPR : siteEPRs)
+      List<TSFProber.Result> results = getProber().probe(siteEPRs,
+          (Unicore6SecurityProperties) regClient.getSecurityProperties().clone());
+      for (TSFProber.Result result : results)
       {
+        if (!result.isAlive())
+        {
+          // don't add to avail tss
+          log.debug("TSF not accessible: " + result);
+          continue;
+        }
+        log.debug("TSF accessible: " + result);
+        // Chicken or egg?
+        // Can't get site's name w/o credentials
+        // Can't create site w/o site's name
         try
         {
-          log.debug("Testing accessibility of TSF");
-          new BaseUASClient(siteEPR.getAddress().getStringValue(), siteEPR, (Unicore6SecurityProperties) regClient.getSecurityProperties().clone()).getCurrentTime();
-          log.debug("TSF accessible");
-          // Chicken or egg?
-          // Can't get site's name w/o credentials
-          // Can't create site w/o site's name
-          Unicore6Site u6Site = new Unicore6Site(null, siteEPR, this.grid, (Unicore6ID) regClient.getSecurityProperties().clone());
-          registrySites.add(u6Site);
-          grid.setCachedSite(u6Site.getLocation().getSiteLocation(), u6Site);
-          getConfig().put(u6Site.getLocation().getSiteLocation(), u6Site.getSecurityProperties());
+          sites.add(new Unicore6Site(null, result.getTSF(), this.grid, (Unicore6ID) regClient
+              .getSecurityProperties().clone()));
         }
         catch (Exception e)
         {
-          // don't add to avail tss
+          log.debug("Couldn't create site for " + result.getURL(), e);
         }
       }
+      lastProbeResults = results;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw e;
     }
     catch (Exception e)
     {
       // TODO Auto-generated catch block
       e.printStackTrace();
     }
+    // hand all sites to the grid in one go once probing is over, so nobody
+    // sees a half-probed registry
+    for (Site site : sites)
+    {
+      Unicore6Site u6Site = (Unicore6Site) site;
+      grid.setCachedSite(u6Site.getLocation().getSiteLocation(), u6Site);
+      getConfig().put(u6Site.getLocation().getSiteLocation(), u6Site.getSecurityProperties());
+    }
+    registrySites = sites;
     return registrySites;
   }
 
+  private synchronized TSFProber getProber()
+  {
+    if (prober == null)
+    {
+      prober = new TSFProber(probeThreads, probeTimeout);
+    }
+    return prober;
+  }
+
+  /**
+   * Stops the threads probing the TSFs.
+   */
+  public synchronized void destroy()
+  {
+    if (prober != null)
+    {
+      prober.shutdown();
+      prober = null;
+    }
+  }
+
+  /**
+   * @return the outcome of probing each TSF during the last refresh, with
+   *         latency and failure cause; empty before the first refresh
+   */
+  public List<TSFProber.Result> getLastProbeResults()
+  {
+    return lastProbeResults;
+  }
+
+  /**
+   * Maximum number of TSFs probed at the same time. Defaults to 8.
+   */
+  public void setProbeThreads(int probeThreads)
+  {
+    this.probeThreads = probeThreads;
+  }
+
+  public int getProbeThreads()
+  {
+    return probeThreads;
+  }
+
+  /**
+   * Milliseconds a single TSF gets to answer before it is left out.
+   * Defaults to 5000.
+   */
+  public void setProbeTimeout(long probeTimeout)
+  {
+    this.probeTimeout = probeTimeout;
+  }
+
+  public long getProbeTimeout()
+  {
+    return probeTimeout;
+  }
+
   public Unicore6Grid getGrid()
   {
     return grid;
@@ -4,14 +4,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.Certificate;
+import java.io.InputStream;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.xmlbeans.XmlException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import xmlbeans.org.oasis.saml2.assertion.AssertionDocument;
 import eu.unicore.security.UnicoreSecurityFactory;
@@ -28,6 +43,33 @@ public class SAMLFileRetriever
 
   private static final String JKS_PROP = "unicore.wsrflite.ssl.keystore";
 
+  /**
+   * Longest time before expiry at which an assertion is renewed. Shorter
+   * lived assertions are renewed when 90% of their validity has passed.
+   */
+  private static final long RENEWAL_MARGIN = 60 * 60 * 1000L;
+
+  /**
+   * Assertions not asked for within this time before they are due for
+   * renewal are dropped from memory instead of being renewed.
+   */
+  private static final long RENEWAL_WINDOW = 24 * 60 * 60 * 1000L;
+
+  private static final Logger log = LoggerFactory.getLogger(SAMLFileRetriever.class);
+
+  /** parsed assertions by absolute file name, shared by all instances */
+  private static final ConcurrentMap<File, CachedAssertion> assertions = new ConcurrentHashMap<File, CachedAssertion>();
+
+  private static final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+  {
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r, "saml-renewal");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
   private File root;
   
   public SAMLFileRetriever(File root) 
@@ -35,10 +77,28 @@ public class SAMLFileRetriever
     this.root = root;
   }
   
+  /**
+   * Returns a valid assertion for the user, reading it from the user's
+   * <code>.saml</code> file or creating a new one if there is no valid file.
+   * 
+   * Parsed assertions are kept in memory as long as their file is unchanged.
+   * Shortly before it expires, an assertion asked for within the last day is
+   * replaced by a fresh one, others are dropped and created again on demand.
+   * The returned document is shared and must not be modified.
+   */
   public AssertionDocument getSAMLAssertion(String userId)
   {
+    File assertion = assertionFile(userId);
+    long lastModified = assertion.lastModified();
+    CachedAssertion cached = assertions.get(assertion);
+    long now = System.currentTimeMillis();
+    if (cached != null && cached.lastModified == lastModified && cached.isValid(now))
+    {
+      cached.lastAccess = now;
+      return cached.document;
+    }
+
     AssertionDocument ad = null;
-    File assertion = new File( root, userId + "/" + userId + ".saml");
     if (assertion.exists())
     {
       try
@@ -66,6 +126,10 @@ public class SAMLFileRetriever
       { // quick hack to invalidate outdated assertions.
         ad = null;
       }
+      else
+      {
+        cache(userId, assertion, lastModified, ad, now);
+      }
     }
 
     if (ad == null)
@@ -75,7 +139,77 @@ public class SAMLFileRetriever
     return ad;
   }
 
+  /**
+   * Cancels all scheduled renewals and forgets all parsed assertions, e.g.
+   * once the store they were read from is gone.
+   */
+  static void clearCache()
+  {
+    for (CachedAssertion cached : assertions.values())
+    {
+      ScheduledFuture<?> renewal = cached.renewal;
+      if (renewal != null)
+      {
+        renewal.cancel(false);
+      }
+    }
+    assertions.clear();
+  }
+
+  private File assertionFile(String userId)
+  {
+    return new File(root, userId + "/" + userId + ".saml").getAbsoluteFile();
+  }
+
+  /**
+   * Remembers a parsed assertion and schedules its renewal shortly before it
+   * expires.
+   * 
+   * @param lastAccess
+   *          when the user last asked for an assertion
+   */
+  private void cache(final String userId, final File file, long lastModified, AssertionDocument ad, long lastAccess)
+  {
+    final CachedAssertion entry = new CachedAssertion(ad, lastModified);
+    entry.lastAccess = lastAccess;
+    CachedAssertion previous = assertions.put(file, entry);
+    if (previous != null && previous.renewal != null)
+    {
+      previous.renewal.cancel(false);
+    }
+    if (entry.notAfter == Long.MAX_VALUE)
+    {
+      return;
+    }
+    long margin = Math.min(RENEWAL_MARGIN, (entry.notAfter - entry.notBefore) / 10);
+    long delay = Math.max(0, entry.notAfter - margin - System.currentTimeMillis());
+    entry.renewal = renewer.schedule(new Runnable()
+    {
+      public void run()
+      {
+        if (assertions.get(file) != entry)
+        {
+          // replaced in the meantime
+          return;
+        }
+        if (System.currentTimeMillis() - entry.lastAccess > RENEWAL_WINDOW)
+        {
+          log.debug("Dropping unused SAML assertion for " + userId);
+          assertions.remove(file, entry);
+          return;
+        }
+        log.debug("Renewing SAML assertion for " + userId);
+        createSAMLAssertion(userId, entry.lastAccess);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
   private AssertionDocument createSAMLAssertion(String userId)
+  {
+    return createSAMLAssertion(userId, System.currentTimeMillis());
+  }
+
+  private AssertionDocument createSAMLAssertion(String userId, long lastAccess)
   {
     AssertionDocument ad = null;
     File userKeystore = new File(root, userId + "/" + userId + ".jks");
@@ -85,37 +219,15 @@ public class SAMLFileRetriever
     {
       try
       {
-        KeyStore userJKS = KeyStore.getInstance(KeyStore.getDefaultType());
-        Properties userSecProps = new Properties();
-        userSecProps.load(new FileInputStream(userSecurity));
-
-        userJKS.load(new FileInputStream(userKeystore), userSecProps.getProperty(PASSWORD_PROP).toCharArray());
+        Properties userSecProps = loadProperties(userSecurity);
+        CredentialCache.Credential user = CredentialCache.get(userKeystore, userSecProps.getProperty(PASSWORD_PROP),
+            userSecProps.getProperty(ALIAS_PROP));
 
-        Certificate userCert = userJKS.getCertificate(userSecProps.getProperty(ALIAS_PROP));
-        X509Certificate userX509 = null;
-        String userDN = null;
-        
-        if (userCert instanceof X509Certificate)
-        {
-          userX509 = (X509Certificate) userCert;
-          userDN = userX509.getSubjectDN().getName();
-        }
-
-        KeyStore agentjks = KeyStore.getInstance(KeyStore.getDefaultType());
-        Properties agentsecprops = new Properties();
         File agentsecfile = new File(this.root.getParentFile(), "1" );
         File agentsec = (File) MegaConfig.XS.fromXML(new FileReader(agentsecfile));
-        agentsecprops.load(new FileInputStream(agentsec));
-
-        agentjks.load(new FileInputStream(new File(agentsecprops.getProperty(JKS_PROP))), agentsecprops.getProperty(PASSWORD_PROP).toCharArray());
-        String agentdn = null;
-        Certificate agentcert = agentjks.getCertificate(agentsecprops.getProperty(ALIAS_PROP));
-        X509Certificate agentX509 = null;
-        if (agentcert instanceof X509Certificate)
-        {
-          agentX509 = (X509Certificate) agentcert;
-          agentdn = agentX509.getSubjectDN().getName();
-        }
+        Properties agentsecprops = loadProperties(agentsec);
+        CredentialCache.Credential agent = CredentialCache.get(new File(agentsecprops.getProperty(JKS_PROP)),
+            agentsecprops.getProperty(PASSWORD_PROP), agentsecprops.getProperty(ALIAS_PROP));
 
         ETDApi engine = UnicoreSecurityFactory.getETDEngine();
         Calendar until = Calendar.getInstance();
@@ -123,15 +235,17 @@ public class SAMLFileRetriever
         DelegationRestrictions dr = new DelegationRestrictions(Calendar.getInstance().getTime(), until.getTime(), 10);
         
         TrustDelegation td = engine.generateTD( 
-            userDN, 
-            new X509Certificate[] { userX509 }, 
-            (PrivateKey) userJKS.getKey(userSecProps.getProperty(ALIAS_PROP), userSecProps.getProperty(PASSWORD_PROP).toCharArray()), 
-            agentdn, 
+            user.getDN(), 
+            new X509Certificate[] { user.getCertificate() }, 
+            user.getKey(), 
+            agent.getDN(), 
             dr
         );
 
         ad = td.getXML();
-        ad.save(new File(root, userId + "/" + userId + ".saml"));
+        File assertion = assertionFile(userId);
+        ad.save(assertion);
+        cache(userId, assertion, assertion.lastModified(), ad, lastAccess);
       }
       catch (Exception e)
       {
@@ -141,15 +255,122 @@ public class SAMLFileRetriever
     return ad;
   }
 
+  private static Properties loadProperties(File file) throws IOException
+  {
+    Properties props = new Properties();
+    InputStream in = new FileInputStream(file);
+    try
+    {
+      props.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+    return props;
+  }
+
   public void generateSAMLifNeccessary() throws Exception
   {
-    for (String s : this.root.list())
+    generateSAMLifNeccessary(Collections.singletonList(root), Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates assertions for all users below any of the given user
+   * directories that don't have one yet, using up to parallelism threads.
+   * The keystores involved are decrypted only once each, see
+   * {@link CredentialCache}.
+   * 
+   * @param roots
+   *          the <code>users</code> directories of the sites
+   * @return the number of assertions created
+   */
+  public static int generateSAMLifNeccessary(Collection<File> roots, int parallelism) throws InterruptedException
+  {
+    List<Callable<AssertionDocument>> tasks = new ArrayList<Callable<AssertionDocument>>();
+    for (File root : roots)
+    {
+      String[] users = root.list();
+      if (users == null)
+      {
+        continue;
+      }
+      final SAMLFileRetriever retriever = new SAMLFileRetriever(root);
+      for (final String s : users)
+      {
+        if (!new File(root, s+"/"+s+".saml").exists()) 
+        {
+          tasks.add(new Callable<AssertionDocument>()
+          {
+            public AssertionDocument call()
+            {
+              return retriever.createSAMLAssertion(s);
+            }
+          });
+        }
+      }
+    }
+    if (tasks.isEmpty())
+    {
+      return 0;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, tasks.size())));
+    try
     {
-      if (!new File(this.root, s+"/"+s+".saml").exists()) 
+      int created = 0;
+      for (Future<AssertionDocument> f : executor.invokeAll(tasks))
       {
-        createSAMLAssertion(s);
+        try
+        {
+          if (f.get() != null)
+          {
+            created++;
+          }
+        }
+        catch (ExecutionException e)
+        {
+          e.printStackTrace();
+        }
       }
+      log.debug("Created " + created + " of " + tasks.size() + " missing SAML assertions");
+      return created;
+    }
+    finally
+    {
+      executor.shutdownNow();
     }
   }
-  
+
+  private static class CachedAssertion
+  {
+
+    final AssertionDocument document;
+
+    final long lastModified;
+
+    final long notBefore;
+
+    final long notAfter;
+
+    volatile ScheduledFuture<?> renewal;
+
+    volatile long lastAccess;
+
+    CachedAssertion(AssertionDocument document, long lastModified)
+    {
+      this.document = document;
+      this.lastModified = lastModified;
+      Calendar nb = document.getAssertion().getConditions().getNotBefore();
+      Calendar na = document.getAssertion().getConditions().getNotOnOrAfter();
+      this.notBefore = nb == null ? 0 : nb.getTimeInMillis();
+      this.notAfter = na == null ? Long.MAX_VALUE : na.getTimeInMillis();
+    }
+
+    boolean isValid(long now)
+    {
+      return now >= notBefore && now <= notAfter;
+    }
+  }
+
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package pl.edu.icm.unicore.uvos.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of signed attribute assertions, so that a subject asking the same
+ * question again doesn't cost another XML signature.
+ * <p>
+ * Entries are keyed by subject, requester and the requested attributes (in
+ * any order, null meaning all). An entry is reused for
+ * <code>saml.assertionCacheFraction</code> of the assertion validity period,
+ * so a cached assertion still has the rest of its validity left when it is
+ * handed out. Callers asking for the same entry at the same time share one
+ * signing.
+ * <p>
+ * The cache doesn't know what an assertion is derived from: whoever changes
+ * attributes or group membership must call {@link #invalidate(String)} for
+ * the affected subject, or {@link #invalidateAll()} when a change affects
+ * many subjects, e.g. attributes of a group.
+ */
+public class SignedAssertionCache<T>
+{
+	private static final Logger log = Logger.getLogger(SignedAssertionCache.class);
+
+	private final ConcurrentMap<Key, Entry<T>> entries = new ConcurrentHashMap<Key, Entry<T>>();
+	private final long reuseTime;
+	private final int maxSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param conf server configuration; the validity period, the fraction and
+	 * the size are read from it, with the defaults of {@link ConfDefaults}
+	 */
+	public SignedAssertionCache(Properties conf)
+	{
+		int validity = Integer.parseInt(conf.getProperty(ConfDefaults.DEF_ATTR_ASSERTION_VALIDITY,
+				String.valueOf(ConfDefaults.defAttrAssertionValidity)).trim());
+		double fraction = Double.parseDouble(conf.getProperty(ConfDefaults.ASSERTION_CACHE_FRACTION,
+				String.valueOf(ConfDefaults.assertionCacheFraction)).trim());
+		if (fraction < 0 || fraction >= 1)
+			throw new IllegalArgumentException(ConfDefaults.ASSERTION_CACHE_FRACTION
+					+ " must be at least 0 and less than 1");
+		reuseTime = (long) (validity * 1000L * fraction);
+		maxSize = Integer.parseInt(conf.getProperty(ConfDefaults.ASSERTION_CACHE_SIZE,
+				String.valueOf(ConfDefaults.assertionCacheSize)).trim());
+	}
+
+	/**
+	 * @return true if assertions are reused at all
+	 */
+	public boolean isEnabled()
+	{
+		return reuseTime > 0 && maxSize > 0;
+	}
+
+	/**
+	 * Returns the cached assertion for the query or signs a new one. The
+	 * returned assertion is shared and must not be modified.
+	 * @param subject the subject the assertion is about, as used by
+	 * {@link #invalidate(String)}
+	 * @param requester the identity that asked
+	 * @param attributes names of the requested attributes, null for all
+	 * @param signer creates and signs the assertion
+	 */
+	public T get(String subject, String requester, Collection<String> attributes,
+			Callable<T> signer) throws Exception
+	{
+		if (!isEnabled())
+			return signer.call();
+		Key key = new Key(subject, requester, attributes);
+		long now = System.currentTimeMillis();
+		while (true)
+		{
+			Entry<T> entry = entries.get(key);
+			if (entry != null && entry.expires <= now)
+			{
+				entries.remove(key, entry);
+				entry = null;
+			}
+			boolean created = false;
+			if (entry == null)
+			{
+				Entry<T> fresh = new Entry<T>(signer, now + reuseTime);
+				entry = entries.putIfAbsent(key, fresh);
+				if (entry == null)
+				{
+					entry = fresh;
+					created = true;
+					misses.incrementAndGet();
+					if (entries.size() > maxSize)
+						purge(now);
+					entry.task.run();
+				}
+			}
+			if (!created)
+				hits.incrementAndGet();
+			try
+			{
+				return entry.task.get();
+			} catch (ExecutionException e)
+			{
+				// don't keep failures, the next query tries again
+				entries.remove(key, entry);
+				if (!created)
+					continue;
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception)
+					throw (Exception) cause;
+				throw (Error) cause;
+			}
+		}
+	}
+
+	/**
+	 * Drops expired entries and, if the cache is still full, arbitrary ones
+	 * until it is a tenth below its size.
+	 */
+	private void purge(long now)
+	{
+		for (Iterator<Entry<T>> it = entries.values().iterator(); it.hasNext();)
+			if (it.next().expires <= now)
+				it.remove();
+		int excess = entries.size() - maxSize + maxSize / 10;
+		for (Iterator<Key> it = entries.keySet().iterator(); excess > 0 && it.hasNext(); excess--)
+		{
+			it.next();
+			it.remove();
+		}
+		log.debug("Purged signed assertion cache, " + entries.size() + " entries left");
+	}
+
+	/**
+	 * Drops all assertions about the subject. To be called after the
+	 * attributes or group membership of the subject changed.
+	 */
+	public void invalidate(String subject)
+	{
+		invalidations.incrementAndGet();
+		for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext();)
+			if (it.next().subject.equals(subject))
+				it.remove();
+	}
+
+	/**
+	 * Drops all assertions. To be called after a change that may affect many
+	 * subjects, like attributes of a group or removal of a group.
+	 */
+	public void invalidateAll()
+	{
+		invalidations.incrementAndGet();
+		entries.clear();
+	}
+
+	public int getSize()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return number of queries answered with an already signed assertion,
+	 * including the ones that waited for a signing in progress
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return number of assertions signed through this cache
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getInvalidations()
+	{
+		return invalidations.get();
+	}
+
+	private static class Entry<T>
+	{
+		private final FutureTask<T> task;
+		private final long expires;
+
+		public Entry(Callable<T> signer, long expires)
+		{
+			this.task = new FutureTask<T>(signer);
+			this.expires = expires;
+		}
+	}
+
+	private static class Key
+	{
+		private final String subject;
+		private final String requester;
+		private final List<String> attributes;
+		private final int hash;
+
+		public Key(String subject, String requester, Collection<String> attributes)
+		{
+			this.subject = subject;
+			this.requester = requester;
+			if (attributes == null)
+				this.attributes = null;
+			else
+			{
+				List<String> sorted = new ArrayList<String>(attributes);
+				Collections.sort(sorted);
+				this.attributes = sorted;
+			}
+			int h = subject.hashCode();
+			h = 31 * h + (requester == null ? 0 : requester.hashCode());
+			h = 31 * h + (this.attributes == null ? 0 : this.attributes.hashCode());
+			hash = h;
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return subject.equals(k.subject)
+				&& (requester == null ? k.requester == null : requester.equals(k.requester))
+				&& (attributes == null ? k.attributes == null : attributes.equals(k.attributes));
+		}
+	}
+}
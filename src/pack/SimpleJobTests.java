@@ -31,7 +31,9 @@ import org.springframework.batch.core.JobParameters;
 import org.springframework.batch.core.StartLimitExceededException;
 import org.springframework.batch.core.Step;
 import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
 import org.springframework.batch.core.UnexpectedJobExecutionException;
+import org.springframework.batch.core.listener.BatchMetricsListener;
 import org.springframework.batch.core.listener.JobExecutionListenerSupport;
 import org.springframework.batch.core.repository.JobRepository;
 import org.springframework.batch.core.repository.dao.JobExecutionDao;
@@ -178,6 +180,35 @@ public class SimpleJobTests extends TestCase {
 		assertEquals(4, list.size());
 	}
 
+	public void testRunNormallyWithMetricsListener() throws Exception {
+		BatchMetricsListener metrics = new BatchMetricsListener();
+		job.setJobExecutionListeners(new BatchMetricsListener[] { metrics });
+		step1.setStepExecutionListener(metrics);
+		step2.setStepExecutionListener(metrics);
+		job.execute(jobExecution);
+		assertEquals(1, metrics.getJobCount());
+		assertEquals(1, metrics.getStepCount(step1.getName()));
+		assertEquals(1, metrics.getStepCount(step2.getName()));
+		assertEquals(0, metrics.getStepFailureCount(step1.getName()));
+	}
+
+	public void testFailedWithMetricsListener() throws Exception {
+		BatchMetricsListener metrics = new BatchMetricsListener();
+		job.setJobExecutionListeners(new BatchMetricsListener[] { metrics });
+		step1.setStepExecutionListener(metrics);
+		step1.setProcessException(new RuntimeException("Foo!"));
+		try {
+			job.execute(jobExecution);
+			fail();
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(1, metrics.getFailedJobCount());
+		assertEquals(1, metrics.getStepFailureCount(step1.getName()));
+		assertEquals(0, metrics.getStepCount(step2.getName()));
+	}
+
 	public void testRunWithSimpleStepExecutor() throws Exception {
 
 		job.setJobRepository(jobRepository);
@@ -373,6 +404,8 @@ public class SimpleJobTests extends TestCase {
 
 		private Properties passedInContext;
 
+		private StepExecutionListener listener;
+
 		/**
 		 * @param string
 		 */
@@ -401,6 +434,25 @@ public class SimpleJobTests extends TestCase {
 		public void execute(StepExecution stepExecution) throws JobInterruptedException,
 				UnexpectedJobExecutionException {
 
+			if (listener != null) {
+				listener.beforeStep(stepExecution);
+			}
+			try {
+				doExecute(stepExecution);
+			}
+			catch (RuntimeException e) {
+				if (listener != null) {
+					listener.onErrorInStep(stepExecution, e);
+				}
+				throw e;
+			}
+			if (listener != null) {
+				listener.afterStep(stepExecution);
+			}
+		}
+
+		private void doExecute(StepExecution stepExecution) throws JobInterruptedException {
+
 			passedInContext = stepExecution.getExecutionContext().getProperties();
 			stepExecution.getExecutionContext().putString("key", "value");
 			jobRepository.saveOrUpdateExecutionContext(stepExecution);
@@ -424,6 +476,13 @@ public class SimpleJobTests extends TestCase {
 
 		}
 
+		/**
+		 * @param listener
+		 */
+		public void setStepExecutionListener(StepExecutionListener listener) {
+			this.listener = listener;
+		}
+
 		/**
 		 * Public setter for {@link JobRepository}.
 		 * 
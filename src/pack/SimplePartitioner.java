@@ -0,0 +1,54 @@
+/*
+ * Copyright 2006-2008 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.batch.core.step.partition;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * Simplest possible {@link Partitioner}: creates <code>gridSize</code>
+ * partitions named <code>partition0..partitionN</code>, each with an
+ * execution context containing only its index and the grid size under the
+ * keys {@link #PARTITION_INDEX_KEY} and {@link #GRID_SIZE_KEY}. Steps can use
+ * those to pick their share of the input (e.g. <code>id % gridSize</code>).
+ */
+public class SimplePartitioner implements Partitioner {
+
+	public static final String PARTITION_KEY = "partition";
+
+	public static final String PARTITION_INDEX_KEY = SimplePartitioner.class.getName() + ".INDEX";
+
+	public static final String GRID_SIZE_KEY = SimplePartitioner.class.getName() + ".GRID_SIZE";
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.springframework.batch.core.step.partition.Partitioner#partition(int)
+	 */
+	public Map<String, ExecutionContext> partition(int gridSize) {
+		Map<String, ExecutionContext> map = new LinkedHashMap<String, ExecutionContext>(gridSize);
+		for (int i = 0; i < gridSize; i++) {
+			ExecutionContext context = new ExecutionContext();
+			context.putLong(PARTITION_INDEX_KEY, i);
+			context.putLong(GRID_SIZE_KEY, gridSize);
+			map.put(PARTITION_KEY + i, context);
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2005, Forschungszentrum Juelich
+ * 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met: * Redistributions of source
+ * code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer. * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution. * Neither the name of the Forschungszentrum
+ * Juelich nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.fzj.hila.implementation.unicore6.config;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+
+import de.fzj.hila.implementation.unicore6.Unicore6ID;
+
+/**
+ * In-memory view of the per-site data MegaConfig keeps on disk: which sites
+ * exist, and for each of them the primary identity (from the <code>1</code>
+ * file) and the TSF URL (from the <code>url</code> file). Both are read the
+ * first time they are asked for and kept from then on.
+ * 
+ * An index is a snapshot: it remembers the modification time of the
+ * <code>.timestamp</code> file it was built against, and the owner is
+ * expected to replace it with a fresh one when {@link #isCurrent()} turns
+ * false or the directory changes.
+ * 
+ * Optionally the index is loaded from a {@link MegaConfigSnapshot}, which
+ * saves reading the XML files of every site at start-up. If the snapshot is
+ * missing or belongs to another <code>.timestamp</code> the XML files are
+ * read and a new snapshot is written.
+ */
+class SiteIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(SiteIndex.class);
+
+    private final File root;
+
+    private final long timestamp;
+
+    private final Map<String, Site> sites;
+
+    private SiteIndex(File root, long timestamp, Map<String, Site> sites) {
+	this.root = root;
+	this.timestamp = timestamp;
+	this.sites = sites;
+    }
+
+    /**
+     * Lists the site directories below root. Nothing is parsed yet.
+     */
+    static SiteIndex load(File root) {
+	return load(root, false);
+    }
+
+    /**
+     * @param useSnapshot
+     *                whether to read the index from (and keep it in) a
+     *                binary snapshot
+     */
+    static SiteIndex load(File root, boolean useSnapshot) {
+	long timestamp = new File(root, ".timestamp").lastModified();
+	if (useSnapshot) {
+	    try {
+		MegaConfigSnapshot snapshot = MegaConfigSnapshot.read(root);
+		if (snapshot != null && snapshot.timestamp == timestamp) {
+		    Map<String, Site> sites = new HashMap<String, Site>();
+		    for (MegaConfigSnapshot.Entry e : snapshot.entries) {
+			sites.put(e.site, new Site(new File(root, e.site),
+				e.idFile, e.url));
+		    }
+		    return new SiteIndex(root, timestamp, Collections
+			    .unmodifiableMap(sites));
+		}
+	    } catch (IOException e) {
+		log.warn("Ignoring unreadable snapshot in " + root, e);
+	    }
+	}
+
+	Map<String, Site> sites = new HashMap<String, Site>();
+	File[] dirs = root.listFiles(new FileFilter() {
+
+	    public boolean accept(File f) {
+		return f.isDirectory();
+	    }
+	});
+	if (dirs != null) {
+	    for (File dir : dirs) {
+		sites.put(dir.getName(), new Site(dir));
+	    }
+	}
+	SiteIndex index = new SiteIndex(root, timestamp, Collections
+		.unmodifiableMap(sites));
+	if (useSnapshot) {
+	    index.writeSnapshot();
+	}
+	return index;
+    }
+
+    /**
+     * Resolves the identity file and URL of every site and stores them in a
+     * snapshot. An identity file that cannot be read is stored as missing and
+     * resolved from XML again when used. A missing URL in a snapshot counts as
+     * no URL, so no snapshot is written if a URL file cannot be read.
+     */
+    private void writeSnapshot() {
+	List<MegaConfigSnapshot.Entry> entries = new ArrayList<MegaConfigSnapshot.Entry>();
+	for (Map.Entry<String, Site> e : sites.entrySet()) {
+	    File idFile = null;
+	    String url = null;
+	    try {
+		idFile = e.getValue().getIdFile();
+	    } catch (Exception ex) {
+		log.debug("No identity file for site " + e.getKey() + ": " + ex);
+	    }
+	    try {
+		url = e.getValue().getUrl();
+	    } catch (Exception ex) {
+		log.debug("Not writing snapshot, URL of site " + e.getKey()
+			+ " unreadable: " + ex);
+		return;
+	    }
+	    entries.add(new MegaConfigSnapshot.Entry(e.getKey(), idFile, url));
+	}
+	try {
+	    MegaConfigSnapshot.write(root, timestamp, entries);
+	} catch (IOException e) {
+	    log.warn("Couldn't write snapshot to " + root, e);
+	}
+    }
+
+    /**
+     * @return false if the <code>.timestamp</code> file has changed since
+     *         this index was built
+     */
+    boolean isCurrent() {
+	return new File(root, ".timestamp").lastModified() == timestamp;
+    }
+
+    Set<String> getSiteNames() {
+	return sites.keySet();
+    }
+
+    File[] getSiteDirectories() {
+	File[] dirs = new File[sites.size()];
+	int i = 0;
+	for (Site site : sites.values()) {
+	    dirs[i++] = site.dir;
+	}
+	return dirs;
+    }
+
+    boolean contains(String siteName) {
+	return sites.containsKey(siteName);
+    }
+
+    /**
+     * @return the shared primary identity of the site. Callers that modify
+     *         it must work on a clone.
+     */
+    Unicore6ID getId(String siteName) throws Exception {
+	Site site = sites.get(siteName);
+	if (site == null) {
+	    throw new FileNotFoundException(new File(new File(root, siteName),
+		    "1").getPath());
+	}
+	return site.getId();
+    }
+
+    /**
+     * @return the TSF URL of the site or null if there is none
+     */
+    String getUrl(String siteName) throws IOException {
+	Site site = sites.get(siteName);
+	return site == null ? null : site.getUrl();
+    }
+
+    private static class Site {
+
+	private final File dir;
+
+	private File idFile;
+
+	private Unicore6ID id;
+
+	private String url;
+
+	private boolean urlLoaded;
+
+	Site(File dir) {
+	    this.dir = dir;
+	}
+
+	/**
+	 * A site as found in a snapshot. A missing URL is taken as
+	 * authoritative, a missing identity file is looked up again.
+	 */
+	Site(File dir, File idFile, String url) {
+	    this.dir = dir;
+	    this.idFile = idFile;
+	    this.url = url;
+	    this.urlLoaded = true;
+	}
+
+	synchronized File getIdFile() throws IOException {
+	    if (idFile == null) {
+		idFile = (File) readXML(new File(dir, "1"));
+	    }
+	    return idFile;
+	}
+
+	private static Object readXML(File f) throws IOException {
+	    FileReader reader = new FileReader(f);
+	    try {
+		return MegaConfig.XS.fromXML(reader);
+	    } finally {
+		reader.close();
+	    }
+	}
+
+	synchronized Unicore6ID getId() throws Exception {
+	    if (id == null) {
+		id = new Unicore6ID(new FileSystemResource(getIdFile()));
+	    }
+	    return id;
+	}
+
+	synchronized String getUrl() throws IOException {
+	    if (!urlLoaded) {
+		File f = new File(dir, "url");
+		if (f.exists()) {
+		    url = (String) readXML(f);
+		}
+		urlLoaded = true;
+	    }
+	    return url;
+	}
+    }
+}
@@ -0,0 +1,350 @@
+/*********************************************************************************
+ * Copyright (c) 2007, 2008 Forschungszentrum Juelich GmbH 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the disclaimer at the end. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ * 
+ * (2) Neither the name of Forschungszentrum Juelich GmbH nor the names of its 
+ * contributors may be used to endorse or promote products derived from this 
+ * software without specific prior written permission.
+ * 
+ * DISCLAIMER
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ********************************************************************************/
+package de.fzj.hila.implementation.unicore6.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3.x2005.x08.addressing.EndpointReferenceType;
+
+import de.fzj.unicore.uas.TargetSystemFactory;
+import eu.unicore.security.xfireutil.JettyServer;
+
+/**
+ * An in-process stand-in for a registry and a number of TSFs, served by the
+ * embedded {@link JettyServer} on its plain connector. It lets discovery,
+ * probing and location resolution be measured without a real grid.
+ * 
+ * The registry answers every request with a resource property document that
+ * lists one TSF per site. Each TSF answers every request with its current
+ * time, after a delay drawn from a log-normal distribution around
+ * <code>latency</code>. A request fails with a SOAP fault with probability
+ * <code>failureRate</code> and hangs for <code>hangTime</code> milliseconds
+ * with probability <code>hangRate</code>. Every site draws from its own
+ * random sequence derived from <code>seed</code>, so a run with the same
+ * settings and the same request order behaves the same.
+ * 
+ * The answers are canned documents, just close enough to those of UNICORE 6
+ * for <code>RegistryClient</code> and <code>BaseUASClient</code>; what a
+ * request asks for is not looked at.
+ */
+public class StandInGrid
+{
+
+  public static final String PATH = "/standin";
+
+  private static final String SOAP_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+
+  private static final String WSA_NS = "http://www.w3.org/2005/08/addressing";
+
+  private static final String WSAW_NS = "http://www.w3.org/2006/05/addressing/wsdl";
+
+  private static final String WSRF_RP_NS = "http://docs.oasis-open.org/wsrf/rp-2";
+
+  private static final String WSRF_RL_NS = "http://docs.oasis-open.org/wsrf/rl-2";
+
+  private static final String WSRF_SG_NS = "http://docs.oasis-open.org/wsrf/sg-2";
+
+  private static final Logger log = LoggerFactory.getLogger(StandInGrid.class);
+
+  private final int sites;
+
+  private final String baseURL;
+
+  private long latency = 20;
+
+  private double latencySpread = 0.5;
+
+  private double failureRate = 0.0;
+
+  private double hangRate = 0.0;
+
+  private long hangTime = 60000;
+
+  private long seed = 0;
+
+  private Random[] random;
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private final AtomicLong hangs = new AtomicLong();
+
+  /**
+   * Mounts the stand-in in the given server, which must not be started yet.
+   * 
+   * @param sites
+   *          the number of TSFs listed by the registry
+   */
+  public StandInGrid(JettyServer server, int sites)
+  {
+    this.sites = sites;
+    this.baseURL = "http://localhost:" + (JettyServer.PORT + 1) + PATH;
+    server.addServlet(new StandInServlet(), PATH + "/*");
+  }
+
+  public String getRegistryURL()
+  {
+    return baseURL + "/registry";
+  }
+
+  public String getTSFURL(int site)
+  {
+    return baseURL + "/tsf/" + site;
+  }
+
+  /**
+   * @return the EPRs the registry lists, one per site
+   */
+  public List<EndpointReferenceType> getTSFs()
+  {
+    List<EndpointReferenceType> tsfs = new ArrayList<EndpointReferenceType>(sites);
+    for (int i = 0; i < sites; i++)
+    {
+      EndpointReferenceType epr = EndpointReferenceType.Factory.newInstance();
+      epr.addNewAddress().setStringValue(getTSFURL(i));
+      tsfs.add(epr);
+    }
+    return tsfs;
+  }
+
+  /**
+   * Median answer time of a TSF in milliseconds. Defaults to 20.
+   */
+  public void setLatency(long latency)
+  {
+    this.latency = latency;
+  }
+
+  /**
+   * Standard deviation of the logarithm of the answer time; 0 makes every
+   * answer take exactly <code>latency</code>. Defaults to 0.5, which puts
+   * the 95th percentile at about 2.3 times the median.
+   */
+  public void setLatencySpread(double latencySpread)
+  {
+    this.latencySpread = latencySpread;
+  }
+
+  /**
+   * Fraction of requests answered with a fault. Defaults to 0.
+   */
+  public void setFailureRate(double failureRate)
+  {
+    this.failureRate = failureRate;
+  }
+
+  /**
+   * Fraction of requests that aren't answered for <code>hangTime</code>
+   * milliseconds. Defaults to 0.
+   */
+  public void setHangRate(double hangRate)
+  {
+    this.hangRate = hangRate;
+  }
+
+  public void setHangTime(long hangTime)
+  {
+    this.hangTime = hangTime;
+  }
+
+  public synchronized void setSeed(long seed)
+  {
+    this.seed = seed;
+    this.random = null;
+  }
+
+  public long getRequestCount()
+  {
+    return requests.get();
+  }
+
+  public long getFailureCount()
+  {
+    return failures.get();
+  }
+
+  public long getHangCount()
+  {
+    return hangs.get();
+  }
+
+  /**
+   * @return the random sequence of a site; the registry is site
+   *         <code>-1</code>
+   */
+  private synchronized Random random(int site)
+  {
+    if (random == null)
+    {
+      random = new Random[sites + 1];
+      for (int i = 0; i < random.length; i++)
+      {
+        random[i] = new Random(seed * 31 + i);
+      }
+    }
+    return random[site + 1];
+  }
+
+  private String registryDocument()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<wsrf-rp:GetResourcePropertyDocumentResponse xmlns:wsrf-rp=\"").append(WSRF_RP_NS).append("\">");
+    sb.append("<wsrf-sg:ServiceGroupRP xmlns:wsrf-sg=\"").append(WSRF_SG_NS).append("\" xmlns:wsa=\"").append(WSA_NS)
+        .append("\" xmlns:wsaw=\"").append(WSAW_NS).append("\" xmlns:tsf=\"")
+        .append(TargetSystemFactory.TSF_PORT.getNamespaceURI()).append("\">");
+    for (int i = 0; i < sites; i++)
+    {
+      sb.append("<wsrf-sg:Entry><wsrf-sg:MemberServiceEPR><wsa:Address>").append(getTSFURL(i))
+          .append("</wsa:Address><wsa:Metadata><wsaw:InterfaceName>tsf:")
+          .append(TargetSystemFactory.TSF_PORT.getLocalPart())
+          .append("</wsaw:InterfaceName></wsa:Metadata></wsrf-sg:MemberServiceEPR></wsrf-sg:Entry>");
+    }
+    sb.append("</wsrf-sg:ServiceGroupRP></wsrf-rp:GetResourcePropertyDocumentResponse>");
+    return sb.toString();
+  }
+
+  private String currentTime()
+  {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return "<wsrf-rp:GetResourcePropertyResponse xmlns:wsrf-rp=\"" + WSRF_RP_NS + "\">"
+        + "<wsrf-rl:CurrentTime xmlns:wsrf-rl=\"" + WSRF_RL_NS + "\">" + format.format(new Date())
+        + "</wsrf-rl:CurrentTime></wsrf-rp:GetResourcePropertyResponse>";
+  }
+
+  private class StandInServlet extends HttpServlet
+  {
+
+    private static final long serialVersionUID = 1L;
+
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+      requests.incrementAndGet();
+      InputStream in = req.getInputStream();
+      byte[] buf = new byte[4096];
+      while (in.read(buf) >= 0)
+      {
+        // the request is not looked at
+      }
+
+      String path = req.getPathInfo();
+      int site;
+      if (path != null && path.startsWith("/tsf/"))
+      {
+        try
+        {
+          site = Integer.parseInt(path.substring("/tsf/".length()));
+        }
+        catch (NumberFormatException e)
+        {
+          site = sites;
+        }
+        if (site < 0 || site >= sites)
+        {
+          resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+          return;
+        }
+      }
+      else if ("/registry".equals(path))
+      {
+        site = -1;
+      }
+      else
+      {
+        resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+
+      double outcome;
+      long delay;
+      Random r = random(site);
+      synchronized (r)
+      {
+        outcome = r.nextDouble();
+        delay = Math.round(latency * Math.exp(latencySpread * r.nextGaussian()));
+      }
+      try
+      {
+        if (outcome < hangRate)
+        {
+          hangs.incrementAndGet();
+          log.debug(path + " hangs for " + hangTime + " ms");
+          Thread.sleep(hangTime);
+        }
+        else
+        {
+          Thread.sleep(delay);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      resp.setContentType("text/xml; charset=UTF-8");
+      String body;
+      if (outcome >= hangRate && outcome < hangRate + failureRate)
+      {
+        failures.incrementAndGet();
+        resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        body = "<soap:Fault><faultcode>soap:Server</faultcode><faultstring>Stand-in failure</faultstring></soap:Fault>";
+      }
+      else
+      {
+        body = site < 0 ? registryDocument() : currentTime();
+      }
+      Writer out = resp.getWriter();
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><soap:Envelope xmlns:soap=\"" + SOAP_NS + "\"><soap:Body>");
+      out.write(body);
+      out.write("</soap:Body></soap:Envelope>");
+      out.flush();
+    }
+  }
+
+}
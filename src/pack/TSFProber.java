@@ -0,0 +1,307 @@
+/*********************************************************************************
+ * Copyright (c) 2007, 2008 Forschungszentrum Juelich GmbH 
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the disclaimer at the end. Redistributions in
+ * binary form must reproduce the above copyright notice, this list of
+ * conditions and the following disclaimer in the documentation and/or other
+ * materials provided with the distribution.
+ * 
+ * (2) Neither the name of Forschungszentrum Juelich GmbH nor the names of its 
+ * contributors may be used to endorse or promote products derived from this 
+ * software without specific prior written permission.
+ * 
+ * DISCLAIMER
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ********************************************************************************/
+package de.fzj.hila.implementation.unicore6.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3.x2005.x08.addressing.EndpointReferenceType;
+
+import de.fzj.hila.implementation.unicore6.Unicore6SecurityProperties;
+import de.fzj.unicore.uas.client.BaseUASClient;
+
+/**
+ * Checks a list of TSFs for liveness by calling <code>getCurrentTime()</code>
+ * on each of them, several at a time.
+ * 
+ * At most <code>parallelism</code> probes are outstanding at once, and every
+ * probe gets <code>timeout</code> milliseconds from the moment it starts. A
+ * probe that doesn't answer in time is reported as failed and gives up its
+ * slot, so an unreachable site delays the others by no more than one timeout.
+ * The thread stuck in its call is left to the socket timeout of the client.
+ * At most twice <code>parallelism</code> threads are used; once that many
+ * calls are stuck, further probes wait for a thread instead of starting new
+ * ones.
+ */
+public class TSFProber
+{
+
+  private static final Logger log = LoggerFactory.getLogger(TSFProber.class);
+
+  private final int parallelism;
+
+  private final long timeout;
+
+  private final ExecutorService executor;
+
+  private final ScheduledExecutorService watchdog;
+
+  public TSFProber(int parallelism, long timeout)
+  {
+    if (parallelism < 1)
+    {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+    this.timeout = timeout;
+    // room for a full set of probes next to as many calls that timed out but
+    // haven't returned yet; probes beyond that queue up
+    int threads = 2 * parallelism;
+    ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ProbeThreadFactory("tsf-probe"));
+    tpe.allowCoreThreadTimeOut(true);
+    this.executor = tpe;
+    ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, new ProbeThreadFactory("tsf-probe-watchdog"));
+    stpe.setKeepAliveTime(60L, TimeUnit.SECONDS);
+    stpe.allowCoreThreadTimeOut(true);
+    this.watchdog = stpe;
+  }
+
+  /**
+   * Probes all TSFs and waits until each of them has answered, failed or
+   * timed out.
+   * 
+   * @param tsfs
+   *          the TSFs to probe
+   * @param securityProperties
+   *          used for all probes; the clients only read them, so one copy is
+   *          shared instead of cloning it per site
+   * @return one result per TSF, in the order of <code>tsfs</code>
+   */
+  public List<Result> probe(List<EndpointReferenceType> tsfs, Unicore6SecurityProperties securityProperties)
+      throws InterruptedException
+  {
+    Semaphore slots = new Semaphore(parallelism);
+    CountDownLatch done = new CountDownLatch(tsfs.size());
+    List<Probe> probes = new ArrayList<Probe>(tsfs.size());
+    long start = System.currentTimeMillis();
+    try
+    {
+      for (EndpointReferenceType tsf : tsfs)
+      {
+        slots.acquire();
+        Probe probe = new Probe(tsf, securityProperties, slots, done);
+        probes.add(probe);
+        executor.execute(probe);
+      }
+      done.await();
+    }
+    catch (InterruptedException e)
+    {
+      for (Probe probe : probes)
+      {
+        probe.settle(e);
+      }
+      throw e;
+    }
+    List<Result> results = new ArrayList<Result>(probes.size());
+    for (Probe probe : probes)
+    {
+      results.add(probe.result);
+    }
+    log.debug("Probed " + tsfs.size() + " TSFs in " + (System.currentTimeMillis() - start) + " ms");
+    return results;
+  }
+
+  /**
+   * Stops the probe threads. Probes running at the time are abandoned.
+   */
+  public void shutdown()
+  {
+    executor.shutdownNow();
+    watchdog.shutdownNow();
+  }
+
+  private class Probe implements Runnable
+  {
+
+    private final EndpointReferenceType tsf;
+
+    private final Unicore6SecurityProperties securityProperties;
+
+    private final Semaphore slots;
+
+    private final CountDownLatch done;
+
+    private final AtomicBoolean settled = new AtomicBoolean(false);
+
+    private volatile long started;
+
+    private volatile ScheduledFuture<?> expiry;
+
+    private volatile Result result;
+
+    Probe(EndpointReferenceType tsf, Unicore6SecurityProperties securityProperties, Semaphore slots,
+        CountDownLatch done)
+    {
+      this.tsf = tsf;
+      this.securityProperties = securityProperties;
+      this.slots = slots;
+      this.done = done;
+    }
+
+    public void run()
+    {
+      started = System.currentTimeMillis();
+      expiry = watchdog.schedule(new Runnable()
+      {
+        public void run()
+        {
+          settle(new TimeoutException("No answer within " + timeout + " ms"));
+        }
+      }, timeout, TimeUnit.MILLISECONDS);
+      try
+      {
+        new BaseUASClient(tsf.getAddress().getStringValue(), tsf, securityProperties).getCurrentTime();
+        settle(null);
+      }
+      catch (Throwable t)
+      {
+        settle(t);
+      }
+    }
+
+    /**
+     * Records the outcome once; whichever of the probe, the watchdog or an
+     * interrupted caller comes first wins.
+     */
+    void settle(Throwable failure)
+    {
+      if (!settled.compareAndSet(false, true))
+      {
+        return;
+      }
+      long latency = started == 0 ? 0 : System.currentTimeMillis() - started;
+      result = new Result(tsf, latency, failure);
+      ScheduledFuture<?> e = expiry;
+      if (e != null)
+      {
+        e.cancel(false);
+      }
+      slots.release();
+      done.countDown();
+    }
+  }
+
+  /**
+   * Outcome of probing a single TSF.
+   */
+  public static class Result
+  {
+
+    private final EndpointReferenceType tsf;
+
+    private final long latency;
+
+    private final Throwable failure;
+
+    Result(EndpointReferenceType tsf, long latency, Throwable failure)
+    {
+      this.tsf = tsf;
+      this.latency = latency;
+      this.failure = failure;
+    }
+
+    public EndpointReferenceType getTSF()
+    {
+      return tsf;
+    }
+
+    public String getURL()
+    {
+      return tsf.getAddress().getStringValue();
+    }
+
+    /**
+     * @return milliseconds from the start of the probe until it answered,
+     *         failed or timed out
+     */
+    public long getLatency()
+    {
+      return latency;
+    }
+
+    /**
+     * @return why the probe failed, or null if the TSF answered
+     */
+    public Throwable getFailure()
+    {
+      return failure;
+    }
+
+    public boolean isAlive()
+    {
+      return failure == null;
+    }
+
+    public String toString()
+    {
+      return getURL() + (isAlive() ? " alive" : " failed (" + failure + ")") + " after " + latency + " ms";
+    }
+  }
+
+  private static class ProbeThreadFactory implements ThreadFactory
+  {
+
+    private final String prefix;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    ProbeThreadFactory(String prefix)
+    {
+      this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
@@ -1,7 +1,6 @@
 package de.fzj.unicore.uas.security;
 
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,6 +12,7 @@ import org.codehaus.xfire.service.Service;
 import org.oasisOpen.docs.wsrf.rp2.GetResourcePropertyDocument;
 
 import de.fzj.unicore.uas.UAS;
+import de.fzj.unicore.uas.UASReadiness;
 import de.fzj.unicore.uas.client.UASClientFactory;
 import de.fzj.unicore.uas.security.testservices.ExampleService;
 import de.fzj.unicore.uas.security.testservices.IExample;
@@ -20,8 +20,9 @@ import de.fzj.unicore.uas.util.LogUtil;
 import de.fzj.unicore.wsrflite.Kernel;
 import de.fzj.unicore.wsrflite.xfire.XFireKernel;
 
-public class TestPlainWSAuthZ extends TestCase implements Observer {
-	private static boolean initDone=false;
+public class TestPlainWSAuthZ extends TestCase {
+	
+	private CachingPlainWSAuthZHandler cachingHandler;
 	
 	protected void setUp()throws Exception{
 		//System.setProperty("javax.net.debug", "ssl,handshake");
@@ -29,11 +30,9 @@ public class TestPlainWSAuthZ extends TestCase implements Observer {
 		Logger.getLogger("org").setLevel(Level.SEVERE);
 		Logger.getLogger("com").setLevel(Level.SEVERE);
 		UAS uas=new UAS("src/test/resources/secure/uas.config.simple");
-		uas.addObserver(this);
+		UASReadiness ready=UASReadiness.observe(uas);
 		uas.start();
-		while(!initDone){
-			Thread.sleep(500);
-		}
+		ready.await(120, TimeUnit.SECONDS);
 		addServices();
 	}
 	
@@ -43,11 +42,17 @@ public class TestPlainWSAuthZ extends TestCase implements Observer {
 				IExample.class, ExampleService.class, false);
 		
 		s.addInHandler(new PlainWSAuthZHandler());
+		
+		Service cached = XFireKernel.exposeAsService("cachedtest", 
+				IExample.class, ExampleService.class, false);
+		cachingHandler=new CachingPlainWSAuthZHandler();
+		cached.addInHandler(cachingHandler);
 	}
 	
-	public void test(){
+	public void test()throws Exception{
 		doTestACL();
 		doTestNoACL();
+		doTestCachedDecisions();
 	}
 	
 	private void doTestACL(){
@@ -84,13 +89,50 @@ public class TestPlainWSAuthZ extends TestCase implements Observer {
 		
 	}
 	
-	private String getBaseurl(){
-		return Kernel.getKernel().getProperty(Kernel.WSRF_BASEURL);
+	private void doTestCachedDecisions()throws Exception{
+		String property=UASSecurityProperties.UAS_CHECKACCESS+".cachedtest";
+		
+		UAS.setProperty(property, "true");
+		assertFalse(callCached());
+		assertFalse(callCached());
+		assertEquals(1, cachingHandler.getDeniedCount());
+		assertEquals(1, cachingHandler.getCachedDeniedCount());
+		
+		UAS.setProperty(property, "false");
+		assertTrue(callCached());
+		assertTrue(callCached());
+		assertEquals(1, cachingHandler.getGrantedCount());
+		assertEquals(1, cachingHandler.getCachedGrantedCount());
+		
+		UAS.setProperty(property, "true");
+		assertFalse(callCached());
+		assertEquals(2, cachingHandler.getDeniedCount());
+		assertEquals(1, cachingHandler.getCachedDeniedCount());
+		assertEquals(1, cachingHandler.getGrantedCount());
+		assertEquals(1, cachingHandler.getCachedGrantedCount());
 	}
 	
-	public void update(Observable o, Object arg) {
-		initDone=true;
+	/**
+	 * @return false if the call to the service behind the caching handler
+	 * was denied
+	 */
+	private boolean callCached()throws Exception{
+		String address=getBaseurl()+"/cachedtest";
+		IExample service=new UASClientFactory(UAS.getSecurityProperties()).createPlainWSProxy(IExample.class, address, UAS.getSecurityProperties());
+		GetResourcePropertyDocument in=GetResourcePropertyDocument.Factory.newInstance();
+		in.setGetResourceProperty(new QName("Hello","World"));
+		try{
+			service.getTime(in);
+			return true;
+		}catch(Exception e){
+			System.out.println("Denied: "+LogUtil.createFaultMessage("", e));
+			return false;
+		}
 	}
 	
+	private String getBaseurl(){
+		return Kernel.getKernel().getProperty(Kernel.WSRF_BASEURL);
+	}
 	
+
 }
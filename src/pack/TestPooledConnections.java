@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package eu.unicore.security.xfireutil.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import eu.unicore.security.xfireutil.JettyServer;
+
+/**
+ * Runs requests through a {@link PooledHttpClientFactory} against the SSL
+ * connector of the embedded {@link JettyServer} and checks, via the
+ * handshake counters of the socket factory, that connections are reused.
+ * The socket factory runs each handshake while creating the socket, so the
+ * counters are up to date as soon as a request returns.
+ */
+public class TestPooledConnections extends TestCase
+{
+	private JettyServer server;
+	private PooledHttpClientFactory factory;
+	private HostConfiguration host;
+
+	protected void setUp() throws Exception
+	{
+		server = new JettyServer();
+		server.start();
+		factory = new PooledHttpClientFactory(new AnonymousConfiguration());
+		factory.setMaxConnectionsPerHost(4);
+		host = factory.getHostConfiguration("localhost", JettyServer.PORT);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		factory.shutdown();
+		server.stop();
+	}
+
+	public void testSequentialRequestsShareConnection() throws Exception
+	{
+		HttpClient client = factory.createHttpClient();
+		for (int i = 0; i < 20; i++)
+			get(client);
+		assertEquals(1, factory.getSocketFactory().getHandshakeCount());
+		assertEquals(1, factory.getConnectionsInPool());
+	}
+
+	public void testConcurrentRequestsBoundedPerHost() throws Exception
+	{
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 16; i++)
+		{
+			Thread t = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						HttpClient client = factory.createHttpClient();
+						for (int j = 0; j < 10; j++)
+							get(client);
+					} catch (Throwable e)
+					{
+						synchronized (errors)
+						{
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(factory.getConnectionsInPool() <= 4);
+		assertTrue(factory.getSocketFactory().getHandshakeCount() <= 4);
+	}
+
+	public void testIdleConnectionsEvicted() throws Exception
+	{
+		factory.setIdleTimeout(1000);
+		factory.start();
+		HttpClient client = factory.createHttpClient();
+		get(client);
+		assertEquals(1, factory.getConnectionsInPool());
+		assertTrue("Idle connection not closed", waitForEmptyPool(10000));
+
+		get(client);
+		assertEquals(2, factory.getSocketFactory().getHandshakeCount());
+		// the second connection resumes the session of the first one
+		assertEquals(1, factory.getSocketFactory().getResumedHandshakeCount());
+	}
+
+	/**
+	 * Waits for the eviction thread to close all pooled connections.
+	 * @return false if connections are still open after timeout ms
+	 */
+	private boolean waitForEmptyPool(long timeout) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (factory.getConnectionsInPool() > 0)
+		{
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(50);
+		}
+		return true;
+	}
+
+	private void get(HttpClient client) throws Exception
+	{
+		GetMethod get = new GetMethod("/services/");
+		try
+		{
+			int status = client.executeMethod(host, get);
+			assertTrue("Unexpected status " + status, status < 500);
+			get.getResponseBody();
+		} finally
+		{
+			get.releaseConnection();
+		}
+	}
+
+	/**
+	 * Trusts any server and doesn't authenticate the client.
+	 */
+	private static class AnonymousConfiguration implements IAuthenticationConfiguration
+	{
+		public boolean doSSLAuthn() { return false; }
+		public String getKeystore() { return null; }
+		public String getKeystorePasswd() { return null; }
+		public String getKeystoreKeyPasswd() { return null; }
+		public String getKeystoreType() { return null; }
+		public String getKeystoreAlias() { return null; }
+		public String getTruststore() { return null; }
+		public String getTruststorePasswd() { return null; }
+		public String getTruststoreType() { return null; }
+		public SSLContext getSSLContext() { return null; }
+		public boolean doHttpAuthn() { return false; }
+		public String getHttpUser() { return null; }
+		public String getHttpPassword() { return null; }
+		public IAuthenticationConfiguration clone() { return this; }
+	}
+}
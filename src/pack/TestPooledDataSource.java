@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package pl.edu.icm.unicore.uvos.util;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the {@link PooledDataSource} against an in-memory H2 database.
+ */
+public class TestPooledDataSource extends TestCase
+{
+	private static int databases;
+	private PooledDataSource pool;
+
+	protected void tearDown() throws Exception
+	{
+		if (pool != null)
+			pool.close();
+	}
+
+	private PooledDataSource createPool(int minSize, int maxSize, Properties extra)
+		throws SQLException
+	{
+		Properties conf = new Properties();
+		conf.setProperty(ConfDefaults.P_DBPOOL_MIN_SIZE, String.valueOf(minSize));
+		conf.setProperty(ConfDefaults.P_DBPOOL_MAX_SIZE, String.valueOf(maxSize));
+		conf.putAll(extra);
+		pool = new PooledDataSource("org.h2.Driver", "jdbc:h2:mem:pooltest" + (databases++)
+				+ ";DB_CLOSE_DELAY=-1", "sa", "", conf);
+		return pool;
+	}
+
+	public void testMaxWaitTimeout() throws Exception
+	{
+		Properties conf = new Properties();
+		conf.setProperty(ConfDefaults.P_DBPOOL_MAX_WAIT, "200");
+		createPool(0, 1, conf);
+		Connection c = pool.getConnection();
+		long start = System.currentTimeMillis();
+		try
+		{
+			pool.getConnection();
+			fail("Got a second connection from a pool of one");
+		} catch (SQLException e)
+		{
+			//OK
+		}
+		assertTrue(System.currentTimeMillis() - start >= 200);
+		assertEquals(1, pool.getTimeoutCount());
+		assertEquals(1, pool.getWaitCount());
+		c.close();
+		pool.getConnection().close();
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+	public void testStatementCacheHitAndMiss() throws Exception
+	{
+		createPool(1, 1, new Properties());
+		Connection c = pool.getConnection();
+		PreparedStatement ps = c.prepareStatement("SELECT 1");
+		ResultSet rs = ps.executeQuery();
+		ps.close();
+		assertTrue("Result set left open in cached statement", rs.isClosed());
+		c.prepareStatement("SELECT 1").close();
+		assertEquals(1, pool.getStatementCacheMisses());
+		assertEquals(1, pool.getStatementCacheHits());
+
+		c.prepareStatement("SELECT 2").close();
+		assertEquals(2, pool.getStatementCacheMisses());
+
+		// a statement with changed settings isn't cached
+		ps = c.prepareStatement("SELECT 1");
+		ps.setMaxRows(1);
+		ps.close();
+		assertEquals(2, pool.getStatementCacheHits());
+		c.prepareStatement("SELECT 1").close();
+		assertEquals(3, pool.getStatementCacheMisses());
+		c.close();
+
+		// the cache belongs to the connection and outlives the checkout
+		c = pool.getConnection();
+		c.prepareStatement("SELECT 2").close();
+		assertEquals(3, pool.getStatementCacheHits());
+		c.close();
+	}
+
+	public void testEvictionDownToMinSize() throws Exception
+	{
+		Properties conf = new Properties();
+		conf.setProperty(ConfDefaults.P_DBPOOL_IDLE_TIMEOUT, "100");
+		conf.setProperty(ConfDefaults.P_DBPOOL_EVICTION_INTERVAL, "50");
+		createPool(1, 4, conf);
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < 4; i++)
+			connections.add(pool.getConnection());
+		assertEquals(4, pool.getActiveConnections());
+		for (Connection c: connections)
+			c.close();
+		assertEquals(4, pool.getIdleConnections());
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getIdleConnections() > 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		assertEquals(1, pool.getIdleConnections());
+		assertEquals(3, pool.getDiscardedCount());
+		assertEquals(0, pool.getActiveConnections());
+	}
+
+	public void testSessionSettingsRestored() throws Exception
+	{
+		createPool(1, 1, new Properties());
+		Connection c = pool.getConnection();
+		int isolation = c.getTransactionIsolation();
+		c.setReadOnly(true);
+		c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+		c.close();
+
+		c = pool.getConnection();
+		assertFalse(c.isReadOnly());
+		assertEquals(isolation, c.getTransactionIsolation());
+		c.close();
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+	public void testUnwrapStopsAtPool() throws Exception
+	{
+		createPool(1, 1, new Properties());
+		Connection c = pool.getConnection();
+		assertSame(c, c.unwrap(Connection.class));
+		assertFalse(c.isWrapperFor(org.h2.jdbc.JdbcConnection.class));
+		try
+		{
+			c.unwrap(org.h2.jdbc.JdbcConnection.class);
+			fail("Unwrapped the pooled connection");
+		} catch (SQLException e)
+		{
+			//OK
+		}
+		PreparedStatement ps = c.prepareStatement("SELECT 1");
+		assertSame(ps, ps.unwrap(PreparedStatement.class));
+		ps.close();
+		c.close();
+	}
+
+	public void testNoWayToPhysicalConnection() throws Exception
+	{
+		createPool(1, 1, new Properties());
+		Connection c = pool.getConnection();
+		Statement s = c.createStatement();
+		assertSame(c, s.getConnection());
+		ResultSet rs = s.executeQuery("SELECT 1");
+		assertSame(s, rs.getStatement());
+		try
+		{
+			rs.unwrap(org.h2.jdbc.JdbcResultSet.class);
+			fail("Unwrapped the result set");
+		} catch (SQLException e)
+		{
+			//OK
+		}
+		PreparedStatement ps = c.prepareStatement("SELECT 1", Statement.RETURN_GENERATED_KEYS);
+		assertSame(c, ps.getConnection());
+		assertSame(ps, ps.executeQuery().getStatement());
+		CallableStatement cs = c.prepareCall("SELECT 1");
+		assertSame(c, cs.getConnection());
+		DatabaseMetaData md = c.getMetaData();
+		assertSame(c, md.getConnection());
+		assertFalse(md.isWrapperFor(org.h2.jdbc.JdbcDatabaseMetaData.class));
+
+		// statements the user forgot are closed with the connection
+		c.close();
+		assertTrue(s.isClosed());
+		assertTrue(rs.isClosed());
+		assertTrue(ps.isClosed());
+		assertTrue(cs.isClosed());
+		c = pool.getConnection();
+		c.createStatement().close();
+		c.close();
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+	public void testMinSizeBoundedByMaxSize() throws Exception
+	{
+		createPool(5, 2, new Properties());
+		assertEquals(2, pool.getIdleConnections());
+		assertEquals(2, pool.getCreatedCount());
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2007, 2008 ICM Uniwersytet Warszawski All rights reserved.
+ * See LICENCE file for licencing information.
+ */
+
+package pl.edu.icm.unicore.uvos.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks reuse, sharing and invalidation of {@link SignedAssertionCache}
+ * entries, with a counting signer in place of the XML signature.
+ */
+public class TestSignedAssertionCache extends TestCase
+{
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception
+	{
+		executor = Executors.newCachedThreadPool();
+	}
+
+	protected void tearDown() throws Exception
+	{
+		executor.shutdownNow();
+	}
+
+	private static SignedAssertionCache<String> createCache(int validity, double fraction)
+	{
+		Properties conf = new Properties();
+		conf.setProperty(ConfDefaults.DEF_ATTR_ASSERTION_VALIDITY, String.valueOf(validity));
+		conf.setProperty(ConfDefaults.ASSERTION_CACHE_FRACTION, String.valueOf(fraction));
+		return new SignedAssertionCache<String>(conf);
+	}
+
+	public void testKeyNormalisation() throws Exception
+	{
+		SignedAssertionCache<String> cache = createCache(3600, 0.5);
+		CountingSigner signer = new CountingSigner();
+		String first = cache.get("cn=a", "cn=r", Arrays.asList("x", "y"), signer);
+		assertSame(first, cache.get("cn=a", "cn=r", Arrays.asList("y", "x"), signer));
+		assertEquals(1, signer.count.get());
+
+		cache.get("cn=a", "cn=r", null, signer);
+		cache.get("cn=a", "cn=other", Arrays.asList("x", "y"), signer);
+		cache.get("cn=a", null, Arrays.asList("x", "y"), signer);
+		cache.get("cn=b", "cn=r", Arrays.asList("x", "y"), signer);
+		assertEquals(5, signer.count.get());
+		cache.get("cn=a", null, Arrays.asList("y", "x"), signer);
+		cache.get("cn=a", "cn=r", null, signer);
+		assertEquals(5, signer.count.get());
+		assertEquals(3, cache.getHits());
+		assertEquals(5, cache.getMisses());
+	}
+
+	public void testConcurrentCallersShareSigning() throws Exception
+	{
+		final SignedAssertionCache<String> cache = createCache(3600, 0.5);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountingSigner signer = new CountingSigner(release);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < 8; i++)
+			results.add(executor.submit(new Callable<String>()
+			{
+				public String call() throws Exception
+				{
+					return cache.get("cn=a", "cn=r", null, signer);
+				}
+			}));
+		// one caller signs, the other seven wait for it
+		waitFor(cache, 7);
+		release.countDown();
+		String first = results.get(0).get(10, TimeUnit.SECONDS);
+		for (Future<String> f: results)
+			assertSame(first, f.get(10, TimeUnit.SECONDS));
+		assertEquals(1, signer.count.get());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testFailuresNotCached() throws Exception
+	{
+		SignedAssertionCache<String> cache = createCache(3600, 0.5);
+		CountingSigner signer = new CountingSigner();
+		signer.failures = 1;
+		try
+		{
+			cache.get("cn=a", "cn=r", null, signer);
+			fail("Signing failure not passed on");
+		} catch (IllegalStateException e)
+		{
+			//OK
+		}
+		assertEquals(0, cache.getSize());
+		assertNotNull(cache.get("cn=a", "cn=r", null, signer));
+		assertEquals(2, signer.count.get());
+		assertEquals(1, cache.getSize());
+	}
+
+	public void testExpiryAtFraction() throws Exception
+	{
+		// 2s validity, reused for 10% of it
+		SignedAssertionCache<String> cache = createCache(2, 0.1);
+		CountingSigner signer = new CountingSigner();
+		long start = System.currentTimeMillis();
+		String first = cache.get("cn=a", "cn=r", null, signer);
+		String second = cache.get("cn=a", "cn=r", null, signer);
+		if (System.currentTimeMillis() - start < 200)
+			assertSame(first, second);
+		Thread.sleep(250);
+		assertNotSame(first, cache.get("cn=a", "cn=r", null, signer));
+
+		assertFalse(createCache(2, 0).isEnabled());
+		try
+		{
+			createCache(2, 1);
+			fail("Accepted a fraction of 1");
+		} catch (IllegalArgumentException e)
+		{
+			//OK
+		}
+	}
+
+	public void testInvalidateSubject() throws Exception
+	{
+		SignedAssertionCache<String> cache = createCache(3600, 0.5);
+		CountingSigner signer = new CountingSigner();
+		String a = cache.get("cn=a", "cn=r", null, signer);
+		String b = cache.get("cn=b", "cn=r", null, signer);
+		cache.get("cn=a", "cn=r", Arrays.asList("x"), signer);
+		cache.invalidate("cn=a");
+		assertEquals(1, cache.getSize());
+		assertNotSame(a, cache.get("cn=a", "cn=r", null, signer));
+		assertSame(b, cache.get("cn=b", "cn=r", null, signer));
+		assertEquals(1, cache.getInvalidations());
+
+		cache.invalidateAll();
+		assertEquals(0, cache.getSize());
+	}
+
+	/**
+	 * A caller waiting for another caller's signing that fails signs
+	 * itself rather than getting the other caller's error.
+	 */
+	public void testWaiterSignsAfterSharedFailure() throws Exception
+	{
+		final SignedAssertionCache<String> cache = createCache(3600, 0.5);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountingSigner failing = new CountingSigner(release);
+		failing.failures = 1;
+		final CountingSigner working = new CountingSigner();
+		Future<String> first = executor.submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return cache.get("cn=a", "cn=r", null, failing);
+			}
+		});
+		waitFor(cache, 0);
+		Future<String> second = executor.submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				return cache.get("cn=a", "cn=r", null, working);
+			}
+		});
+		waitFor(cache, 1);
+		release.countDown();
+
+		assertNotNull(second.get(10, TimeUnit.SECONDS));
+		try
+		{
+			first.get(10, TimeUnit.SECONDS);
+			fail("Signing failure not passed on");
+		} catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(1, working.count.get());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1, cache.getSize());
+	}
+
+	/**
+	 * Waits until a signing is under way and the given number of callers
+	 * wait for it.
+	 */
+	private static void waitFor(SignedAssertionCache<String> cache, int hits)
+		throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((cache.getMisses() < 1 || cache.getHits() < hits)
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(hits, cache.getHits());
+	}
+
+	private static class CountingSigner implements Callable<String>
+	{
+		private final AtomicInteger count = new AtomicInteger();
+		private final CountDownLatch release;
+		private volatile int failures;
+
+		public CountingSigner()
+		{
+			this(null);
+		}
+
+		public CountingSigner(CountDownLatch release)
+		{
+			this.release = release;
+		}
+
+		public String call() throws Exception
+		{
+			int n = count.incrementAndGet();
+			if (release != null)
+				release.await();
+			if (n <= failures)
+				throw new IllegalStateException("Signing " + n + " failed");
+			return new String("assertion " + n);
+		}
+	}
+}
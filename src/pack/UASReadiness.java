@@ -0,0 +1,60 @@
+package de.fzj.unicore.uas;
+
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lets threads wait until a {@link UAS} has finished starting up.
+ * <p>
+ * The UAS notifies its observers once its kernel is initialised; this
+ * observer turns that notification into a latch, so callers can block on
+ * it with a timeout instead of polling a flag. Register it before calling
+ * {@link UAS#start()}:
+ * <pre>
+ * UAS uas = new UAS(config);
+ * UASReadiness ready = UASReadiness.observe(uas);
+ * uas.start();
+ * ready.await(60, TimeUnit.SECONDS);
+ * </pre>
+ */
+public class UASReadiness implements Observer {
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+
+	private UASReadiness() {
+	}
+
+	/**
+	 * @return a readiness signal registered with the given UAS
+	 */
+	public static UASReadiness observe(UAS uas) {
+		UASReadiness readiness = new UASReadiness();
+		uas.addObserver(readiness);
+		return readiness;
+	}
+
+	public void update(Observable o, Object arg) {
+		latch.countDown();
+	}
+
+	/**
+	 * @return whether the UAS has reported that it is ready
+	 */
+	public boolean isReady() {
+		return latch.getCount() == 0;
+	}
+
+	/**
+	 * Waits until the UAS is ready.
+	 * 
+	 * @throws TimeoutException if it didn't get ready in time
+	 */
+	public void await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException("UAS not ready after " + unit.toMillis(timeout) + " ms");
+		}
+	}
+}
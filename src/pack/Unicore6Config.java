@@ -32,10 +32,18 @@
 package de.fzj.hila.implementation.unicore6.config;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +59,13 @@ import de.fzj.hila.implementation.unicore6.Unicore6Properties;
 import de.fzj.hila.implementation.unicore6.Unicore6SecurityProperties;
 
 /**
+ * In lazy mode only the site locations and the names of their security
+ * properties files are collected at construction. A site's properties are
+ * read the first time the site is asked for and kept from then on; threads
+ * asking for the same site at once share a single load. A load that fails is
+ * not kept, the next request for the site tries again. Optionally all sites
+ * are loaded by a background thread in the meantime.
+ *
  * @author bjoernh
  *
  * TODO: add support for registries
@@ -58,17 +73,31 @@ import de.fzj.hila.implementation.unicore6.Unicore6SecurityProperties;
 public class Unicore6Config implements Config
 {
 
-  @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(Unicore6Config.class);
 
-  private Map<Location, Unicore6ID> loc2id;
+  /** site location -> security properties file, built at construction */
+  private final Map<Location, String> loc2file;
+
+  /** site location -> loaded (or loading) security properties */
+  private final ConcurrentMap<Location, FutureTask<Unicore6ID>> loc2id = new ConcurrentHashMap<Location, FutureTask<Unicore6ID>>();
 
   /**
-   * 
+   * Loads the security properties of all sites right away.
    */
   public Unicore6Config(Unicore6Properties u6p)
   {
-    loc2id = new HashMap<Location, Unicore6ID>();
+    this(u6p, false, false);
+  }
+
+  /**
+   * @param lazy
+   *          load a site's security properties only when it is first used
+   * @param prefetch
+   *          in lazy mode, load all sites in a background thread
+   */
+  public Unicore6Config(Unicore6Properties u6p, boolean lazy, boolean prefetch)
+  {
+    Map<Location, String> index = new LinkedHashMap<Location, String>();
     List<String> sites = u6p.getSiteNames();
     for (String site : sites)
     {
@@ -83,23 +112,111 @@ public class Unicore6Config implements Config
       {
         e.printStackTrace();
       }
-      Unicore6ID siteSec = null;
-      try
+      String file = u6p.getSecurityPropertiesFile(site);
+      if ((siteLoc != null) && (file != null))
       {
-        log.debug("Instantiating SecurityProperties from file: " + u6p.getSecurityPropertiesFile(site));
-        siteSec = new Unicore6ID(new FileSystemResource(u6p.getSecurityPropertiesFile(site)));
+        index.put(siteLoc, file);
       }
-      catch (Exception e)
+    }
+    loc2file = Collections.synchronizedMap(index);
+
+    if (!lazy)
+    {
+      // keep the old behaviour: sites without usable properties don't exist
+      for (Location siteLoc : new ArrayList<Location>(index.keySet()))
       {
-        e.printStackTrace();
+        if (load(siteLoc) == null)
+        {
+          loc2file.remove(siteLoc);
+        }
       }
-      if ((siteLoc != null) && (siteSec != null))
+    }
+    else if (prefetch)
+    {
+      Thread t = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          for (Location siteLoc : getAllSiteLocations())
+          {
+            load(siteLoc);
+          }
+          log.debug("Prefetched security properties of " + loc2id.size() + " sites");
+        }
+      }, "unicore6config-prefetch");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      t.start();
+    }
+  }
+
+  /**
+   * Returns the security properties of a site, reading them on first use.
+   * Failed reads are forgotten, so they are retried on the next call.
+   * 
+   * @return null if the site is unknown or its properties couldn't be read
+   */
+  private Unicore6ID load(Location siteLoc)
+  {
+    FutureTask<Unicore6ID> task = loc2id.get(siteLoc);
+    if (task == null)
+    {
+      final String file = loc2file.get(siteLoc);
+      if (file == null)
+      {
+        return null;
+      }
+      final Location loc = siteLoc;
+      FutureTask<Unicore6ID> newTask = new FutureTask<Unicore6ID>(new Callable<Unicore6ID>()
+      {
+        public Unicore6ID call()
+        {
+          return readID(loc, file);
+        }
+      });
+      task = loc2id.putIfAbsent(siteLoc, newTask);
+      if (task == null)
       {
-        log.debug("Putting SecurityProperties for location " + siteLoc + " into Config map.");
-        log.debug("Properties are: " + siteSec);
-        loc2id.put(siteLoc, siteSec);
+        task = newTask;
+        task.run();
       }
     }
+    Unicore6ID id = null;
+    try
+    {
+      id = task.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (ExecutionException e)
+    {
+      e.printStackTrace();
+    }
+    if (id == null)
+    {
+      loc2id.remove(siteLoc, task);
+    }
+    return id;
+  }
+
+  private Unicore6ID readID(Location siteLoc, String file)
+  {
+    try
+    {
+      log.debug("Instantiating SecurityProperties from file: " + file);
+      Unicore6ID siteSec = new Unicore6ID(new FileSystemResource(file));
+      log.debug("Putting SecurityProperties for location " + siteLoc + " into Config map.");
+      log.debug("Properties are: " + siteSec);
+      return siteSec;
+    }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+      return null;
+    }
   }
 
   /* (non-Javadoc)
@@ -107,8 +224,10 @@ public class Unicore6Config implements Config
    */
   public boolean exists(Location location)
   {
-    log.debug("Does an Id exist for location " + location + ": " + loc2id.containsKey(location));
-    return loc2id.containsKey(location);
+    // as in eager mode, a site whose properties can't be read doesn't exist
+    boolean exists = load(location) != null;
+    log.debug("Does an Id exist for location " + location + ": " + exists);
+    return exists;
   }
 
   /* (non-Javadoc)
@@ -126,7 +245,11 @@ public class Unicore6Config implements Config
     {
       e.printStackTrace();
     }
-    return loc2id.get(siteLocation);
+    if (siteLocation == null)
+    {
+      return null;
+    }
+    return load(siteLocation);
   }
 
   /* (non-Javadoc)
@@ -134,7 +257,10 @@ public class Unicore6Config implements Config
    */
   public Set<Location> getAllSiteLocations()
   {
-    return loc2id.keySet();
+    synchronized (loc2file)
+    {
+      return new HashSet<Location>(loc2file.keySet());
+    }
   }
   
   public Set<Location> getAllSiteLocations(String user)
@@ -149,10 +275,12 @@ public class Unicore6Config implements Config
     return null;
   }
 
+  /**
+   * Forgets all loaded security properties; they are read again on next use.
+   */
   public void refresh()
   {
-    // TODO Auto-generated method stub
-
+    loc2id.clear();
   }
 
 }
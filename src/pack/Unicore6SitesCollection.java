@@ -32,9 +32,20 @@
 package eu.unicore.hila.grid.unicore6;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
@@ -56,53 +67,231 @@ public class Unicore6SitesCollection extends BaseResource implements Resource {
     private static final Logger log = Logger
 	    .getLogger(Unicore6SitesCollection.class);
 
-    private static final Map<Location, Unicore6SitesCollection> sitesCollections = new HashMap<Location, Unicore6SitesCollection>();
+    /**
+     * Age after which the sites list is refreshed, in milliseconds.
+     */
+    private static final long MAX_AGE = 60000;
+
+    /**
+     * Delay before the first retry of a failed refresh, in milliseconds. It
+     * doubles with every further failure, up to {@link #MAX_AGE}.
+     */
+    private static final long MIN_RETRY_DELAY = 5000;
 
-    private List<Resource> sites;
-    private long sitesTimestamp = 0;
+    private static final ConcurrentMap<Location, Unicore6SitesCollection> sitesCollections = new ConcurrentHashMap<Location, Unicore6SitesCollection>();
+
+    /**
+     * Runs the background refreshes of all collections.
+     */
+    private static final ThreadPoolExecutor refresher = new ThreadPoolExecutor(
+	    4, 4, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+	    new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "sites-refresh-"
+			    + count.incrementAndGet());
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+
+    static {
+	refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The last sites list that was fetched completely, never modified.
+     */
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+
+    /**
+     * The refresh currently running, if any; callers join it instead of
+     * starting another.
+     */
+    private final AtomicReference<FutureTask<Snapshot>> refreshing = new AtomicReference<FutureTask<Snapshot>>();
+
+    private volatile long lastRefreshDuration = -1;
+
+    /**
+     * Start of the last refresh, successful or not.
+     */
+    private volatile long lastAttempt = 0;
+
+    /**
+     * Minimum time from the last attempt to the next one; 0 while refreshes
+     * succeed.
+     */
+    private volatile long retryDelay = 0;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private final AtomicLong failedRefreshCount = new AtomicLong();
 
     /**
      * @param location
      */
     private Unicore6SitesCollection(Location location) {
 	super(location);
-
-	sites = new ArrayList<Resource>();
     }
 
     public static Unicore6SitesCollection locate(Location _location,
 	    Object... _extraInformation) {
-	if (sitesCollections.containsKey(_location)) {
-	    return sitesCollections.get(_location);
+	Unicore6SitesCollection sitesCollection = sitesCollections
+		.get(_location);
+	if (sitesCollection != null) {
+	    return sitesCollection;
 	}
-	Unicore6SitesCollection sitesCollection = new Unicore6SitesCollection(
-		_location);
-	sitesCollections.put(_location, sitesCollection);
-	return sitesCollection;
+	sitesCollection = new Unicore6SitesCollection(_location);
+	Unicore6SitesCollection existing = sitesCollections.putIfAbsent(
+		_location, sitesCollection);
+	return existing != null ? existing : sitesCollection;
     }
 
     /**
+     * Returns the last complete sites list right away. If it is older than a
+     * minute a refresh is started in the background; only the very first
+     * call waits for the registries. After a failed refresh the next one is
+     * started no sooner than 5 seconds later, doubling with every further
+     * failure up to a minute.
+     * <p>
+     * Each call gets its own copy of the list, which the caller may modify.
+     * 
      * @throws HiLAException
      * @see eu.unicore.hila.Resource#getChildren()
      */
     public List<Resource> getChildren() throws HiLAException {
-	final Unicore6Grid parent = (Unicore6Grid) getParent();
-	final Unicore6Properties props = parent.getProperties();
+	Snapshot current = snapshot.get();
+	if (current == null) {
+	    current = await(refresh(false));
+	} else if (current.getAge() > MAX_AGE
+		&& System.currentTimeMillis() - lastAttempt >= retryDelay) {
+	    refresh(true);
+	}
+	return new ArrayList<Resource>(current.sites);
+    }
 
-	List<String> registryURLs = props.getRegistryUrls();
+    /**
+     * Starts a refresh unless one is running already.
+     * 
+     * @param background
+     *            run it on the refresher pool rather than in the calling
+     *            thread
+     * @return the running refresh
+     */
+    private FutureTask<Snapshot> refresh(boolean background) {
+	while (true) {
+	    FutureTask<Snapshot> running = refreshing.get();
+	    if (running != null) {
+		return running;
+	    }
+	    final Unicore6Grid parent = (Unicore6Grid) getParent();
+	    final Unicore6Properties props = parent.getProperties();
+	    FutureTask<Snapshot> task = new FutureTask<Snapshot>(
+		    new Callable<Snapshot>() {
+			public Snapshot call() throws Exception {
+			    return fetch(props);
+			}
+		    }) {
+		@Override
+		protected void done() {
+		    refreshing.compareAndSet(this, null);
+		}
+	    };
+	    if (refreshing.compareAndSet(null, task)) {
+		if (background) {
+		    refresher.execute(task);
+		} else {
+		    task.run();
+		}
+		return task;
+	    }
+	}
+    }
 
-	if ((System.currentTimeMillis() - sitesTimestamp) > 60000) {
-	    if (log.isDebugEnabled()) {
-		log.debug("Updating sites list.");
+    private Snapshot fetch(Unicore6Properties props) throws HiLAException {
+	if (log.isDebugEnabled()) {
+	    log.debug("Updating sites list.");
+	}
+	long start = System.currentTimeMillis();
+	lastAttempt = start;
+	try {
+	    List<String> registryURLs = props.getRegistryUrls();
+	    List<Resource> sites = SiteLocator.getInstance().getAllSites(
+		    registryURLs, props, location, 5000L);
+	    Snapshot fresh = new Snapshot(Collections
+		    .unmodifiableList(new ArrayList<Resource>(sites)));
+	    snapshot.set(fresh);
+	    refreshCount.incrementAndGet();
+	    retryDelay = 0;
+	    return fresh;
+	} catch (HiLAException e) {
+	    failed(e);
+	    throw e;
+	} catch (RuntimeException e) {
+	    failed(e);
+	    throw e;
+	} finally {
+	    lastRefreshDuration = System.currentTimeMillis() - start;
+	}
+    }
+
+    private void failed(Exception e) {
+	failedRefreshCount.incrementAndGet();
+	retryDelay = Math.min(MAX_AGE, Math.max(MIN_RETRY_DELAY, 2 * retryDelay));
+	log.warn("Couldn't update sites list for " + location
+		+ ", keeping the previous one; next attempt in " + retryDelay
+		+ "ms.", e);
+    }
+
+    private Snapshot await(FutureTask<Snapshot> task) throws HiLAException {
+	try {
+	    return task.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new HiLAException("Interrupted while fetching sites list.", e);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof HiLAException) {
+		throw (HiLAException) e.getCause();
 	    }
-	    sites.clear();
-	    sites.addAll(SiteLocator.getInstance().getAllSites(registryURLs,
-		    props, location, 5000L));
-	    
-	    sitesTimestamp = System.currentTimeMillis();
+	    throw new HiLAException("Couldn't fetch sites list.", e.getCause());
 	}
+    }
 
-	return sites;
+    /**
+     * @return milliseconds the last refresh took, -1 if there was none yet
+     */
+    public long getLastRefreshDuration() {
+	return lastRefreshDuration;
+    }
+
+    /**
+     * @return age of the sites list in milliseconds, -1 if there is none yet
+     */
+    public long getSitesAge() {
+	Snapshot current = snapshot.get();
+	return current == null ? -1 : current.getAge();
+    }
+
+    public long getRefreshCount() {
+	return refreshCount.get();
+    }
+
+    public long getFailedRefreshCount() {
+	return failedRefreshCount.get();
+    }
+
+    private static class Snapshot {
+	private final List<Resource> sites;
+	private final long timestamp = System.currentTimeMillis();
+
+	Snapshot(List<Resource> sites) {
+	    this.sites = sites;
+	}
+
+	long getAge() {
+	    return System.currentTimeMillis() - timestamp;
+	}
     }
 
 }
@@ -3,7 +3,10 @@ package de.fzj.unicore.rcp.wfeditor.properties;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jface.viewers.ISelection;
 import org.eclipse.jface.viewers.IStructuredSelection;
@@ -19,6 +22,7 @@ import org.eclipse.swt.layout.FormLayout;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Text;
@@ -65,6 +69,17 @@ public class VariableIteratorsSection extends AbstractSection {
 
 	protected SelectionListener variableTypeSelectionListener, conditionOperatorSelectionListener;
 
+	/**
+	 * Wrappers currently shown in the list, by iterator id, so that the list
+	 * is only rebuilt when iterators were actually added or removed.
+	 */
+	private Map<String, WorkflowVariableIteratorWrapper> shownWrappers = new LinkedHashMap<String, WorkflowVariableIteratorWrapper>();
+
+	/**
+	 * Set while an update of the element is scheduled for the next UI tick.
+	 */
+	private boolean updatePending = false;
+
 	/**
 	 * @see org.eclipse.ui.views.properties.tabbed.ITabbedPropertySection#createControls(org.eclipse.swt.widgets.Composite,
 	 *      org.eclipse.ui.views.properties.tabbed.TabbedPropertySheetPage)
@@ -204,6 +219,7 @@ public class VariableIteratorsSection extends AbstractSection {
 
 	public void dispose()
 	{
+		flushUpdate();
 		removeListeners();
 	}
 
@@ -335,6 +351,7 @@ public class VariableIteratorsSection extends AbstractSection {
 			public void elementAdded(WorkflowVariableIteratorWrapper newElement) {
 				WorkflowVariableIterator it = newElement.getIterator();
 				workflowVariableIteratorList.addIterator(it);
+				shownWrappers.put(it.getId(), newElement);
 				getElement().getVariableList().addVariable(it.getVariable());
 				it.getModifier().addPropertyChangeListener(VariableIteratorsSection.this);
 				updateElement();
@@ -343,6 +360,7 @@ public class VariableIteratorsSection extends AbstractSection {
 			public void elementRemoved(WorkflowVariableIteratorWrapper removedElement) {
 				WorkflowVariableIterator it = removedElement.getIterator();
 				workflowVariableIteratorList.removeIterator(it);
+				shownWrappers.remove(it.getId());
 				getElement().getVariableList().removeVariable(it.getVariable());
 				it.getModifier().removePropertyChangeListener(VariableIteratorsSection.this);
 				it.dispose();
@@ -380,6 +398,7 @@ public class VariableIteratorsSection extends AbstractSection {
 	}
 
 	public void setInput(IWorkbenchPart part, ISelection selection) {
+		flushUpdate();
 		super.setInput(part, selection);
 		Object input = ((IStructuredSelection) selection)
 		.getFirstElement();
@@ -403,17 +422,38 @@ public class VariableIteratorsSection extends AbstractSection {
 		iteratorsEditor.setAddingAllowed(allowAdding);
 		workflowVariableIteratorList = getElement().getVariableIteratorList();
 		List<WorkflowVariableIterator> iterators = workflowVariableIteratorList.getIterators();
-		List<WorkflowVariableIteratorWrapper> wrappers = new ArrayList<WorkflowVariableIteratorWrapper>();
-		for (WorkflowVariableIterator iterator : iterators) {
-			wrappers.add(new WorkflowVariableIteratorWrapper(iterator));
+		if(!isShown(iterators))
+		{
+			// iterators were added, removed or reordered: rebuild the list,
+			// keeping the wrappers of iterators that are still there
+			Map<String, WorkflowVariableIteratorWrapper> wrappers = new LinkedHashMap<String, WorkflowVariableIteratorWrapper>();
+			for (WorkflowVariableIterator iterator : iterators) {
+				WorkflowVariableIteratorWrapper wrapper = shownWrappers.get(iterator.getId());
+				if(wrapper == null || wrapper.getIterator() != iterator) wrapper = new WorkflowVariableIteratorWrapper(iterator);
+				wrappers.put(iterator.getId(), wrapper);
+			}
+			iteratorsEditor.setElements(new ArrayList<WorkflowVariableIteratorWrapper>(wrappers.values()));
+			shownWrappers = wrappers;
 		}
-		iteratorsEditor.setElements(wrappers);
 		WorkflowVariableIterator selected = getSelectedIterator();
 		iteratorSelectionChanged(selected);
 
 		addListeners();
 	}
 
+	/**
+	 * @return true if the list shows exactly these iterators in this order
+	 */
+	private boolean isShown(List<WorkflowVariableIterator> iterators)
+	{
+		if(iterators.size() != shownWrappers.size()) return false;
+		Iterator<WorkflowVariableIteratorWrapper> shown = shownWrappers.values().iterator();
+		for (WorkflowVariableIterator iterator : iterators) {
+			if(shown.next().getIterator() != iterator) return false;
+		}
+		return true;
+	}
+
 	protected ConditionTypeVariableComparison getVariableComparison()
 	{
 		WorkflowVariableIterator iterator = getSelectedIterator();
@@ -527,8 +567,37 @@ public class VariableIteratorsSection extends AbstractSection {
 		}
 	}
 
+	/**
+	 * Schedules writing the iterator list back to the element. All changes
+	 * made until the next UI tick (e.g. a burst of keystrokes) are written
+	 * with a single update.
+	 */
 	public void updateElement()
 	{
+		if(updatePending) return;
+		Display display = groupParent == null || groupParent.isDisposed() ? null : groupParent.getDisplay();
+		if(display == null)
+		{
+			updatePending = true;
+			flushUpdate();
+			return;
+		}
+		updatePending = true;
+		display.asyncExec(new Runnable() {
+			public void run() {
+				flushUpdate();
+			}
+		});
+	}
+
+	/**
+	 * Writes a scheduled update to the element right away.
+	 */
+	protected void flushUpdate()
+	{
+		if(!updatePending) return;
+		updatePending = false;
+		if(getElement() == null || workflowVariableIteratorList == null) return;
 		getElement().removePropertyChangeListener(this);
 		getElement().setVariableIteratorList(workflowVariableIteratorList);
 		getElement().addPropertyChangeListener(this);